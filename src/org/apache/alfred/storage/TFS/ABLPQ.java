@@ -28,7 +28,7 @@ import java.io.PrintStream;
  * Hand-optimized priority queue of AccessorBlockLink objects. Analogous to
  * java.util.PriorityQueue &lt;AccessorBlockLink&gt;
  */
-final class ABLPQ {
+final class ABLPQ implements LinkQueue {
     /**
      * Number of elements in the heap.
      */
@@ -190,6 +190,7 @@ final class ABLPQ {
         return (percolated);
     }
 
+    @Override
     public void offer(AccessorBlockLink obj) {
 
         obj.queued = true;
@@ -256,6 +257,7 @@ final class ABLPQ {
         return (true);
     }
 
+    @Override
     public AccessorBlockLink peek() {
         if (size == 0)
             return (null);
@@ -263,6 +265,7 @@ final class ABLPQ {
         return (getInternal(1));
     }
 
+    @Override
     public AccessorBlockLink poll() {
         if (size == 0)
             return (null);
@@ -272,4 +275,10 @@ final class ABLPQ {
         min.queued = false;
         return (min);
     }
+
+    @Override
+    public void updateTop() {
+        if (size > 0)
+            percDown(1, heap[1]);
+    }
 }
@@ -0,0 +1,225 @@
+/*******************************************************************************
+ *
+ *
+ *  Copyright (c) 2022 Alfred
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.apache.alfred.storage.tfs;
+
+import java.util.Arrays;
+
+/**
+ * Tournament tree of AccessorBlockLink objects, used by readers merging many
+ * blocks. Next timestamps and entities of the links are copied into primitive
+ * arrays, so matches do not dereference links. Supports the same operations
+ * as {@link ABLPQ}, and {@link #updateTop()} to replay the winner after it
+ * was advanced in place, which costs a single pass from leaf to root.
+ *
+ * <p>
+ * Leaves are slots at positions [capacity, 2 * capacity) of {@code winners};
+ * internal node {@code n} keeps the slot winning the match of nodes
+ * {@code 2n} and {@code 2n + 1}. Empty slots always lose.
+ * </p>
+ *
+ * <p>
+ * This is a winner tree rather than a loser tree: readers offer links into
+ * arbitrary free slots while reading, and a winner tree replays correctly from
+ * any leaf, while a loser tree replays from the current winner only. Replay
+ * makes one comparison per level either way.
+ * </p>
+ */
+final class ABLTournament implements LinkQueue {
+    private static final int NONE = -1;
+
+    private final boolean ascending;
+
+    private AccessorBlockLink[] links;
+    private long[] times;
+    private int[] entities;
+    private int[] winners;
+    private int capacity;
+    private int size;
+
+    // free slots, used as a stack
+    private int[] free;
+    private int numFree;
+
+    public ABLTournament(int capacity, boolean ascending) {
+        this.ascending = ascending;
+        init(Math.max(2, Integer.highestOneBit(Math.max(1, capacity - 1)) << 1));
+    }
+
+    private void init(int capacity) {
+        this.capacity = capacity;
+        this.links = new AccessorBlockLink[capacity];
+        this.times = new long[capacity];
+        this.entities = new int[capacity];
+        this.winners = new int[capacity << 1];
+        this.free = new int[capacity];
+
+        Arrays.fill(winners, NONE);
+
+        for (int ii = 0; ii < capacity; ii++)
+            free[ii] = capacity - 1 - ii;
+
+        numFree = capacity;
+        size = 0;
+    }
+
+    public void clear() {
+        for (int ii = 0; ii < capacity; ii++) {
+            if (links[ii] != null)
+                links[ii].queued = false;
+        }
+
+        Arrays.fill(links, null);
+        Arrays.fill(winners, NONE);
+
+        for (int ii = 0; ii < capacity; ii++)
+            free[ii] = capacity - 1 - ii;
+
+        numFree = capacity;
+        size = 0;
+    }
+
+    public int size() {
+        return (size);
+    }
+
+    public boolean isEmpty() {
+        return (size == 0);
+    }
+
+    @Override
+    public void offer(AccessorBlockLink link) {
+        link.queued = true;
+
+        if (numFree == 0)
+            grow();
+
+        int slot = free[--numFree];
+
+        links[slot] = link;
+        times[slot] = link.getNextTimestamp();
+        entities[slot] = link.getEntity();
+        size++;
+
+        replay(slot);
+    }
+
+    @Override
+    public AccessorBlockLink peek() {
+        int slot = winners[1];
+
+        return (slot == NONE ? null : links[slot]);
+    }
+
+    @Override
+    public AccessorBlockLink poll() {
+        int slot = winners[1];
+
+        if (slot == NONE)
+            return (null);
+
+        AccessorBlockLink link = links[slot];
+
+        links[slot] = null;
+        free[numFree++] = slot;
+        size--;
+
+        replay(slot);
+
+        link.queued = false;
+        return (link);
+    }
+
+    /**
+     * Replays the top link after its next timestamp was changed.
+     */
+    @Override
+    public void updateTop() {
+        int slot = winners[1];
+
+        if (slot == NONE)
+            return;
+
+        times[slot] = links[slot].getNextTimestamp();
+        replay(slot);
+    }
+
+    /*
+     * Returns true, if slot s1 goes before slot s2
+     */
+    private boolean wins(int s1, int s2) {
+        if (s2 == NONE || links[s2] == null)
+            return true;
+
+        if (s1 == NONE || links[s1] == null)
+            return false;
+
+        long t1 = times[s1];
+        long t2 = times[s2];
+
+        if (t1 != t2)
+            return (ascending ? t1 < t2 : t1 > t2);
+
+        // reverse ordering should affect and entities order
+        return (ascending ? entities[s1] < entities[s2] : entities[s1] > entities[s2]);
+    }
+
+    private void replay(int slot) {
+        int node = capacity + slot;
+
+        winners[node] = links[slot] != null ? slot : NONE;
+
+        for (node >>= 1; node > 0; node >>= 1) {
+            int left = winners[node << 1];
+            int right = winners[(node << 1) + 1];
+
+            winners[node] = wins(left, right) ? left : right;
+        }
+    }
+
+    private void grow() {
+        AccessorBlockLink[] oldLinks = links;
+        long[] oldTimes = times;
+        int[] oldEntities = entities;
+        int oldCapacity = capacity;
+
+        init(oldCapacity << 1);
+
+        System.arraycopy(oldLinks, 0, links, 0, oldCapacity);
+        System.arraycopy(oldTimes, 0, times, 0, oldCapacity);
+        System.arraycopy(oldEntities, 0, entities, 0, oldCapacity);
+
+        // all old slots are occupied, new ones are free
+        numFree = capacity - oldCapacity;
+        size = oldCapacity;
+
+        for (int ii = 0; ii < numFree; ii++)
+            free[ii] = capacity - 1 - ii;
+
+        for (int ii = 0; ii < oldCapacity; ii++)
+            winners[capacity + ii] = ii;
+
+        for (int node = capacity - 1; node > 0; node--) {
+            int left = winners[node << 1];
+            int right = winners[(node << 1) + 1];
+
+            winners[node] = wins(left, right) ? left : right;
+        }
+    }
+}
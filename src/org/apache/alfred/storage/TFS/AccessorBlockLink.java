@@ -68,6 +68,8 @@ public final class AccessorBlockLink {
      */
     public boolean forward(long nstime) {
         synchronized (block) {
+            jump(nstime, false);
+
             MemoryDataInput mdi = getMDI();
 
             for (;;) {
@@ -106,6 +108,8 @@ public final class AccessorBlockLink {
      */
     public boolean forwardToLast(long nstime) {
         synchronized (block) {
+            jump(nstime, true);
+
             MemoryDataInput mdi = getMDI();
 
             for (;;) {
@@ -151,6 +155,32 @@ public final class AccessorBlockLink {
         return entity;
     }
 
+    /**
+     * Moves current position forward to the last indexed message having time
+     * less than (or equal to, if {@code inclusive}) the given time. All skipped
+     * messages have time less than (or equal to) the given time.
+     *
+     * @return true if position was changed
+     */
+    private boolean jump(long nstime, boolean inclusive) {
+        assert Thread.holdsLock(this.block);
+
+        BlockTimeIndex index = block.getTimeIndex(accessor.mdi);
+
+        if (index == null)
+            return false;
+
+        int idx = index.floor(nstime, inclusive);
+
+        if (idx >= 0 && index.getOffset(idx) > offset) {
+            offset = index.getOffset(idx);
+            nextTimestamp = index.getTime(idx);
+            return true;
+        }
+
+        return false;
+    }
+
     /**
      * Seeks offset pointing first message with given time or end of block. If
      * messages with given time is not present, offset will point to the last
@@ -162,7 +192,28 @@ public final class AccessorBlockLink {
 
         long current = nextTimestamp;
 
+        if (nstime <= nextTimestamp && offset != 0) {
+            // try to avoid walking backward using the index
+            BlockTimeIndex index = block.getTimeIndex(accessor.mdi);
+
+            if (index != null && index.size() > 0) {
+                int idx = index.floor(nstime, false);
+
+                if (idx >= 0 && index.getOffset(idx) < offset) {
+                    offset = index.getOffset(idx);
+                    nextTimestamp = index.getTime(idx);
+                } else if (idx < 0 && index.getOffset(0) == 0) {
+                    // all messages have time >= nstime
+                    offset = 0;
+                    nextTimestamp = index.getTime(0);
+                    return current;
+                }
+            }
+        }
+
         if (nstime > nextTimestamp) {
+            jump(nstime, false);
+
             MemoryDataInput mdi = getMDI();
 
             for (;;) {
@@ -293,12 +344,15 @@ public final class AccessorBlockLink {
         boolean dirty = false;
 
         synchronized (block) {
-            seek(nstime + 1); // seek last message with same time
+            boolean deferred = seekInsert(nstime);
             dirty = block.insertMessage(accessor, nstime, src, srcOffset, length, offset);
 
             msgOffset = offset;
             offset += length;
 
+            if (deferred)
+                nextTimestamp = block.getTimeAt(offset, accessor.mdi);
+
             ts.dataInserted(accessor, block, msgOffset, length, nstime);
         }
 
@@ -306,6 +360,61 @@ public final class AccessorBlockLink {
             ts.blockGoesDirty(block);
     }
 
+    /**
+     * Positions link after all messages with time less or equal to the given
+     * one. Appends and inserts deferred by the block do not read block data.
+     *
+     * @return true, if time of the next message should be updated after insert
+     */
+    private boolean seekInsert(long nstime) {
+        assert Thread.holdsLock(block);
+
+        if (nstime >= block.getEndTime()) {
+            offset = block.getDataLength();
+            nextTimestamp = NO_NEXT_TIMESTAMP;
+            return false;
+        }
+
+        if (block.canDeferInsert()) {
+            offset = block.findInsertOffset(nstime, accessor.mdi);
+            return true;
+        }
+
+        seek(nstime + 1); // seek last message with same time
+        return false;
+    }
+
+    /**
+     * Inserts messages stored in the source array under a single block lock.
+     *
+     * @param order indexes of messages to insert, in order of insertion
+     */
+    void insertMessages(byte[] src, long[] times, int[] offsets, int[] lengths, int[] order, int from, int to) {
+        boolean dirty = false;
+
+        synchronized (block) {
+            for (int ii = from; ii < to; ii++) {
+                int idx = order[ii];
+                long nstime = times[idx];
+                int length = lengths[idx];
+
+                boolean deferred = seekInsert(nstime);
+                dirty |= block.insertMessage(accessor, nstime, src, offsets[idx], length, offset);
+
+                int msgOffset = offset;
+                offset += length;
+
+                if (deferred)
+                    nextTimestamp = block.getTimeAt(offset, accessor.mdi);
+
+                ts.dataInserted(accessor, block, msgOffset, length, nstime);
+            }
+        }
+
+        if (dirty)
+            ts.blockGoesDirty(block);
+    }
+
     int readMessageForward(TSMessageConsumer processor) {
         synchronized (block) {
             MemoryDataInput mdi = getMDI();
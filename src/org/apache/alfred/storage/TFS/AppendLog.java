@@ -0,0 +1,221 @@
+/*******************************************************************************
+ *
+ *
+ *  Copyright (c) 2022 Alfred
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.apache.alfred.storage.tfs;
+
+import org.apache.alfred.storage.tfs.codecs.AppendSegments;
+import org.apache.alfred.storage.tfs.pub.AbstractPath;
+import org.apache.alfred.util.collections.ByteArray;
+import org.apache.alfred.util.collections.generated.ByteArrayList;
+import org.apache.alfred.util.collections.generated.ObjectArrayList;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.TreeMap;
+
+/**
+ * Append state of a single time slice file. When enabled, a stored file may
+ * be extended by {@link AppendSegments} holding only the data appended to its
+ * blocks since the last store, instead of rewriting the whole file. The file
+ * is rewritten (compacted) when appended data grows too large compared to the
+ * base part, or when blocks were modified anywhere but at the tail. Guarded by
+ * the owning file.
+ */
+final class AppendLog {
+
+    // Store active time slices incrementally
+    static final boolean ENABLED = Boolean.getBoolean("TimeBase.storage.appendLog");
+
+    // File is compacted when appended data exceeds given percent of its base part
+    static final int COMPACTION_PERCENT = Integer.getInteger("TimeBase.storage.appendLog.compactionPercent", 50);
+
+    // File is compacted when number of segments reaches this limit
+    static final int MAX_SEGMENTS = Integer.getInteger("TimeBase.storage.appendLog.maxSegments", 256);
+
+    /**
+     * Data appended to a block, accumulated from all segments.
+     */
+    static final class Tail {
+        final int entity;
+        final ByteArrayList data = new ByteArrayList();
+        long startTime;
+        long endTime;
+
+        Tail(int entity) {
+            this.entity = entity;
+        }
+    }
+
+    // size of the file part written by the full store
+    private long baseSize;
+
+    // total size of valid segments, or -1 if file can not be appended
+    private long size = -1;
+
+    private int numSegments;
+
+    static boolean isSupported(TSRootFolder root) {
+        return (ENABLED && root.getFS().isAppendSupported());
+    }
+
+    /**
+     * Resets state after file was completely rewritten.
+     */
+    void reset(long baseSize, boolean appendable) {
+        this.baseSize = baseSize;
+        this.size = appendable ? 0 : -1;
+        this.numSegments = 0;
+    }
+
+    boolean isAppendable() {
+        return (size >= 0);
+    }
+
+    /**
+     * @return number of valid segments following the base part
+     */
+    int getNumSegments() {
+        return (numSegments);
+    }
+
+    /**
+     * @param dbs completely loaded blocks
+     * @return true if changes of given blocks may be appended to the file
+     */
+    boolean canAppend(ObjectArrayList<DataBlockInfo> dbs) {
+        if (size < 0 || numSegments >= MAX_SEGMENTS)
+            return (false);
+
+        long appended = 0;
+
+        for (int ii = 0, n = dbs.size(); ii < n; ii++) {
+            DataBlock db = (DataBlock) dbs.getObjectNoRangeCheck(ii);
+            int stored = db.getStoredLength();
+
+            if (stored < 0)
+                return (false);
+
+            appended += db.getDataLength() - stored;
+        }
+
+        return ((size + appended) * 100 <= baseSize * COMPACTION_PERCENT);
+    }
+
+    /**
+     * Appends a segment with unstored data of given blocks and marks them
+     * clean.
+     *
+     * @return true if segment was written, false if blocks had no unstored data
+     */
+    boolean append(AbstractPath path, ObjectArrayList<DataBlockInfo> dbs) throws IOException {
+        AppendSegments.Writer writer = new AppendSegments.Writer();
+        int numEntities = dbs.size();
+
+        for (int ii = 0; ii < numEntities; ii++) {
+            DataBlock db = (DataBlock) dbs.getObjectNoRangeCheck(ii);
+            int stored = db.getStoredLength();
+            int length = db.getDataLength();
+
+            if (length > stored) {
+                ByteArray data = db.getData();
+                writer.add(db.getEntity(), db.getStartTime(), db.getEndTime(), data.getArray(),
+                        data.getOffset() + stored, length - stored);
+            }
+        }
+
+        if (!writer.isEmpty()) {
+            // on failure segment may be partially written - rewrite the file next time
+            long written = -1;
+
+            try (OutputStream os = new BufferedOutputStream(path.openOutputForAppend())) {
+                written = writer.writeTo(os);
+            } finally {
+                if (written < 0)
+                    size = -1;
+            }
+
+            size += written;
+            numSegments++;
+        }
+
+        for (int ii = 0; ii < numEntities; ii++) {
+            DataBlock db = (DataBlock) dbs.getObjectNoRangeCheck(ii);
+            db.setStored();
+            db.setClean();
+        }
+
+        return (!writer.isEmpty());
+    }
+
+    /**
+     * Reads segments following the base part of the file. Invalid tail makes
+     * file not appendable.
+     *
+     * @return appended data ordered by entity
+     */
+    ObjectArrayList<Tail> load(AbstractPath path, long baseSize) throws IOException {
+        ObjectArrayList<Tail> tails = new ObjectArrayList<>();
+        long length = path.length();
+
+        reset(baseSize, true);
+
+        if (length <= baseSize)
+            return (tails);
+
+        TreeMap<Integer, Tail> map = new TreeMap<>();
+
+        try (InputStream is = new BufferedInputStream(path.openInput(baseSize))) {
+            size = AppendSegments.read(is, length - baseSize, new AppendSegments.RecordConsumer() {
+                @Override
+                public void process(int entity, long startTime, long endTime, byte[] data, int offset, int len) {
+                    Tail tail = map.computeIfAbsent(entity, Tail::new);
+                    ByteArrayList buffer = tail.data;
+                    int pos = buffer.size();
+
+                    buffer.ensureCapacity(pos + len);
+                    System.arraycopy(data, offset, buffer.getInternalBuffer(), pos, len);
+                    buffer.setSize(pos + len);
+
+                    tail.startTime = startTime;
+                    tail.endTime = endTime;
+                }
+
+                @Override
+                public void segmentProcessed() {
+                    numSegments++;
+                }
+            });
+        }
+
+        if (baseSize + size != length) {
+            PDSImpl.LOGGER.warn("%s: ignoring %s bytes of incomplete append segment").with(path)
+                    .with(length - baseSize - size);
+
+            size = -1;
+        }
+
+        for (Tail tail : map.values())
+            tails.add(tail);
+
+        return (tails);
+    }
+}
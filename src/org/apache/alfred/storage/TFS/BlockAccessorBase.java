@@ -19,6 +19,7 @@
 
 package org.apache.alfred.storage.tfs
 
+import org.apache.alfred.storage.tfs.pub.TSMessageConsumer;
 import org.apache.alfred.util.collections.generated.*;
 import org.apache.alfred.util.memory.MemoryDataInput;
 
@@ -102,6 +103,18 @@ abstract class BlockAccessorBase extends DataAccessorBase {
     }
 
     public final AccessorBlockLink getBlockLink(int entity, long ffToTimestamp) {
+        AccessorBlockLink link = getInsertLink(entity);
+
+        link.forward(ffToTimestamp);
+
+        return (link);
+    }
+
+    /**
+     * Returns link to the block of the given entity without positioning it.
+     * Inserting messages positions the link itself.
+     */
+    final AccessorBlockLink getInsertLink(int entity) {
         AccessorBlockLink link;
 
         DataBlock block = currentTimeSlice.getBlock(entity, true);
@@ -115,8 +128,6 @@ abstract class BlockAccessorBase extends DataAccessorBase {
             }
         }
 
-        link.forward(ffToTimestamp);
-
         return (link);
     }
 
@@ -145,6 +156,49 @@ abstract class BlockAccessorBase extends DataAccessorBase {
         }
     }
 
+    /*
+     * Reads messages of the top link of the queue. Keeps reading the same link
+     * while runs are allowed and it stays at the top; the link is polled when
+     * it has no more messages.
+     *
+     * @return number of messages read
+     */
+    static int readRun(LinkQueue pq, boolean forward, TSMessageConsumer processor, int maxMessages,
+            long maxTimestamp, boolean runs) {
+        AccessorBlockLink link = pq.peek();
+        int count = 0;
+
+        for (;;) {
+            int state;
+
+            if (forward)
+                state = link.readMessageForward(processor);
+            else
+                state = link.readMessageReverse(processor);
+
+            if (NextState.hasCurrent(state))
+                count++;
+
+            if (!NextState.hasMore(state)) {
+                pq.poll();
+                return (count);
+            }
+
+            pq.updateTop();
+
+            if (!runs || count >= maxMessages || pq.peek() != link
+                    || isBeyond(forward, link.getNextTimestamp(), maxTimestamp))
+                return (count);
+        }
+    }
+
+    /*
+     * @return true if timestamp is beyond the limit in reading direction
+     */
+    static boolean isBeyond(boolean forward, long timestamp, long maxTimestamp) {
+        return (forward ? timestamp > maxTimestamp : timestamp < maxTimestamp);
+    }
+
     @Override
     public void checkedOut(TimeSlice slice) {
         clearLinks();
@@ -0,0 +1,184 @@
+/*******************************************************************************
+ *
+ *
+ *  Copyright (c) 2022 Alfred
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.apache.alfred.storage.tfs;
+
+import org.apache.alfred.storage.codecs.SymmetricSizeCodec;
+import org.apache.alfred.hf.pub.codec.TimeCodec;
+import org.apache.alfred.util.memory.MemoryDataInput;
+
+import java.util.Arrays;
+
+/**
+ * Sparse time index of a single data block: timestamp and offset of every
+ * N-th message. Entries are ordered by offset (and therefore by time), each
+ * entry points to the beginning of a message. Guarded by the owning block.
+ */
+final class BlockTimeIndex {
+
+    // Distance (in messages) between index entries
+    static final int STEP = Integer.getInteger("TimeBase.storage.blockIndex.step", 32);
+
+    // Blocks smaller than this size (in bytes) are not indexed
+    static final int MIN_BLOCK_SIZE = Integer.getInteger("TimeBase.storage.blockIndex.minBlockSize", 4096);
+
+    private long[] times = new long[16];
+    private int[] offsets = new int[16];
+    private int size = 0;
+
+    // number of messages appended after the last entry
+    private int tail = 0;
+
+    /**
+     * Builds index by scanning the block.
+     *
+     * @param mdi input configured to the beginning of the block data
+     */
+    static BlockTimeIndex build(MemoryDataInput mdi) {
+        BlockTimeIndex index = new BlockTimeIndex();
+        int start = mdi.getCurrentOffset();
+
+        while (mdi.hasAvail()) {
+            int offset = mdi.getCurrentOffset() - start;
+            long time = TimeCodec.readNanoTime(mdi);
+
+            if (index.tail == 0)
+                index.add(index.size, time, offset);
+
+            if (++index.tail == STEP)
+                index.tail = 0;
+
+            mdi.skipBytes(1); // type
+            mdi.skipBytes(SymmetricSizeCodec.readForward(mdi));
+            SymmetricSizeCodec.skipForward(mdi);
+        }
+
+        return (index);
+    }
+
+    int size() {
+        return (size);
+    }
+
+    long getTime(int idx) {
+        return (times[idx]);
+    }
+
+    int getOffset(int idx) {
+        return (offsets[idx]);
+    }
+
+    /**
+     * @return index of the last entry with time less than (or equal, if
+     *         {@code inclusive}) to the given time, or -1
+     */
+    int floor(long nstime, boolean inclusive) {
+        int low = 0;
+        int high = size - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long time = times[mid];
+
+            if (time < nstime || (inclusive && time == nstime))
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+
+        return (high);
+    }
+
+    /**
+     * Updates index after a message was inserted into the block.
+     */
+    void messageInserted(int dataOffset, int msgLength, long timestamp, boolean append) {
+        if (append) {
+            if (tail == 0 || size == 0)
+                add(size, timestamp, dataOffset);
+
+            if (++tail == STEP)
+                tail = 0;
+        } else {
+            int idx = floor(dataOffset);
+
+            for (int ii = idx + 1; ii < size; ii++)
+                offsets[ii] += msgLength;
+
+            // keep the first message indexed
+            if (dataOffset == 0)
+                add(0, timestamp, 0);
+        }
+    }
+
+    /**
+     * Updates index after data in range [startOffset, endOffset) was removed.
+     */
+    void dataRemoved(int startOffset, int endOffset) {
+        int free = endOffset - startOffset;
+        int count = 0;
+
+        for (int ii = 0; ii < size; ii++) {
+            int offset = offsets[ii];
+
+            if (offset >= startOffset && offset < endOffset)
+                continue;
+
+            times[count] = times[ii];
+            offsets[count] = offset >= endOffset ? offset - free : offset;
+            count++;
+        }
+
+        size = count;
+        tail = 0;
+    }
+
+    // index of the last entry with offset less than given one
+    private int floor(int offset) {
+        int low = 0;
+        int high = size - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+
+            if (offsets[mid] < offset)
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+
+        return (high);
+    }
+
+    private void add(int idx, long time, int offset) {
+        if (size == times.length) {
+            times = Arrays.copyOf(times, size * 2);
+            offsets = Arrays.copyOf(offsets, size * 2);
+        }
+
+        if (idx < size) {
+            System.arraycopy(times, idx, times, idx + 1, size - idx);
+            System.arraycopy(offsets, idx, offsets, idx + 1, size - idx);
+        }
+
+        times[idx] = time;
+        offsets[idx] = offset;
+        size++;
+    }
+}
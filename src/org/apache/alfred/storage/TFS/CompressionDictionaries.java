@@ -0,0 +1,185 @@
+/*******************************************************************************
+ *
+ *
+ *  Copyright (c) 2022 Alfred
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.apache.alfred.storage.tfs;
+
+import org.apache.alfred.storage.tfs.codecs.CompressionDictionary;
+import org.apache.alfred.storage.tfs.codecs.DictionaryResolver;
+import org.apache.alfred.storage.tfs.codecs.TSNames;
+import org.apache.alfred.storage.tfs.pub.AbstractPath;
+import org.apache.alfred.util.collections.ByteArray;
+import org.apache.alfred.util.collections.generated.IntegerToObjectHashMap;
+import org.apache.alfred.util.collections.generated.ObjectArrayList;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Compression dictionaries of the root. Every dictionary is stored in a
+ * separate file of the root folder and never deleted, so files compressed with
+ * older dictionaries remain readable. Current dictionary is trained from
+ * samples of data blocks being stored; training runs on a separate thread,
+ * not to stall writer thread holding file and root locks.
+ */
+final class CompressionDictionaries implements DictionaryResolver {
+
+    // Size of dictionary to train. Zero disables training.
+    static final int DICTIONARY_SIZE = Integer.getInteger("TimeBase.storage.dictionary.size", 0);
+
+    // Amount of sampled data required to train dictionary
+    static final int SAMPLES_SIZE = Integer.getInteger("TimeBase.storage.dictionary.samplesSize",
+            DICTIONARY_SIZE * 100);
+
+    // Max size of a single sample
+    private static final int MAX_SAMPLE_SIZE = 1 << 17;
+
+    private final TSRootFolder root;
+    private final IntegerToObjectHashMap<CompressionDictionary> loaded = new IntegerToObjectHashMap<>();
+
+    private CompressionDictionary current;
+
+    private ObjectArrayList<byte[]> samples;
+    private int samplesSize;
+    private boolean training;
+
+    CompressionDictionaries(TSRootFolder root) {
+        this.root = root;
+    }
+
+    @Override
+    public synchronized CompressionDictionary getDictionary(int id) {
+        CompressionDictionary dictionary = loaded.get(id, null);
+
+        if (dictionary == null) {
+            try {
+                dictionary = CompressionDictionary.read(root.getPath(), id);
+            } catch (IOException iox) {
+                throw new com.epam.deltix.util.io.UncheckedIOException(iox);
+            }
+
+            if (dictionary == null)
+                return null;
+
+            loaded.put(id, dictionary);
+        }
+
+        return dictionary;
+    }
+
+    synchronized CompressionDictionary getCurrent() {
+        return current;
+    }
+
+    synchronized int getCurrentId() {
+        return current != null ? current.getId() : 0;
+    }
+
+    synchronized void setCurrent(int id) {
+        current = id != 0 ? getDictionary(id) : null;
+
+        if (id != 0 && current == null)
+            PDSImpl.LOGGER.warn("Compression dictionary %s is missing in %s").with(id).with(root);
+    }
+
+    synchronized boolean needsSamples() {
+        return DICTIONARY_SIZE > 0 && current == null && !training;
+    }
+
+    /**
+     * Collects given blocks as samples for training. When enough data is
+     * collected, starts training of a new dictionary in background. Trained
+     * dictionary is stored and made current, then root is notified by
+     * {@link TSRootFolder#dictionaryChanged()}.
+     */
+    void sample(ObjectArrayList<DataBlockInfo> blocks) {
+        final ObjectArrayList<byte[]> collected;
+
+        synchronized (this) {
+            if (!needsSamples())
+                return;
+
+            if (samples == null)
+                samples = new ObjectArrayList<>();
+
+            for (int ii = 0; ii < blocks.size() && samplesSize < SAMPLES_SIZE; ii++) {
+                DataBlock db = (DataBlock) blocks.getObjectNoRangeCheck(ii);
+                int length = Math.min(db.getDataLength(), MAX_SAMPLE_SIZE);
+
+                if (length > 0) {
+                    ByteArray data = db.getData();
+                    samples.add(Arrays.copyOfRange(data.getArray(), data.getOffset(), data.getOffset() + length));
+                    samplesSize += length;
+                }
+            }
+
+            if (samplesSize < SAMPLES_SIZE)
+                return;
+
+            collected = samples;
+            samples = null;
+            samplesSize = 0;
+            training = true;
+        }
+
+        Thread trainer = new Thread(() -> train(collected), "Dictionary Trainer for " + root);
+        trainer.setDaemon(true); // interrupted training leaves temporary file only
+        trainer.start();
+    }
+
+    private void train(ObjectArrayList<byte[]> samples) {
+        CompressionDictionary dictionary = null;
+
+        try {
+            dictionary = CompressionDictionary.train(samples, DICTIONARY_SIZE);
+
+            if (dictionary != null)
+                store(dictionary);
+        } catch (Throwable x) {
+            PDSImpl.LOGGER.warn("Failed to train compression dictionary for %s: %s").with(root).with(x);
+            dictionary = null;
+        }
+
+        synchronized (this) {
+            training = false;
+
+            if (dictionary != null) {
+                loaded.put(dictionary.getId(), dictionary);
+                current = dictionary;
+            }
+        }
+
+        if (dictionary != null) {
+            root.dictionaryChanged();
+
+            PDSImpl.LOGGER.info("Trained compression dictionary %s for %s").with(dictionary.getId()).with(root);
+        }
+    }
+
+    private void store(CompressionDictionary dictionary) throws IOException {
+        AbstractPath folder = root.getPath();
+        AbstractPath tmp = TreeOps.makeTempPath(folder, TSNames.buildDictionaryName(dictionary.getId()));
+
+        try (OutputStream os = tmp.openOutput(dictionary.getData().length)) {
+            os.write(dictionary.getData());
+        }
+
+        TreeOps.finalize(tmp);
+    }
+}
@@ -19,10 +19,13 @@
 
 package org.apache.alfred.storage.tfs;
 
+import org.apache.alfred.storage.tfs.codecs.SymmetricSizeCodec;
+import org.apache.alfred.hf.pub.codec.TimeCodec;
 import org.apache.alfred.util.collections.ByteArray;
 import org.apache.alfred.util.lang.*;
 import org.apache.alfred.util.memory.MemoryDataInput;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  *
@@ -40,6 +43,19 @@ public final class DataBlock implements DataBlockInfo {
     private ByteArray data;
     private boolean isDirty;
 
+    // sparse time index, built on demand
+    private BlockTimeIndex index;
+
+    // length of data already persisted, or -1 if persisted data was modified
+    private int storedLength = -1;
+
+    // messages inserted into the middle of the block, not merged yet
+    private PendingInserts pending;
+
+    // read-only content served from the file mapping, copied to data on first
+    // access; data is null while block is mapped
+    private ByteBuffer mapped;
+
     @Override
     public String toString() {
         return "DataBlock{" + "ts=" + ts + ", entity=" + entity + ", startTime=" + startTime + ", endTime=" + endTime
@@ -47,6 +63,7 @@ public final class DataBlock implements DataBlockInfo {
     }
 
     public int getStartOffset() {
+        ensureHeap();
         return data.getOffset();
     }
 
@@ -62,12 +79,127 @@ public final class DataBlock implements DataBlockInfo {
 
     public void configure(MemoryDataInput mdi, int pos) {
         // block already destroyed
-        if (data == null)
+        if (length < 0)
             throw new IllegalStateException("Block is empty");
 
+        merge();
+
         mdi.setBytes(data.getArray(), data.getOffset(pos), length - pos);
     }
 
+    /**
+     * Returns sparse time index of this block, builds it when required. Given
+     * input will be reconfigured.
+     *
+     * @return index or null, if block is too small to be indexed
+     */
+    BlockTimeIndex getTimeIndex(MemoryDataInput mdi) {
+        if (index == null && length >= BlockTimeIndex.MIN_BLOCK_SIZE) {
+            configure(mdi, 0);
+            index = BlockTimeIndex.build(mdi);
+        }
+
+        return (index);
+    }
+
+    /**
+     * @return true, if the next insert into the middle of the block can be
+     *         deferred
+     */
+    boolean canDeferInsert() {
+        return (PendingInserts.isEnabled() && (pending == null || !pending.isFull()));
+    }
+
+    /**
+     * Finds offset of the message inserted after all messages with time less or
+     * equal to the given one, without merging pending messages. Given input will
+     * be reconfigured.
+     */
+    int findInsertOffset(long nstime, MemoryDataInput mdi) {
+        ensureHeap();
+
+        if (pending == null)
+            getTimeIndex(mdi);
+
+        int mainLength = getMainLength();
+        int start = 0;
+
+        if (index != null && index.size() > 0) {
+            int idx = index.floor(nstime, true);
+
+            if (idx >= 0) {
+                int offset = index.getOffset(idx);
+                start = pending != null ? offset - pending.lengthBefore(offset) : offset;
+            }
+        }
+
+        int base = data.getOffset();
+        int pos = start;
+
+        mdi.setBytes(data.getArray(), base + start, mainLength - start);
+
+        while (mdi.hasAvail()) {
+            if (TimeCodec.readNanoTime(mdi) > nstime)
+                break;
+
+            mdi.skipBytes(1); // type
+            mdi.skipBytes(SymmetricSizeCodec.readForward(mdi));
+            SymmetricSizeCodec.skipForward(mdi);
+
+            pos = mdi.getCurrentOffset() - base;
+        }
+
+        return (pending != null ? pos + pending.lengthUpTo(nstime) : pos);
+    }
+
+    /**
+     * Returns time of the message at the given offset, without merging pending
+     * messages. Given input will be reconfigured.
+     *
+     * @return message time or {@link AccessorBlockLink#NO_NEXT_TIMESTAMP} at the
+     *         end of block
+     */
+    long getTimeAt(int offset, MemoryDataInput mdi) {
+        if (offset >= length)
+            return (AccessorBlockLink.NO_NEXT_TIMESTAMP);
+
+        int pos = offset;
+
+        if (pending != null) {
+            int idx = pending.find(offset);
+
+            if (idx >= 0)
+                return (pending.getTime(idx));
+
+            pos -= pending.lengthBefore(offset);
+        }
+
+        ensureHeap();
+        mdi.setBytes(data.getArray(), data.getOffset(pos), getMainLength() - pos);
+        return (TimeCodec.readNanoTime(mdi));
+    }
+
+    // length of data not including pending messages
+    private int getMainLength() {
+        return (pending != null ? length - pending.size() : length);
+    }
+
+    /*
+     * Merges pending messages into block data
+     */
+    private void merge() {
+        ensureHeap();
+
+        if (pending == null)
+            return;
+
+        if (data.getLength() < length)
+            grow(length, getMainLength());
+
+        pending.mergeInto(data.getArray(), data.getOffset(), length);
+        pending = null;
+    }
+
     private boolean setDirty() {
         if (!isDirty) {
             isDirty = true;
@@ -85,6 +217,35 @@ public final class DataBlock implements DataBlockInfo {
             data.setArray(new byte[length], 0, length); // @ALLOCATION
     }
 
+    /*
+     * Allocates memory of the loaded block on first access, copying content
+     * served from the file mapping, if any
+     */
+    private void ensureHeap() {
+        if (data == null) {
+            alloc();
+
+            if (mapped != null) {
+                mapped.get(data.getArray(), data.getOffset(), Math.min(length, mapped.remaining()));
+                mapped = null;
+            }
+        }
+    }
+
+    /*
+     * Replaces data with the larger buffer, keeping bytes [0, keep)
+     */
+    private ByteArray grow(int newLength, int keep) {
+        ByteArray old = data;
+
+        data = new ByteArray(Util.doubleUntilAtLeast(old.getLength(), newLength)); // @ALLOCATION
+
+        if (keep > 0)
+            ByteArray.arraycopy(old, 0, data, 0, keep);
+
+        return (old);
+    }
+
     public void initNew(TimeSlice ts, int entity) {
         this.ts = ts;
         this.entity = entity;
@@ -92,6 +253,9 @@ public final class DataBlock implements DataBlockInfo {
         length = 0;
         startTime = Long.MAX_VALUE;
         endTime = Long.MIN_VALUE;
+        index = null;
+        pending = null;
+        storedLength = 0;
 
         alloc();
 
@@ -105,42 +269,125 @@ public final class DataBlock implements DataBlockInfo {
         this.length = length;
         this.startTime = startTime;
         this.endTime = endTime;
+        this.index = null;
+        this.pending = null;
+        this.storedLength = length;
+        this.mapped = null;
+
+        // memory is allocated on first access, as block may be served from the
+        // file mapping
+        if (data != null && data.getLength() < length)
+            data = null;
+    }
 
-        alloc();
+    /**
+     * Serves data of the loaded block from the given read-only content of the
+     * file mapping. Block is copied to heap memory when it is modified or read
+     * through {@link MemoryDataInput}, which needs heap arrays.
+     */
+    void setMapped(ByteBuffer content) {
+        assert pending == null;
+
+        data = null;
+        mapped = content;
+    }
+
+    /**
+     * Appends persisted data to the loaded block.
+     */
+    void appendStored(byte[] src, int srcOffset, int appendLength, long startTime, long endTime) {
+        merge();
+
+        int newLength = length + appendLength;
+
+        if (data.getLength() < newLength)
+            grow(newLength, length);
+
+        System.arraycopy(src, srcOffset, data.getArray(), data.getOffset(length), appendLength);
+
+        length = newLength;
+        storedLength = newLength;
+        index = null;
+
+        this.startTime = startTime;
+        this.endTime = endTime;
+    }
+
+    /**
+     * Appends all data of the given block, which belongs to the following time
+     * slice of the same entity. Returns true, if block goes dirty.
+     */
+    boolean appendData(DataBlock from) {
+        merge();
+
+        ByteArray src = from.getData();
+        int appendLength = from.getDataLength();
+        int newLength = length + appendLength;
+
+        if (data.getLength() < newLength)
+            grow(newLength, length);
+
+        ByteArray.arraycopy(src, 0, data, length, appendLength);
+
+        if (length == 0)
+            startTime = from.startTime;
+
+        length = newLength;
+        storedLength = -1;
+        index = null;
+        endTime = from.endTime;
+
+        return setDirty();
     }
 
     /**
      * Insert space in the data block. Returns true, of block goes dirty
+     *
+     * <p>
+     * Messages inserted into the middle of the block are kept aside while
+     * {@link #canDeferInsert()} allows, and merged by a single pass before the
+     * block data is accessed, so series of late messages do not move the block
+     * tail for every message.
+     * </p>
      */
     boolean insertMessage(BlockAccessorBase accessor, long timestamp, byte[] src, int srcOffset, int msgLength,
             int dataOffset) {
         int newLength = length + msgLength;
         int tailSize = length - dataOffset;
-        int oldCapacity = data.getLength();
 
-        if (newLength > oldCapacity) {
+        ensureHeap();
 
-            ByteArray old = data;
+        if (dataOffset < storedLength)
+            storedLength = -1;
 
-            try {
-                // data = PDSFactory.getAllocator().create(Util.doubleUntilAtLeast(oldCapacity,
-                // newLength));
-                data = new ByteArray(Util.doubleUntilAtLeast(oldCapacity, newLength)); // @ALLOCATION
+        if (tailSize == 0) {
+            int mainLength = getMainLength();
 
-                if (dataOffset > 0)
-                    ByteArray.arraycopy(old, 0, data, 0, dataOffset);
+            if (newLength > data.getLength())
+                grow(newLength, mainLength);
 
-                if (tailSize > 0)
-                    ByteArray.arraycopy(old, dataOffset, data, dataOffset + msgLength, tailSize);
-            } finally {
-                // PDSFactory.getAllocator().free(old);
-            }
+            System.arraycopy(src, srcOffset, data.getArray(), data.getOffset(mainLength), msgLength);
+        } else if (canDeferInsert()) {
+            if (pending == null)
+                pending = new PendingInserts(); // @ALLOCATION
+
+            pending.add(timestamp, src, srcOffset, msgLength, dataOffset);
         } else {
-            if (tailSize > 0)
+            merge();
+
+            if (newLength > data.getLength()) {
+
+                ByteArray old = grow(newLength, dataOffset);
+                ByteArray.arraycopy(old, dataOffset, data, dataOffset + msgLength, tailSize);
+            } else {
                 ByteArray.arraycopy(data, dataOffset, data, dataOffset + msgLength, tailSize);
+            }
+
+            System.arraycopy(src, srcOffset, data.getArray(), data.getOffset(dataOffset), msgLength);
         }
 
-        System.arraycopy(src, srcOffset, data.getArray(), data.getOffset(dataOffset), msgLength);
+        if (index != null)
+            index.messageInserted(dataOffset, msgLength, timestamp, tailSize == 0);
 
         length = newLength;
 
@@ -154,6 +401,14 @@ public final class DataBlock implements DataBlockInfo {
     }
 
     public boolean shorten(int splitOffset, long timestamp) {
+        merge();
+
+        if (index != null)
+            index.dataRemoved(splitOffset, length);
+
+        if (splitOffset < storedLength)
+            storedLength = -1;
+
         length = splitOffset;
 
         assert startTime <= timestamp;
@@ -173,11 +428,19 @@ public final class DataBlock implements DataBlockInfo {
 
         assert free > 0;
 
+        merge();
+
         if (length > endOffset)
             ByteArray.arraycopy(data, endOffset, data, startOffset, length - endOffset);
 
         length -= free;
 
+        if (startOffset < storedLength)
+            storedLength = -1;
+
+        if (index != null)
+            index.dataRemoved(startOffset, endOffset);
+
         return setDirty();
     }
 
@@ -187,12 +450,21 @@ public final class DataBlock implements DataBlockInfo {
 
         // PDSFactory.getAllocator().free(data);
         data = null;
+        mapped = null;
+
+        index = null;
+        pending = null;
+        storedLength = -1;
         ts = null;
         isDirty = false; // extremely important for reuse!
     }
 
     public boolean setData(ByteArray src, int offset, int length, long startTime, long endTime) {
         this.length = length;
+        this.index = null;
+        this.pending = null;
+        this.storedLength = -1;
+        this.mapped = null;
 
         alloc();
 
@@ -208,6 +480,21 @@ public final class DataBlock implements DataBlockInfo {
         isDirty = false;
     }
 
+    /**
+     * @return length of data already persisted, or -1 if persisted data was
+     *         modified
+     */
+    int getStoredLength() {
+        return (storedLength);
+    }
+
+    /**
+     * Marks all data of the block as persisted.
+     */
+    void setStored() {
+        storedLength = length;
+    }
+
     @Override
     public long getStartTime() {
         return (startTime);
@@ -218,7 +505,44 @@ public final class DataBlock implements DataBlockInfo {
         return (endTime);
     }
 
+    /**
+     * @return number of messages in the time range [from, to]
+     */
+    int countMessages(MemoryDataInput mdi, long from, long to) {
+        if (length <= 0)
+            return 0;
+
+        configure(mdi, 0);
+
+        return countMessagesFrom(mdi, from, to);
+    }
+
+    /**
+     * Counts messages in the time range [from, to], from the current position of
+     * the input to its end.
+     */
+    static int countMessagesFrom(MemoryDataInput mdi, long from, long to) {
+        int count = 0;
+
+        while (mdi.hasAvail()) {
+            long time = TimeCodec.readNanoTime(mdi);
+
+            if (time > to)
+                break;
+
+            if (time >= from)
+                count++;
+
+            mdi.skipBytes(1); // type
+            mdi.skipBytes(SymmetricSizeCodec.readForward(mdi));
+            SymmetricSizeCodec.skipForward(mdi);
+        }
+
+        return count;
+    }
+
     public ByteArray getData() {
+        merge();
         return (data);
     }
 
@@ -230,6 +554,8 @@ public final class DataBlock implements DataBlockInfo {
         // tsfv.verifyBlock (mdi, -1, entity, startTime, endTime);
         // }
 
+        merge();
+
         os.write(data.getArray(), data.getOffset(), length);
         isDirty = false;
     }
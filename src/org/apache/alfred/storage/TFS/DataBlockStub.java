@@ -20,6 +20,8 @@
 package org.apache.alfred.storage.tfs;
 
 import org.apache.alfred.storage.tfs.*;
+import org.apache.alfred.util.memory.MemoryDataInput;
+
 import java.io.*;
 
 /**
@@ -32,14 +34,31 @@ final class DataBlockStub implements DataBlockInfo {
     private final int offsetInFile;
     private final int dataLength;
     private final int lengthOnDisk;
+    private final int encodedLength;
     private final long startTime;
     private final long endTime;
 
+    // number of messages stored in the base part of the file, or -1 if unknown
+    private int messageCount = -1;
+
+    // data appended to the block by append segments, or null
+    private AppendLog.Tail tail;
+
     public DataBlockStub(int entity, int offsetInFile, int lengthOnDisk, int dataLength, long startTime, long endTime) {
+        this(entity, offsetInFile, lengthOnDisk, dataLength, -1, startTime, endTime);
+    }
+
+    /**
+     * @param encodedLength length of time-encoded data (before compression), or
+     *                      -1 if block is stored as is
+     */
+    public DataBlockStub(int entity, int offsetInFile, int lengthOnDisk, int dataLength, int encodedLength,
+            long startTime, long endTime) {
         this.entity = entity;
         this.offsetInFile = offsetInFile;
         this.dataLength = dataLength;
         this.lengthOnDisk = lengthOnDisk;
+        this.encodedLength = encodedLength;
         this.startTime = startTime;
         this.endTime = endTime;
     }
@@ -51,25 +70,72 @@ final class DataBlockStub implements DataBlockInfo {
 
     @Override
     public int getDataLength() {
+        return tail != null ? dataLength + tail.data.size() : dataLength;
+    }
+
+    /**
+     * @return length of the block data stored in the base part of the file
+     */
+    int getBaseLength() {
         return dataLength;
     }
 
+    long getBaseStartTime() {
+        return startTime;
+    }
+
+    long getBaseEndTime() {
+        return endTime;
+    }
+
+    void setMessageCount(int messageCount) {
+        this.messageCount = messageCount;
+    }
+
+    /**
+     * @return number of messages in the block including appended data, or -1 if
+     *         not stored in the index
+     */
+    int getMessageCount(MemoryDataInput mdi) {
+        if (messageCount < 0 || tail == null)
+            return messageCount;
+
+        mdi.setBytes(tail.data.getInternalBuffer(), 0, tail.data.size());
+
+        return messageCount + DataBlock.countMessagesFrom(mdi, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    AppendLog.Tail getTail() {
+        return tail;
+    }
+
+    void setTail(AppendLog.Tail tail) {
+        this.tail = tail;
+    }
+
     public int getLengthOnDisk() {
         return lengthOnDisk;
     }
 
+    /**
+     * @return length of time-encoded data or -1, if block is not encoded
+     */
+    public int getEncodedLength() {
+        return encodedLength;
+    }
+
     int getOffsetInFile() {
         return offsetInFile;
     }
 
     @Override
     public long getStartTime() {
-        return startTime;
+        return tail != null ? tail.startTime : startTime;
     }
 
     @Override
     public long getEndTime() {
-        return endTime;
+        return tail != null ? tail.endTime : endTime;
     }
 
     @Override
@@ -40,11 +40,12 @@ public final class DataReaderImpl extends BlockAccessorBase
     private EntityFilter currentFilter;
     private boolean forward;
     private boolean pqIsLoaded = false;
-    private ABLPQ pq;
+    private ABLTournament pq;
     private long currentTimestamp = Long.MAX_VALUE;
     private long limit = Long.MAX_VALUE; // limit timestamp
 
     private boolean movePastTSFEnd = true;
+    private boolean sequentialScan = false; // reader walks slices one by one, so prefetch can start at once
 
     // GuardedBy("this")
     private DataReaderPrefetcher prefetcher = null;
@@ -100,9 +101,10 @@ public final class DataReaderImpl extends BlockAccessorBase
             throw new IllegalStateException("Attempt to repeatedly open DataReader");
         }
         this.forward = forward;
+        this.sequentialScan = false;
         currentFilter = filter;
         currentTimestamp = timestamp;
-        pq = new ABLPQ(100, forward);
+        pq = new ABLTournament(128, forward);
 
         try {
             clearPrefetched();
@@ -119,8 +121,9 @@ public final class DataReaderImpl extends BlockAccessorBase
             throw new IllegalStateException("Attempt to repeatedly open DataReader");
         }
         this.forward = true;
-        this.pq = new ABLPQ(100, forward);
+        this.pq = new ABLTournament(128, forward);
         this.movePastTSFEnd = movePastTSFEnd;
+        this.sequentialScan = movePastTSFEnd;
 
         try {
             clearPrefetched();
@@ -237,11 +240,12 @@ public final class DataReaderImpl extends BlockAccessorBase
                 return (false);
 
             if (!pqIsLoaded) {
+                startPrefetch();
                 currentTimeSlice.processBlocks(currentFilter, this);
                 pqIsLoaded = true;
             }
 
-            AccessorBlockLink next = pq.poll();
+            AccessorBlockLink next = pq.peek();
 
             if (next != null) {
                 int state;
@@ -251,10 +255,11 @@ public final class DataReaderImpl extends BlockAccessorBase
                 else
                     state = next.readMessageReverse(processor);
 
-                if (NextState.hasMore(state)) {
-                    // if (!pqIsLoaded && currentFilter.accept(next.getEntity()))
-                    pq.offer(next);
-                }
+                // link stays at the top while it is read, so it is replayed in place
+                if (NextState.hasMore(state))
+                    pq.updateTop();
+                else
+                    pq.poll();
 
                 if (!NextState.hasCurrent(state))
                     continue;
@@ -274,6 +279,38 @@ public final class DataReaderImpl extends BlockAccessorBase
         }
     }
 
+    @Override
+    public synchronized int readBatch(TSMessageConsumer processor, int maxMessages, long maxTimestamp,
+            boolean runs) {
+        int count = 0;
+
+        while (count < maxMessages) {
+            if (currentTimeSlice == null)
+                return (count > 0 ? count : -1);
+
+            if (!pqIsLoaded) {
+                startPrefetch();
+                currentTimeSlice.processBlocks(currentFilter, this);
+                pqIsLoaded = true;
+            }
+
+            AccessorBlockLink next = pq.peek();
+
+            if (next != null) {
+                if (isBeyond(forward, next.getNextTimestamp(), maxTimestamp))
+                    break;
+
+                count += readRun(pq, forward, processor, maxMessages - count, maxTimestamp, runs);
+                continue;
+            }
+
+            if (processSliceEnded(processor) == NextResult.END_OF_CURSOR)
+                return (count > 0 ? count : -1);
+        }
+
+        return (count);
+    }
+
     /**
      * @return null
      */
@@ -441,6 +478,24 @@ public final class DataReaderImpl extends BlockAccessorBase
         return 0;
     }
 
+    /*
+     * Lets prefetcher load next slices while the current one is read.
+     */
+    private void startPrefetch() {
+        if (prefetcher != null) {
+            try {
+                prefetcher.start(currentTimeSlice, sequentialScan);
+            } catch (InterruptedException x) {
+                throw new UncheckedInterruptedException(x);
+            }
+        }
+    }
+
+    @Nullable
+    DataReaderPrefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
     private synchronized void clearPrefetched() {
         if (prefetcher != null) {
             prefetcher.clearPrefetched();
@@ -34,6 +34,7 @@ import java.util.Deque;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Prefetches timeslice data for {@link DataReaderImpl} using dedicated thread
@@ -43,9 +44,14 @@ import java.util.concurrent.atomic.AtomicInteger;
  * Implementation detail: all access to instance of this class is supposed to be
  * guarded by synchronization on {@link DataReaderImpl}.
  *
- * This implementation not starts prefetching till reader tries to access the
- * <b>second</b> slice of data (first call to
- * {@link #getNextTimeSliceToReadPrefetched}.
+ * Prefetch depth is adapted per reader: it follows the ratio of the time needed
+ * to load a slice to the time the reader spends consuming one, so slow storage
+ * gets a deeper queue and fast readers are not starved. Amount of prefetched
+ * data is limited by memory, both per reader and across all readers.
+ *
+ * Prefetching starts when reader tries to access the <b>second</b> slice of
+ * data (first call to {@link #getNextTimeSliceToReadPrefetched}), or at the
+ * first read of a scan known to be sequential (see {@link #start}).
  *
  * @author Alexei Osipov
  */
@@ -56,12 +62,18 @@ public class DataReaderPrefetcher {
     // Queue with future slices.
     // Contract: all slices in queue are checked out to "prefetchAccessor".
     // Contract: whoever removes entries from the queue is responsible to check them
-    // in.
+    // in and to release their memory lease.
     private final Deque<PrefetchHolder> prefetchSliceQueue = new ArrayDeque<>();
 
     // True if we started to prefetch and initialized nextTimeSliceToPrefetch.
     private boolean started = false;
 
+    // True if the last prefetched scan of this reader moved past its first slice.
+    private boolean sequential = false;
+
+    // Number of slices consumed by reader since prefetch was started.
+    private int consumedCount = 0;
+
     // Has null value if we not started yet or already completed entire stream.
     // Contract: if not null then this slice is checked out to "prefetchAccessor".
     // Contract: whoever sets this field to null is responsible to check it in.
@@ -74,17 +86,43 @@ public class DataReaderPrefetcher {
                                               // transferring them to reader
     private final DataReaderImpl reader; // Reader that uses this prefetcher
 
-    private final int maxPrefetchSize; // Maximum number for prefetched slices for this client.
+    private final int initialDepth; // Number of slices to prefetch before consume and load rates are measured.
+    private int depth; // Current number of slices to keep prefetched.
+
+    private long consumeNanos = -1; // Smoothed time spent by reader on a single slice
+    private long loadNanos = -1; // Smoothed time needed to load a single slice
+    private long sliceSize = DEFAULT_SLICE_SIZE; // Smoothed size of a slice, used to lease memory
+    private long lastReturnNanos = 0; // Time when reader got the previous slice
+    private long leasedBytes = 0; // Memory leased by slices in queue of this reader
+
+    private long hits = 0;
+    private long misses = 0;
+    private long stallNanos = 0;
 
     private static final ExecutorService prefetchExecutor = createPrefetchThreadPoolExecutor();
 
-    // Global number of permitted prefetched slices (across all DataReader-s).
-    private static final int totalPrefetchMax = Integer
-            .getInteger("TimeBase.dataReader.prefetch.shared.totalPrefetchMax", 20);
-    // Current number of prefetched slices (across all DataReader-s).
-    private static final AtomicInteger prefetchLeases = new AtomicInteger(0);
+    // Global memory limit (in MB) for prefetched slices (across all DataReader-s).
+    private static final long TOTAL_PREFETCH_MAX_BYTES = Long
+            .getLong("TimeBase.dataReader.prefetch.shared.maxMemoryMB", 512) << 20;
+    // Memory limit (in MB) for prefetched slices of a single DataReader.
+    private static final long READER_PREFETCH_MAX_BYTES = Long.getLong("TimeBase.dataReader.prefetch.maxMemoryMB", 64) << 20;
+    // Upper bound of the prefetch depth of a single DataReader.
+    private static final int MAX_PREFETCH_DEPTH = Integer.getInteger("TimeBase.dataReader.prefetch.maxDepth", 64);
+    // Slice size (in KB) assumed till actual sizes are known.
+    private static final long DEFAULT_SLICE_SIZE = Long.getLong("TimeBase.dataReader.prefetch.sliceSizeKB", 1024) << 10;
+    // Allows to start prefetch at the first read of sequential scans.
+    private static final boolean EAGER_START = Boolean
+            .parseBoolean(System.getProperty("TimeBase.dataReader.prefetch.eager", "true"));
+
+    // Current memory leased by prefetched slices (across all DataReader-s).
+    private static final AtomicLong prefetchedBytes = new AtomicLong(0);
     private static final AtomicInteger totalSlicesInAllQueues = new AtomicInteger(0);
 
+    // Statistics across all DataReader-s.
+    private static final AtomicLong totalHits = new AtomicLong(0);
+    private static final AtomicLong totalMisses = new AtomicLong(0);
+    private static final AtomicLong totalStallNanos = new AtomicLong(0);
+
     @Nonnull
     private static ExecutorService createPrefetchThreadPoolExecutor() {
         int corePoolSize = Integer.getInteger("TimeBase.dataReader.prefetch.shared.corePoolSize", 10); // Number of
@@ -113,9 +151,13 @@ public class DataReaderPrefetcher {
         return executor;
     }
 
+    /**
+     * @param prefetchSize initial prefetch depth (in slices)
+     */
     public DataReaderPrefetcher(DataReaderImpl reader, int prefetchSize) {
         this.reader = reader;
-        this.maxPrefetchSize = prefetchSize;
+        this.initialDepth = Math.max(1, Math.min(prefetchSize, MAX_PREFETCH_DEPTH));
+        this.depth = initialDepth;
         this.prefetchAccessor = new PrefetchAccessor(this.reader);
     }
 
@@ -125,6 +167,24 @@ public class DataReaderPrefetcher {
                 timeSliceCheckedOutToReader);
         nextTimeSliceToPrefetch = reader.getNextTimeSliceToReadNoPrefetch(prevSliceCheckedOutToPrefetcher,
                 prefetchAccessor, false);
+        consumedCount = 0;
+        lastReturnNanos = System.nanoTime();
+    }
+
+    /**
+     * Starts prefetching before reader leaves its first slice, if the scan is
+     * known to be sequential, or the previous scan of this reader was.
+     *
+     * @param currentTimeSlice slice checked out to reader
+     * @param sequentialHint   true if caller knows that scan is sequential
+     */
+    public void start(TimeSlice currentTimeSlice, boolean sequentialHint) throws InterruptedException {
+        if (started || !EAGER_START || !(sequentialHint || sequential))
+            return;
+
+        startFromSlice(currentTimeSlice);
+        started = true;
+        addSlicesToPrefetchQueue();
     }
 
     /**
@@ -133,14 +193,22 @@ public class DataReaderPrefetcher {
      */
     @Nullable
     public TimeSlice getNextTimeSliceToReadPrefetched(TimeSlice currentTimeSlice) throws InterruptedException {
+        long now = System.nanoTime();
+
         if (!started) {
             startFromSlice(currentTimeSlice);
             started = true;
+        } else {
+            consumeNanos = smooth(consumeNanos, now - lastReturnNanos);
         }
+
+        consumedCount++;
+
         addSlicesToPrefetchQueue();
         if (LOG.isEnabled(LogLevel.TRACE)) {
             LOG.trace().append("totalSlicesInAllQueues=").append(totalSlicesInAllQueues.get()).append(" queuedCount=")
-                    .append(prefetchSliceQueue.size()).append(" prefetcher=").append(this.toString()).commit();
+                    .append(prefetchSliceQueue.size()).append(" depth=").append(depth).append(" prefetcher=")
+                    .append(this.toString()).commit();
         }
 
         if (prefetchSliceQueue.isEmpty()) {
@@ -153,12 +221,31 @@ public class DataReaderPrefetcher {
             TimeSlice prefetchedSlice;
             try {
                 if (prefetchHolder.sliceFuture != null) {
+                    if (prefetchHolder.sliceFuture.isDone()) {
+                        hits++;
+                        totalHits.incrementAndGet();
+                    } else {
+                        misses++;
+                        totalMisses.incrementAndGet();
+                    }
+
                     // Wait for prefetch to complete
+                    long waitStart = System.nanoTime();
                     prefetchedSlice = prefetchHolder.sliceFuture.get();
                     assert prefetchedSlice == prefetchHolder.slice;
-                    decrementUsedPrefetchSlots();
+
+                    long waited = System.nanoTime() - waitStart;
+                    stallNanos += waited;
+                    totalStallNanos.addAndGet(waited);
+
+                    if (prefetchHolder.loadNanos > 0)
+                        loadNanos = smooth(loadNanos, prefetchHolder.loadNanos);
+                    if (prefetchHolder.size > 0)
+                        sliceSize = smooth(sliceSize, prefetchHolder.size);
                 } else {
                     // No prefetch for this slice. Just use it.
+                    misses++;
+                    totalMisses.incrementAndGet();
                     prefetchedSlice = prefetchHolder.slice;
                 }
             } catch (CancellationException e) {
@@ -173,13 +260,38 @@ public class DataReaderPrefetcher {
                 throw new RuntimeException(e);
             }
 
+            adaptDepth();
+
             // Change accessor of the slice from "prefetchAccessor" to "reader"
             return reader.store.checkOutTimeSlice(reader, prefetchedSlice);
         } finally {
+            releaseLease(prefetchHolder);
             releasePrefetchedSlice(prefetchHolder.slice);
+            lastReturnNanos = System.nanoTime();
         }
     }
 
+    private static long smooth(long average, long sample) {
+        return (average < 0 ? sample : (average * 3 + sample) >> 2);
+    }
+
+    /**
+     * Adjusts prefetch depth to keep loading ahead of consuming: reader should
+     * not run out of loaded slices while the next one is being loaded.
+     */
+    private void adaptDepth() {
+        if (loadNanos < 0 || consumeNanos < 0)
+            return;
+
+        long required = loadNanos / Math.max(consumeNanos, 1) + 1;
+
+        // grow fast on stalls, shrink slowly otherwise
+        if (required > depth)
+            depth = (int) Math.min(required, MAX_PREFETCH_DEPTH);
+        else if (required < depth)
+            depth = Math.max(depth - 1, 1);
+    }
+
     private void addSlicesToPrefetchQueue() throws InterruptedException {
         assert started;
         if (nextTimeSliceToPrefetch == null) {
@@ -195,8 +307,8 @@ public class DataReaderPrefetcher {
             EntityFilter filter = reader.getCurrentFilter();
 
             while (slicesToAdd > 0 && nextTimeSliceToPrefetch != null) {
-                boolean hasPrefetchLease = incrementUsedPrefetchSlots();
-                if (!hasPrefetchLease) {
+                long lease = acquireLease();
+                if (lease == 0) {
                     if (slicesAdded > 0 || !prefetchSliceQueue.isEmpty()) {
                         // We already have at least one new slice to work on. Do not add new slices for
                         // now.
@@ -210,21 +322,25 @@ public class DataReaderPrefetcher {
                         prefetchAccessor, true);
                 if (!reader.sliceMatchesLimit(next)) {
                     // We reached end or hit the limit. No more data.
+                    releaseLease(lease);
                     releasePrefetchedSlice(nextTimeSliceToPrefetch);
                     nextTimeSliceToPrefetch = null;
                     break;
                 }
 
-                Future<TimeSlice> prefetchTaskFuture;
+                final PrefetchHolder holder = new PrefetchHolder(next, lease);
                 // Add prefetch task
                 try {
-                    prefetchTaskFuture = prefetchExecutor.submit(new Callable<TimeSlice>() {
+                    holder.sliceFuture = prefetchExecutor.submit(new Callable<TimeSlice>() {
                         @Override
                         public TimeSlice call() {
                             if (!cancelFlag.get()) {
-                                // System.out.println("Starting to read slice from thread: " +
-                                // Thread.currentThread().getName());
+                                long start = System.nanoTime();
                                 next.processBlocks(filter, null);
+                                holder.loadNanos = System.nanoTime() - start;
+
+                                if (next instanceof TSFile)
+                                    holder.size = ((TSFile) next).getDataSize();
                             }
 
                             return next;
@@ -233,16 +349,16 @@ public class DataReaderPrefetcher {
                 } catch (RejectedExecutionException e) {
                     // Out of prefetching threads.
                     // Let reader to fetch data in his own thread when he reach this block.
-                    prefetchTaskFuture = null;
+                    holder.sliceFuture = null;
                 }
 
-                prefetchSliceQueue.add(new PrefetchHolder(next, prefetchTaskFuture));
+                prefetchSliceQueue.add(holder);
                 totalSlicesInAllQueues.incrementAndGet();
 
                 slicesToAdd--;
                 slicesAdded++;
 
-                if (prefetchTaskFuture == null) {
+                if (holder.sliceFuture == null) {
                     // That means the prefetch task was not created. Stop for now.
                     // No point in trying to prefetch till there are free threads or slots.
                     break;
@@ -260,21 +376,38 @@ public class DataReaderPrefetcher {
     }
 
     /**
-     * @return true if successfully got lease for new prefetch slot
+     * Leases memory for one more prefetched slice, within reader and global
+     * limits.
+     *
+     * @return number of leased bytes, or 0 if limits are reached
      */
-    private boolean incrementUsedPrefetchSlots() {
-        int newValue = prefetchLeases.incrementAndGet();
-        if (newValue > totalPrefetchMax) {
+    private long acquireLease() {
+        long size = Math.max(sliceSize, 1);
+
+        if (leasedBytes + size > READER_PREFETCH_MAX_BYTES)
+            return 0;
+
+        long newValue = prefetchedBytes.addAndGet(size);
+        if (newValue > TOTAL_PREFETCH_MAX_BYTES) {
             // We got above the limit. Rollback.
-            prefetchLeases.decrementAndGet();
-            return false;
-        } else {
-            return true;
+            prefetchedBytes.addAndGet(-size);
+            return 0;
+        }
+
+        leasedBytes += size;
+        return size;
+    }
+
+    private void releaseLease(long lease) {
+        if (lease > 0) {
+            leasedBytes -= lease;
+            prefetchedBytes.addAndGet(-lease);
         }
     }
 
-    private void decrementUsedPrefetchSlots() {
-        prefetchLeases.decrementAndGet();
+    private void releaseLease(PrefetchHolder holder) {
+        releaseLease(holder.lease);
+        holder.lease = 0;
     }
 
     /**
@@ -299,14 +432,9 @@ public class DataReaderPrefetcher {
             }
         }
         int incompleteDownloads = queuedCount - completedCount;
-        int freeHardPrefetchSlots = maxPrefetchSize - queuedCount;
-        // int freeSoftPrefetchSlots = targetPrefetchSize - queuedCount;
-        // int freePrefetchThreads = maxIncompleteTasksPerReader - incompleteDownloads;
-
-        assert freeHardPrefetchSlots >= 1; // We an get to this method only after we processed a block so there always
-                                           // at least one slot at buffer.
+        int freePrefetchSlots = depth - queuedCount;
 
-        int slicesToAdd = freeHardPrefetchSlots;
+        int slicesToAdd = freePrefetchSlots;
         if (completedHeadCount > 0) {
             // Limit number of new tasks per iteration if we have prepared blocks
             // Note: there a chance that actually we have some non-prefetched blocks. So we
@@ -317,11 +445,10 @@ public class DataReaderPrefetcher {
         // Get rid of negative values
         slicesToAdd = Math.max(slicesToAdd, 0);
 
-        if (slicesToAdd < 0 && queuedCount == 0) {
+        if (slicesToAdd == 0 && queuedCount == 0) {
             // Special case: we not plan to add slices but queue is empty. Empty queue is
             // treated as finished stream. And that is not what we want.
             // So we ensure that at least one slice will be added
-            // Note: that should not happen normally:
             slicesToAdd = 1;
         }
         assert !(queuedCount == 0 && slicesToAdd == 0);
@@ -330,8 +457,8 @@ public class DataReaderPrefetcher {
 
             LOG.debug().append("queuedCount=").append(queuedCount).append(" completedCount=").append(completedCount)
                     .append(" completedHeadCount=").append(completedHeadCount).append(" incompleteDownloads=")
-                    .append(incompleteDownloads).append(" freePrefetchSlots=").append(freeHardPrefetchSlots)
-                    .append(" slicesToAdd=").append(slicesToAdd).commit();
+                    .append(incompleteDownloads).append(" depth=").append(depth).append(" leasedBytes=")
+                    .append(leasedBytes).append(" slicesToAdd=").append(slicesToAdd).commit();
         }
 
         return slicesToAdd;
@@ -351,6 +478,16 @@ public class DataReaderPrefetcher {
             prefetchCancelFlag = null;
         }
 
+        if (started) {
+            sequential = consumedCount > 0;
+
+            if (LOG.isEnabled(LogLevel.DEBUG)) {
+                LOG.debug().append("Prefetch stopped: consumed=").append(consumedCount).append(" hits=")
+                        .append(hits).append(" misses=").append(misses).append(" stallNanos=").append(stallNanos)
+                        .append(" depth=").append(depth).append(" prefetcher=").append(this.toString()).commit();
+            }
+        }
+
         started = false;
 
         try {
@@ -364,6 +501,7 @@ public class DataReaderPrefetcher {
                 } else {
                     slice = prefetchHolder.slice;
                 }
+                releaseLease(prefetchHolder);
                 releasePrefetchedSlice(slice);
                 prefetchSliceQueue.poll();
                 totalSlicesInAllQueues.decrementAndGet();
@@ -377,6 +515,7 @@ public class DataReaderPrefetcher {
             if (!prefetchSliceQueue.isEmpty()) {
                 // We failed to complete tasks and check-in slices try to cancel tasks
                 for (PrefetchHolder prefetchHolder : prefetchSliceQueue) {
+                    releaseLease(prefetchHolder);
                     if (prefetchHolder.sliceFuture != null) {
                         if (prefetchHolder.sliceFuture.cancel(false) || prefetchHolder.sliceFuture.isDone()) {
                             // Cancellation was successful. Now we can check-in the slice.
@@ -395,6 +534,54 @@ public class DataReaderPrefetcher {
         prefetchedSlice.getStore().checkInTimeSlice(prefetchAccessor, prefetchedSlice);
     }
 
+    /**
+     * @return number of slices that were already loaded when reader asked for them
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of slices reader had to wait for, or to load by itself
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return total time (in nanoseconds) reader waited for prefetched slices
+     */
+    public long getStallTimeNanos() {
+        return stallNanos;
+    }
+
+    /**
+     * @return current prefetch depth (in slices)
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    public static long getTotalHits() {
+        return totalHits.get();
+    }
+
+    public static long getTotalMisses() {
+        return totalMisses.get();
+    }
+
+    public static long getTotalStallTimeNanos() {
+        return totalStallNanos.get();
+    }
+
+    /**
+     * @return memory (in bytes) currently leased by prefetched slices of all
+     *         readers
+     */
+    public static long getPrefetchedBytes() {
+        return prefetchedBytes.get();
+    }
+
     /**
      * Stub class that stubs {@link DAPrivate} to use it as TimeSlice owner for
      * checkouts.
@@ -434,12 +621,17 @@ public class DataReaderPrefetcher {
 
     private static final class PrefetchHolder {
         final TimeSlice slice; // Time slice
-        final Future<TimeSlice> sliceFuture; // Future that completes when slice prefetch completes. Result must be same
-                                             // as in "slice" field
+        Future<TimeSlice> sliceFuture; // Future that completes when slice prefetch completes. Result must be same as
+                                       // in "slice" field
+        long lease; // Memory leased for this slice
+
+        // Filled by prefetch task, visible to reader after sliceFuture completes
+        long loadNanos = -1;
+        long size = -1;
 
-        private PrefetchHolder(TimeSlice slice, @Nullable Future<TimeSlice> sliceFuture) {
+        private PrefetchHolder(TimeSlice slice, long lease) {
             this.slice = slice;
-            this.sliceFuture = sliceFuture;
+            this.lease = lease;
         }
     }
 }
@@ -26,6 +26,8 @@ import org.apache.alfred.util.concurrent.*;
 import org.apache.alfred.util.memory.*;
 import org.apache.alfred.util.time.GMT;
 
+import java.util.Arrays;
+
 /**
  * Lock ordering: this, then current time slice.
  */
@@ -38,6 +40,19 @@ public class DataWriterImpl extends BlockAccessorBase implements DataWriter {
 
     private final MemoryDataOutput buffer = new MemoryDataOutput();
 
+    // encoded batch: message times, offsets and lengths in the buffer
+    private long[] batchTimes = new long[0];
+    private int[] batchOffsets = new int[0];
+    private int[] batchLengths = new int[0];
+
+    // (entity, index) pairs and indexes of messages ordered by entity
+    private long[] batchKeys = new long[0];
+    private int[] batchOrder = new int[0];
+
+    // rollups of the associated root and definitions they were created for
+    private RollupWriter[] rollups = new RollupWriter[0];
+    private RollupDefinition[] rollupDefs = null;
+
     public DataWriterImpl() {
     }
 
@@ -67,13 +82,20 @@ public class DataWriterImpl extends BlockAccessorBase implements DataWriter {
         loadHint = null;
         lastWrittenNanos = Long.MAX_VALUE;
 
-        super.close();
+        try {
+            closeRollups();
+        } finally {
+            super.close();
+        }
     }
 
+    /*
+     * Encodes message at the current position of the buffer
+     */
     private int encode(long nstime, int typeCode, TSMessageProducer producer) {
         assert Thread.holdsLock(this);
 
-        buffer.reset();
+        int start = buffer.getPosition();
 
         TimeCodec.writeNanoTime(nstime, buffer);
         buffer.writeUnsignedByte(typeCode);
@@ -92,14 +114,15 @@ public class DataWriterImpl extends BlockAccessorBase implements DataWriter {
         int sizeFieldSize = SymmetricSizeCodec.requiredFieldSize(bodyLength);
         int extend = sizeFieldSize - 1;
 
-        SymmetricSizeCodec.write(posBeforeTail + extend, buffer);
-        int packetLength = buffer.getPosition() + extend;
+        SymmetricSizeCodec.write(posBeforeTail - start + extend, buffer);
+        int packetLength = buffer.getPosition() - start + extend;
 
         if (sizeFieldSize > 1)
             buffer.insertSpace(bodyPos - 1, extend);
 
         buffer.seek(bodyPos - 1);
         SymmetricSizeCodec.write(bodyLength, buffer);
+        buffer.seek(start + packetLength);
 
         return packetLength;
     }
@@ -108,24 +131,139 @@ public class DataWriterImpl extends BlockAccessorBase implements DataWriter {
     public synchronized void insertMessage(int entity, long nstime, int typeCode, TSMessageProducer producer) {
         assertOpen();
 
+        buffer.reset();
         int packetLength = encode(nstime, typeCode, producer);
 
+        awaitLog(insert(entity, nstime, buffer.getBuffer(), 0, packetLength));
+
+        messageWritten(entity, nstime, buffer.getBuffer(), 0, packetLength, true);
+    }
+
+    @Override
+    public synchronized void insertMessages(int[] entities, long[] nstimes, int[] typeCodes,
+            TSMessageProducer[] producers, int offset, int count) {
+        assertOpen();
+
+        if (batchKeys.length < count) {
+            int capacity = Math.max(count, batchKeys.length * 2);
+
+            batchTimes = new long[capacity];
+            batchOffsets = new int[capacity];
+            batchLengths = new int[capacity];
+            batchKeys = new long[capacity];
+            batchOrder = new int[capacity];
+        }
+
+        buffer.reset();
+
+        for (int ii = 0; ii < count; ii++) {
+            int idx = offset + ii;
+
+            batchTimes[ii] = nstimes[idx];
+            batchOffsets[ii] = buffer.getPosition();
+            batchLengths[ii] = encode(nstimes[idx], typeCodes[idx], producers[idx]);
+            batchKeys[ii] = ((long) entities[idx] << 32) | ii;
+        }
+
+        // group by entity, keeping order of messages within the entity
+        Arrays.sort(batchKeys, 0, count);
+
+        for (int ii = 0; ii < count; ii++)
+            batchOrder[ii] = (int) batchKeys[ii];
+
+        byte[] data = buffer.getBuffer();
+        long position = -1;
+
+        for (int from = 0; from < count;) {
+            int entity = (int) (batchKeys[from] >>> 32);
+            int to = from + 1;
+
+            while (to < count && (int) (batchKeys[to] >>> 32) == entity)
+                to++;
+
+            position = Math.max(position, insertGroup(entity, data, from, to));
+            from = to;
+        }
+
+        awaitLog(position);
+
+        for (int ii = 0; ii < count; ii++)
+            messageWritten(entities[offset + ii], batchTimes[ii], data, batchOffsets[ii], batchLengths[ii], true);
+    }
+
+    /*
+     * Inserts messages of a single entity, taking block lock once when all of
+     * them fit into the current time slice.
+     */
+    private long insertGroup(int entity, byte[] data, int from, int to) {
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+        int length = 0;
+
+        for (int ii = from; ii < to; ii++) {
+            int idx = batchOrder[ii];
+
+            minTime = Math.min(minTime, batchTimes[idx]);
+            maxTime = Math.max(maxTime, batchTimes[idx]);
+            length += batchLengths[idx];
+        }
+
+        long position = -1;
+
+        if (currentTimeSlice.tryInsertNotify(loadHint, minTime, maxTime, length)) {
+            for (int ii = from; ii < to; ii++) {
+                int idx = batchOrder[ii];
+                position = logData(entity, batchTimes[idx], data, batchOffsets[idx], batchLengths[idx]);
+            }
+
+            AccessorBlockLink link = getInsertLink(entity);
+            link.insertMessages(data, batchTimes, batchOffsets, batchLengths, batchOrder, from, to);
+        } else {
+            for (int ii = from; ii < to; ii++) {
+                int idx = batchOrder[ii];
+                position = insert(entity, batchTimes[idx], data, batchOffsets[idx], batchLengths[idx]);
+            }
+        }
+
+        return (position);
+    }
+
+    /**
+     * Inserts already encoded message. Used to replay write-ahead log.
+     */
+    synchronized void insertPacket(int entity, long nstime, byte[] packet, int offset, int length) {
+        assertOpen();
+
+        awaitLog(insert(entity, nstime, packet, offset, length));
+
+        messageWritten(entity, nstime, packet, offset, length, false);
+    }
+
+    /**
+     * @return log position of the message, or -1 if log is disabled
+     */
+    private long insert(int entity, long nstime, byte[] packet, int offset, int length) {
+        assert Thread.holdsLock(this);
+
         for (int attempt = 0;; attempt++) {
             if (attempt == MAX_ATTEMPTS)
                 throw new RuntimeException("MAX_ATTEMPTS to insert [" + GMT.formatNanos(nstime) + ", having "
-                        + packetLength + " bytes] into " + currentTimeSlice + " denied; aborting.");
+                        + length + " bytes] into " + currentTimeSlice + " denied; aborting.");
 
             try {
-                currentTimeSlice.insertNotify(loadHint, this, nstime, packetLength);
+                currentTimeSlice.insertNotify(loadHint, this, nstime, length);
             } catch (SwitchTimeSliceException x) {
                 clearLinks();
                 currentTimeSlice = x.newTimeSlice;
                 continue;
             }
 
-            AccessorBlockLink link = getBlockLink(entity, nstime);
-            link.insertMessage(nstime, buffer.getBuffer(), 0, packetLength);
-            break;
+            long position = logData(entity, nstime, packet, offset, length);
+
+            AccessorBlockLink link = getInsertLink(entity);
+            link.insertMessage(nstime, packet, offset, length);
+
+            return (position);
         }
     }
 
@@ -134,6 +272,7 @@ public class DataWriterImpl extends BlockAccessorBase implements DataWriter {
             boolean truncate) {
         assertOpen();
 
+        buffer.reset();
         int packetLength = encode(nstime, typeCode, producer);
 
         for (int attempt = 0;; attempt++) {
@@ -151,15 +290,26 @@ public class DataWriterImpl extends BlockAccessorBase implements DataWriter {
 
             AccessorBlockLink link = getBlockLink(entity, nstime);
             if (link.getEndTime() > nstime) {
-                if (truncate)
+                if (truncate) {
+                    logTruncate(entity, nstime + 1);
                     link.truncate(nstime + 1);
-                else
+
+                    if (store instanceof TSRootFolder)
+                        ((TSRootFolder) store).getLastMessageCache().invalidate(entity);
+                } else {
                     throw new IllegalMessageAppend(link.getEndTime());
+                }
             }
 
+            long position = logData(entity, nstime, buffer.getBuffer(), 0, packetLength);
+
             link.insertMessage(nstime, buffer.getBuffer(), 0, packetLength);
             lastWrittenNanos = nstime;
 
+            awaitLog(position);
+
+            messageWritten(entity, nstime, buffer.getBuffer(), 0, packetLength, true);
+
             break;
         }
     }
@@ -174,8 +324,110 @@ public class DataWriterImpl extends BlockAccessorBase implements DataWriter {
 
     @Override
     public synchronized void truncate(long nstime, int entity) {
-        if (currentTimeSlice != null)
+        if (currentTimeSlice != null) {
+            logTruncate(entity, nstime);
             currentTimeSlice.truncate(nstime, entity, this);
+
+            if (store instanceof TSRootFolder)
+                ((TSRootFolder) store).getLastMessageCache().invalidate(entity);
+        }
+    }
+
+    //
+    // Last messages and rollups
+    //
+
+    /*
+     * Updates last message cache and rollups of the root with inserted message.
+     * Messages replayed from the write-ahead log are not aggregated: rollup
+     * roots have their own log.
+     */
+    private void messageWritten(int entity, long nstime, byte[] packet, int offset, int length, boolean rollup) {
+        if (!(store instanceof TSRootFolder))
+            return;
+
+        TSRootFolder root = (TSRootFolder) store;
+
+        root.getLastMessageCache().update(entity, nstime, packet, offset, length);
+
+        if (!rollup)
+            return;
+
+        RollupDefinition[] defs = root.getRollups();
+
+        if (defs != rollupDefs)
+            updateRollups(defs);
+
+        for (RollupWriter rw : rollups)
+            rw.add(entity, nstime, packet, offset, length);
+    }
+
+    private void updateRollups(RollupDefinition[] defs) {
+        RollupWriter[] updated = new RollupWriter[defs.length];
+
+        for (int ii = 0; ii < defs.length; ii++) {
+            for (RollupWriter rw : rollups) {
+                if (rw != null && rw.getDefinition() == defs[ii])
+                    updated[ii] = rw;
+            }
+
+            if (updated[ii] == null)
+                updated[ii] = new RollupWriter((TSRoot) store, defs[ii]);
+        }
+
+        // close removed rollups
+        for (RollupWriter rw : rollups) {
+            if (!Arrays.asList(updated).contains(rw))
+                rw.close();
+        }
+
+        rollups = updated;
+        rollupDefs = defs;
+    }
+
+    private void closeRollups() {
+        RollupWriter[] closing = rollups;
+
+        rollups = new RollupWriter[0];
+        rollupDefs = null;
+
+        for (RollupWriter rw : closing)
+            rw.close();
+    }
+
+    //
+    // Write-ahead log
+    //
+
+    private WriteAheadLog getLog() {
+        if (currentTimeSlice instanceof TSFile)
+            return (((TSFile) currentTimeSlice).root.getWriteAheadLog());
+
+        return (null);
+    }
+
+    /**
+     * @return log position of the record, or -1 if log is disabled
+     */
+    private long logData(int entity, long nstime, byte[] packet, int offset, int length) {
+        WriteAheadLog wal = getLog();
+
+        if (wal == null)
+            return (-1);
+
+        return (wal.logData((TSFile) currentTimeSlice, entity, nstime, packet, offset, length));
+    }
+
+    private void logTruncate(int entity, long nstime) {
+        WriteAheadLog wal = getLog();
+
+        if (wal != null)
+            awaitLog(wal.logTruncate((TSFile) currentTimeSlice, entity, nstime));
+    }
+
+    private void awaitLog(long position) {
+        if (position >= 0 && WriteAheadLog.SYNC_COMMIT)
+            getLog().await(position);
     }
 
 }
@@ -0,0 +1,244 @@
+/*******************************************************************************
+ *
+ *
+ *  Copyright (c) 2022 Alfred
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.apache.alfred.storage.tfs;
+
+import org.apache.alfred.storage.tfs.pub.EntityFilter;
+import org.apache.alfred.util.collections.generated.IntegerArrayList;
+
+import java.util.Arrays;
+
+/**
+ * Compact set of entities. Entities are grouped by their high 16 bits; each
+ * group is stored either as a sorted array of low 16 bits (sparse groups) or as
+ * a bit set of 65536 bits (dense groups).
+ */
+final class EntityBitmap {
+    // group having more entities is stored as a bit set
+    private static final int MAX_ARRAY_SIZE = 4096;
+
+    private int[] keys = new int[4];
+    private char[][] arrays = new char[4][];
+    private long[][] bitsets = new long[4][];
+    private int[] cardinalities = new int[4];
+    private int numGroups = 0;
+
+    static EntityBitmap of(IntegerArrayList entities) {
+        EntityBitmap bitmap = new EntityBitmap();
+
+        for (int ii = 0; ii < entities.size(); ii++)
+            bitmap.add(entities.getIntegerNoRangeCheck(ii));
+
+        return bitmap;
+    }
+
+    boolean isEmpty() {
+        return numGroups == 0;
+    }
+
+    boolean contains(int entity) {
+        int idx = findGroup(entity >>> 16);
+
+        if (idx < 0)
+            return false;
+
+        char low = (char) entity;
+
+        if (bitsets[idx] != null)
+            return (bitsets[idx][low >>> 6] & (1L << low)) != 0;
+
+        return Arrays.binarySearch(arrays[idx], 0, cardinalities[idx], low) >= 0;
+    }
+
+    /**
+     * @return true if entity was added
+     */
+    boolean add(int entity) {
+        int key = entity >>> 16;
+        int idx = findGroup(key);
+
+        if (idx < 0) {
+            idx = -idx - 1;
+            insertGroup(idx, key);
+        }
+
+        char low = (char) entity;
+
+        if (bitsets[idx] != null) {
+            long[] bits = bitsets[idx];
+            long mask = 1L << low;
+
+            if ((bits[low >>> 6] & mask) != 0)
+                return false;
+
+            bits[low >>> 6] |= mask;
+            cardinalities[idx]++;
+            return true;
+        }
+
+        char[] array = arrays[idx];
+        int size = cardinalities[idx];
+        int pos = Arrays.binarySearch(array, 0, size, low);
+
+        if (pos >= 0)
+            return false;
+
+        pos = -pos - 1;
+
+        if (size == MAX_ARRAY_SIZE) {
+            long[] bits = new long[1024];
+
+            for (int ii = 0; ii < size; ii++)
+                bits[array[ii] >>> 6] |= 1L << array[ii];
+
+            bits[low >>> 6] |= 1L << low;
+
+            bitsets[idx] = bits;
+            arrays[idx] = null;
+        } else {
+            if (size == array.length)
+                arrays[idx] = array = Arrays.copyOf(array, Math.min(size * 2, MAX_ARRAY_SIZE));
+
+            System.arraycopy(array, pos, array, pos + 1, size - pos);
+            array[pos] = low;
+        }
+
+        cardinalities[idx]++;
+        return true;
+    }
+
+    /**
+     * @return true if entity was removed
+     */
+    boolean remove(int entity) {
+        int idx = findGroup(entity >>> 16);
+
+        if (idx < 0)
+            return false;
+
+        char low = (char) entity;
+
+        if (bitsets[idx] != null) {
+            long[] bits = bitsets[idx];
+            long mask = 1L << low;
+
+            if ((bits[low >>> 6] & mask) == 0)
+                return false;
+
+            bits[low >>> 6] &= ~mask;
+        } else {
+            char[] array = arrays[idx];
+            int size = cardinalities[idx];
+            int pos = Arrays.binarySearch(array, 0, size, low);
+
+            if (pos < 0)
+                return false;
+
+            System.arraycopy(array, pos + 1, array, pos, size - pos - 1);
+        }
+
+        if (--cardinalities[idx] == 0)
+            removeGroup(idx);
+
+        return true;
+    }
+
+    /**
+     * @param entities sorted entities
+     * @return true if this set contains any of given entities
+     */
+    boolean containsAny(int[] entities) {
+        for (int entity : entities) {
+            if (contains(entity))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return true if this set contains any entity accepted by the filter
+     */
+    boolean containsAny(EntityFilter filter) {
+        for (int idx = 0; idx < numGroups; idx++) {
+            int high = keys[idx] << 16;
+
+            if (bitsets[idx] != null) {
+                long[] bits = bitsets[idx];
+
+                for (int word = 0; word < bits.length; word++) {
+                    for (long w = bits[word]; w != 0; w &= w - 1) {
+                        if (filter.accept(high | (word << 6) | Long.numberOfTrailingZeros(w)))
+                            return true;
+                    }
+                }
+            } else {
+                char[] array = arrays[idx];
+
+                for (int ii = 0; ii < cardinalities[idx]; ii++) {
+                    if (filter.accept(high | array[ii]))
+                        return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private int findGroup(int key) {
+        return Arrays.binarySearch(keys, 0, numGroups, key);
+    }
+
+    private void insertGroup(int idx, int key) {
+        if (numGroups == keys.length) {
+            int capacity = numGroups * 2;
+
+            keys = Arrays.copyOf(keys, capacity);
+            arrays = Arrays.copyOf(arrays, capacity);
+            bitsets = Arrays.copyOf(bitsets, capacity);
+            cardinalities = Arrays.copyOf(cardinalities, capacity);
+        }
+
+        int tail = numGroups - idx;
+
+        System.arraycopy(keys, idx, keys, idx + 1, tail);
+        System.arraycopy(arrays, idx, arrays, idx + 1, tail);
+        System.arraycopy(bitsets, idx, bitsets, idx + 1, tail);
+        System.arraycopy(cardinalities, idx, cardinalities, idx + 1, tail);
+
+        keys[idx] = key;
+        arrays[idx] = new char[4];
+        bitsets[idx] = null;
+        cardinalities[idx] = 0;
+        numGroups++;
+    }
+
+    private void removeGroup(int idx) {
+        int tail = numGroups - idx - 1;
+
+        System.arraycopy(keys, idx + 1, keys, idx, tail);
+        System.arraycopy(arrays, idx + 1, arrays, idx, tail);
+        System.arraycopy(bitsets, idx + 1, bitsets, idx, tail);
+        System.arraycopy(cardinalities, idx + 1, cardinalities, idx, tail);
+
+        numGroups--;
+        arrays[numGroups] = null;
+        bitsets[numGroups] = null;
+    }
+}
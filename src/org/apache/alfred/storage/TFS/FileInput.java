@@ -20,17 +20,36 @@
 package org.apache.alfred.storage.tfs;
 
 import org.apache.alfred.storage.tfs.pub.AbstractPath;
+import org.apache.alfred.storage.tfs.pub.FSUtils;
 import org.apache.alfred.storage.tfs.codecs.BlockDecompressor;
+import org.apache.alfred.storage.tfs.codecs.TimeDeltaBlockCodec;
 import org.apache.alfred.storage.tfs.DataBlock;
 import org.apache.alfred.util.collections.ByteArray;
 import org.apache.alfred.util.io.IOUtil;
 import org.apache.alfred.util.lang.Util;
 
-import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
+/**
+ * Sequential reader of TSF content. When file system prefers mapping, file is
+ * read through a window mapped from the current position, which is remapped
+ * on demand and unmapped explicitly on close.
+ *
+ * <p>
+ * Uncompressed blocks are served from the mapping: block keeps a read-only
+ * slice of the window and copies it to heap only when it is modified or read
+ * (see {@link DataBlock#setMapped(ByteBuffer)}). Window that serves blocks is
+ * not unmapped explicitly: it is released by GC with the last block using it.
+ * </p>
+ */
 class FileInput {
+
+    // Size of the mapped window
+    static final int MAP_WINDOW = Integer.getInteger("TimeBase.storage.mapWindowKB", 16 << 10) << 10;
+
     private long offsetInFile = -1;
 
     private InputStream is;
@@ -39,30 +58,129 @@ class FileInput {
     private boolean opened = false;
     private ByteArray buffer;
 
+    // time-encoded blocks support
+    private ByteArray encoded;
+    private TimeDeltaBlockCodec codec;
+
+    // mapped window of file content, if file system prefers mapping
+    private AbstractPath path;
+    private long fileLength;
+    private ByteBuffer mapped;
+    private long mappedStart;
+    // true, if blocks are served from the current window
+    private boolean pinned;
+
     void open(AbstractPath path, int offset) throws IOException {
         assert !opened;
 
-        is = path.openInput(offset);
-        bis = BufferedStreamUtil.wrapWithBuffered(is);
+        if (path.getFileSystem().isMappingPreferable()) {
+            this.path = path;
+            this.fileLength = path.length();
+
+            if (map(offset, 0))
+                bis = new MappedInputStream();
+            else
+                this.path = null;
+        }
+
+        if (mapped == null) {
+            is = path.openInput(offset);
+            bis = BufferedStreamUtil.wrapWithBuffered(is);
+        }
 
         opened = true;
         offsetInFile = offset;
     }
 
+    /*
+     * Maps window starting at the given offset, covering at least given length
+     */
+    private boolean map(long offset, int length) throws IOException {
+        unmap();
+
+        int size = (int) Math.min(Math.max(length, MAP_WINDOW), fileLength - offset);
+
+        if (size < length)
+            throw new EOFException(path + ": " + length + " bytes at " + offset + " exceed file length " + fileLength);
+
+        mapped = path.map(offset, size);
+        mappedStart = offset;
+
+        return (mapped != null);
+    }
+
+    private void unmap() {
+        if (mapped != null) {
+            if (!pinned)
+                FSUtils.unmap(mapped);
+
+            mapped = null;
+            pinned = false;
+        }
+    }
+
+    /*
+     * Positions mapping to the given region of file, remapping if necessary
+     */
+    private void position(long offset, int length) throws IOException {
+        if (offset < mappedStart || offset + length > mappedStart + mapped.limit()) {
+            if (!map(offset, length))
+                throw new IOException(path + " can't be mapped anymore");
+        }
+
+        mapped.position((int) (offset - mappedStart));
+    }
     public void read(DataBlock into, int length, BlockDecompressor decompressor) throws IOException {
+        read(into, length, -1, decompressor);
+    }
+
+    /**
+     * @param length        length of block on disk
+     * @param encodedLength length of time-encoded block data, or -1 if block is
+     *                      not encoded
+     */
+    public void read(DataBlock into, int length, int encodedLength, BlockDecompressor decompressor)
+            throws IOException {
+        if (encodedLength < 0 && decompressor == null && mapped != null) {
+            int dataLength = into.getDataLength();
+
+            position(offsetInFile, dataLength);
+
+            ByteBuffer content = mapped.slice();
+            content.limit(dataLength);
+            mapped.position(mapped.position() + dataLength);
+            pinned = true;
+
+            into.setMapped(content);
+            offsetInFile += length;
+            return;
+        }
+
         ByteArray data = into.getData();
 
-        if (decompressor == null) {
-            IOUtil.readFully(bis, data.getArray(), data.getOffset(), into.getDataLength());
-        } else if (length > 0) {
-            if (buffer == null)
-                buffer = new ByteArray(length);
+        if (encodedLength >= 0) {
+            if (length > 0) {
+                buffer = readBuffer(buffer, length);
 
-            if (buffer.getLength() < length)
-                buffer.setArray(new byte[length], 0, length); // @ALLOCATION
+                ByteArray src = buffer;
 
-            int size = IOUtil.readFully(bis, buffer.getArray(), buffer.getOffset(), length);
-            assert size == 0 : ("readFully (" + length + ") != 0");
+                if (decompressor != null) {
+                    encoded = ensureCapacity(encoded, encodedLength);
+                    decompressor.inflate(buffer.getArray(), buffer.getOffset(), length, encoded.getArray(),
+                            encoded.getOffset(), encodedLength);
+                    src = encoded;
+                }
+
+                if (codec == null)
+                    codec = new TimeDeltaBlockCodec();
+
+                codec.decode(src.getArray(), src.getOffset(), encodedLength, into.getStartTime(), data.getArray(),
+                        data.getOffset(), into.getDataLength());
+            }
+        } else if (decompressor == null) {
+            IOUtil.readFully(bis, data.getArray(), data.getOffset(), into.getDataLength());
+        } else if (length > 0) {
+            buffer = readBuffer(buffer, length);
 
             decompressor.inflate(buffer.getArray(), buffer.getOffset(), length, data.getArray(), data.getOffset(),
                     into.getDataLength());
@@ -71,6 +189,30 @@ class FileInput {
         offsetInFile += length;
     }
 
+    private ByteArray readBuffer(ByteArray buffer, int length) throws IOException {
+        buffer = ensureCapacity(buffer, length);
+
+        if (mapped != null) {
+            position(offsetInFile, length);
+            mapped.get(buffer.getArray(), buffer.getOffset(), length);
+        } else {
+            int size = IOUtil.readFully(bis, buffer.getArray(), buffer.getOffset(), length);
+            assert size == 0 : ("readFully (" + length + ") != 0");
+        }
+
+        return buffer;
+    }
+
+    private static ByteArray ensureCapacity(ByteArray buffer, int length) {
+        if (buffer == null)
+            return new ByteArray(length);
+
+        if (buffer.getLength() < length)
+            buffer.setArray(new byte[length], 0, length); // @ALLOCATION
+
+        return buffer;
+    }
+
     public boolean isOpened() {
         return opened;
     }
@@ -82,7 +224,9 @@ class FileInput {
             throw new IllegalStateException("seek back from " + offsetInFile + " to " + offset);
 
         if (skip > 0) {
-            IOUtil.skipFully(bis, skip);
+            if (mapped == null) // mapping is positioned on read
+                IOUtil.skipFully(bis, skip);
+
             offsetInFile = offset;
         }
     }
@@ -97,6 +241,12 @@ class FileInput {
             is = null;
         }
 
+        if (path != null) {
+            unmap();
+            path = null;
+            bis = null;
+        }
+
         if (opened) {
             opened = false;
             return true;
@@ -119,4 +269,52 @@ class FileInput {
     public InputStream getInputStream() {
         return bis;
     }
+
+    /**
+     * Input stream over the mapped file content, moving the window when it is
+     * exhausted. Shares position with the mapping.
+     */
+    private final class MappedInputStream extends InputStream {
+
+        private boolean ensureAvailable() throws IOException {
+            if (mapped.hasRemaining())
+                return true;
+
+            long next = mappedStart + mapped.limit();
+            return next < fileLength && map(next, 0);
+        }
+
+        @Override
+        public int read() throws IOException {
+            return ensureAvailable() ? (mapped.get() & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+
+            if (!ensureAvailable())
+                return -1;
+
+            len = Math.min(len, mapped.remaining());
+            mapped.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0 || !ensureAvailable())
+                return 0;
+
+            int skip = (int) Math.min(n, mapped.remaining());
+            mapped.position(mapped.position() + skip);
+            return skip;
+        }
+
+        @Override
+        public int available() {
+            return mapped.remaining();
+        }
+    }
 }
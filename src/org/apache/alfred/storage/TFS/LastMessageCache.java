@@ -0,0 +1,414 @@
+/*******************************************************************************
+ *
+ *
+ *  Copyright (c) 2022 Alfred
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.apache.alfred.storage.tfs;
+
+import org.apache.alfred.hf.pub.codec.TimeCodec;
+import org.apache.alfred.storage.tfs.codecs.SymmetricSizeCodec;
+import org.apache.alfred.storage.tfs.pub.EntityFilter;
+import org.apache.alfred.storage.tfs.pub.SingleEntityFilter;
+import org.apache.alfred.storage.tfs.pub.TSMessageConsumer;
+import org.apache.alfred.util.collections.generated.IntegerEnumeration;
+import org.apache.alfred.util.collections.generated.IntegerToObjectHashMap;
+import org.apache.alfred.util.memory.MemoryDataInput;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Latest message of every entity of the root. Cache is filled from the newest
+ * time slice on the first request, entities missing there are loaded from the
+ * newest slice having data for them. Writers keep cached entities up to date,
+ * other structure changes invalidate the cache. Entities are guarded by
+ * striped locks, so writers of different entities do not contend.
+ */
+final class LastMessageCache {
+
+    static final boolean ENABLED = Boolean
+            .parseBoolean(System.getProperty("TimeBase.storage.lastMessageCache", "true"));
+
+    private static final ThreadLocal<Entry> SNAPSHOT = ThreadLocal.withInitial(Entry::new);
+    private static final ThreadLocal<MemoryDataInput> INPUT = ThreadLocal.withInitial(MemoryDataInput::new);
+
+    /*
+     * Copy of the encoded message. Entity having no data is cached with
+     * MIN_VALUE time.
+     */
+    private static final class Entry {
+        long time = Long.MIN_VALUE;
+        int type;
+        int bodyOffset;
+        int bodyLength;
+        byte[] packet = new byte[0];
+        int length;
+
+        void set(long time, byte[] src, int offset, int length, MemoryDataInput mdi) {
+            if (packet.length < length)
+                packet = new byte[Math.max(length, packet.length * 2)];
+
+            System.arraycopy(src, offset, packet, 0, length);
+
+            mdi.setBytes(packet, 0, length);
+            TimeCodec.readNanoTime(mdi);
+
+            this.time = time;
+            this.length = length;
+            this.type = mdi.readUnsignedByte();
+            this.bodyLength = SymmetricSizeCodec.readForward(mdi);
+            this.bodyOffset = mdi.getCurrentOffset();
+        }
+
+        void copyTo(Entry to) {
+            if (to.packet.length < length)
+                to.packet = new byte[length];
+
+            System.arraycopy(packet, 0, to.packet, 0, length);
+
+            to.time = time;
+            to.type = type;
+            to.bodyOffset = bodyOffset;
+            to.bodyLength = bodyLength;
+            to.length = length;
+        }
+    }
+
+    /*
+     * Cached and pending entries of entities hashed to the stripe. Writers and
+     * readers of an entity lock its stripe only. Loads and clear() lock all
+     * stripes in order, so the fields guarded by all stripes can be read under
+     * any one of them.
+     */
+    @SuppressWarnings("serial")
+    private static final class Stripe extends ReentrantLock {
+        final IntegerToObjectHashMap<Entry> entries = new IntegerToObjectHashMap<>();
+        final MemoryDataInput parser = new MemoryDataInput();
+
+        // messages written to uncached entities while loads are in progress
+        final IntegerToObjectHashMap<Entry> pending = new IntegerToObjectHashMap<>();
+    }
+
+    private static final int STRIPES = Integer.highestOneBit(
+            Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+
+    private final TSRootFolder root;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    // @GuardedBy("all stripes")
+    private boolean loaded = false;
+    private int loading = 0;
+
+    private final AtomicLong version = new AtomicLong();
+
+    LastMessageCache(TSRootFolder root) {
+        this.root = root;
+
+        for (int ii = 0; ii < STRIPES; ii++)
+            stripes[ii] = new Stripe();
+    }
+
+    private Stripe stripe(int entity) {
+        return stripes[entity & (STRIPES - 1)];
+    }
+
+    private void lockAll() {
+        for (Stripe stripe : stripes)
+            stripe.lock();
+    }
+
+    private void unlockAll() {
+        for (int ii = STRIPES - 1; ii >= 0; ii--)
+            stripes[ii].unlock();
+    }
+
+    /**
+     * Delivers the latest message of the entity to the consumer.
+     *
+     * @return false, if entity has no data
+     */
+    boolean getLast(int entity, TSMessageConsumer consumer) {
+        Entry snapshot = SNAPSHOT.get();
+
+        if (!copy(entity, snapshot))
+            load(entity, snapshot);
+
+        if (snapshot.time == Long.MIN_VALUE)
+            return false;
+
+        MemoryDataInput mdi = INPUT.get();
+        mdi.setBytes(snapshot.packet, snapshot.bodyOffset, snapshot.bodyLength);
+
+        consumer.process(entity, snapshot.time, snapshot.type, snapshot.bodyLength, mdi);
+        return true;
+    }
+
+    /**
+     * Called by writers after the message was inserted.
+     */
+    void update(int entity, long nstime, byte[] packet, int offset, int length) {
+        Stripe stripe = stripe(entity);
+
+        stripe.lock();
+
+        try {
+            // unknown entity may have later data in storage
+            Entry entry = stripe.entries.get(entity, null);
+
+            if (entry != null) {
+                if (nstime >= entry.time)
+                    entry.set(nstime, packet, offset, length, stripe.parser);
+            } else if (loading > 0) {
+                // load in progress may have read the storage before this message
+                Entry update = stripe.pending.get(entity, null);
+
+                if (update == null)
+                    stripe.pending.put(entity, update = new Entry());
+
+                if (nstime >= update.time)
+                    update.set(nstime, packet, offset, length, stripe.parser);
+            }
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    void invalidate(int entity) {
+        Stripe stripe = stripe(entity);
+
+        stripe.lock();
+
+        try {
+            stripe.entries.remove(entity);
+            version.incrementAndGet();
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    void clear() {
+        lockAll();
+
+        try {
+            for (Stripe stripe : stripes)
+                stripe.entries.clear();
+
+            loaded = false;
+            version.incrementAndGet();
+        } finally {
+            unlockAll();
+        }
+    }
+
+    private boolean copy(int entity, Entry to) {
+        Stripe stripe = stripe(entity);
+
+        stripe.lock();
+
+        try {
+            Entry entry = stripe.entries.get(entity, null);
+
+            if (entry == null)
+                return false;
+
+            entry.copyTo(to);
+            return true;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    private void load(int entity, Entry out) {
+        long loadVersion;
+        boolean bulk;
+
+        lockAll();
+
+        try {
+            loadVersion = version.get();
+            bulk = ENABLED && !loaded;
+            loading++;
+        } finally {
+            unlockAll();
+        }
+
+        IntegerToObjectHashMap<Entry> found = new IntegerToObjectHashMap<>();
+
+        try {
+            find(entity, bulk, found);
+        } catch (RuntimeException | Error x) {
+            lockAll();
+
+            try {
+                loadFinished();
+            } finally {
+                unlockAll();
+            }
+            throw x;
+        }
+
+        // merge and publish atomically with respect to writers
+        lockAll();
+
+        try {
+            merge(entity, found);
+            loadFinished();
+
+            Entry result = found.get(entity, null);
+            if (result == null) {
+                result = new Entry();
+                found.put(entity, result);
+            }
+
+            result.copyTo(out);
+
+            // data was changed by others while loading
+            if (!ENABLED || version.get() != loadVersion)
+                return;
+
+            if (bulk)
+                loaded = true;
+
+            IntegerEnumeration keys = found.keys();
+            while (keys.hasMoreElements()) {
+                int id = keys.nextIntElement();
+                Entry entry = found.get(id, null);
+                IntegerToObjectHashMap<Entry> entries = stripe(id).entries;
+                Entry current = entries.get(id, null);
+
+                // writers may have updated entity after we have read it
+                if (current == null || entry.time > current.time)
+                    entries.put(id, entry);
+            }
+        } finally {
+            unlockAll();
+        }
+    }
+
+    private void loadFinished() {
+        if (--loading == 0) {
+            for (Stripe stripe : stripes)
+                stripe.pending.clear();
+        }
+    }
+
+    /*
+     * Applies messages written while loading to the found entries. Entity
+     * missing in the found ones may have later data in older files, unless it
+     * is the requested one.
+     */
+    private void merge(int entity, IntegerToObjectHashMap<Entry> found) {
+        for (Stripe stripe : stripes) {
+            IntegerEnumeration keys = stripe.pending.keys();
+            while (keys.hasMoreElements()) {
+                int id = keys.nextIntElement();
+                Entry update = stripe.pending.get(id, null);
+                Entry entry = found.get(id, null);
+
+                if (entry != null ? update.time >= entry.time : id == entity) {
+                    Entry copy = new Entry();
+                    update.copyTo(copy);
+                    found.put(id, copy);
+                }
+            }
+        }
+    }
+
+    private void find(int entity, boolean bulk, IntegerToObjectHashMap<Entry> found) {
+        MemoryDataInput mdi = INPUT.get();
+
+        root.acquireSharedLock();
+
+        try {
+            if (bulk) {
+                TSFile last = TreeOps.getLastFile(root, EntityFilter.ALL);
+
+                if (last != null) {
+                    try {
+                        last.processBlocks(EntityFilter.ALL, new AbstractBlockProcessor() {
+                            @Override
+                            public void process(DataBlock block) {
+                                Entry entry = scan(block, mdi);
+                                if (entry != null)
+                                    found.put(block.getEntity(), entry);
+                            }
+                        });
+                    } finally {
+                        TreeOps.unuse(last);
+                    }
+                }
+            }
+
+            if (found.get(entity, null) == null) {
+                TSFile last = TreeOps.getLastFile(root, new SingleEntityFilter(entity));
+
+                if (last != null) {
+                    try {
+                        DataBlock block = last.getBlock(entity, false);
+                        Entry entry = block != null ? scan(block, mdi) : null;
+
+                        if (entry != null)
+                            found.put(entity, entry);
+                    } finally {
+                        TreeOps.unuse(last);
+                    }
+                }
+            }
+        } catch (IOException iox) {
+            throw new UncheckedIOException(iox);
+        } finally {
+            root.releaseSharedLock();
+        }
+    }
+
+    /*
+     * @return copy of the last message of the block, or null if block is empty
+     */
+    private static Entry scan(DataBlock block, MemoryDataInput mdi) {
+        synchronized (block) {
+            if (block.getDataLength() <= 0)
+                return null;
+
+            block.configure(mdi, 0);
+
+            int lastOffset = -1;
+            long lastTime = Long.MIN_VALUE;
+
+            while (mdi.hasAvail()) {
+                int offset = mdi.getCurrentOffset();
+                long time = TimeCodec.readNanoTime(mdi);
+
+                mdi.skipBytes(1); // type
+                mdi.skipBytes(SymmetricSizeCodec.readForward(mdi));
+                SymmetricSizeCodec.skipForward(mdi);
+
+                lastOffset = offset;
+                lastTime = time;
+            }
+
+            int length = mdi.getCurrentOffset() - lastOffset;
+
+            byte[] data = block.getData().getArray();
+
+            Entry entry = new Entry();
+            entry.set(lastTime, data, lastOffset, length, mdi);
+            return entry;
+        }
+    }
+}
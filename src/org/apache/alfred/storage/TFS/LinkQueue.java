@@ -0,0 +1,39 @@
+/*******************************************************************************
+ *
+ *
+ *  Copyright (c) 2022 Alfred
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.apache.alfred.storage.tfs;
+
+/**
+ * Queue of links merged by readers, ordered by next timestamp, then entity.
+ * Both orders are reversed for descending reads.
+ */
+interface LinkQueue {
+
+    void offer(AccessorBlockLink link);
+
+    AccessorBlockLink peek();
+
+    AccessorBlockLink poll();
+
+    /**
+     * Restores order after the next timestamp of the top link was changed in
+     * place.
+     */
+    void updateTop();
+}
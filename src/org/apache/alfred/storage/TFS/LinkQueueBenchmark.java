@@ -0,0 +1,162 @@
+/*******************************************************************************
+ *
+ *
+ *  Copyright (c) 2022 Alfred
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.apache.alfred.storage.tfs;
+
+import org.apache.alfred.storage.codecs.SymmetricSizeCodec;
+import org.apache.alfred.storage.tfs.pub.TSMessageConsumer;
+import org.apache.alfred.hf.pub.codec.TimeCodec;
+import org.apache.alfred.util.collections.ByteArray;
+import org.apache.alfred.util.memory.MemoryDataInput;
+import org.apache.alfred.util.memory.MemoryDataOutput;
+
+import java.util.Random;
+
+/**
+ * Compares {@link ABLPQ} and {@link ABLTournament} merging the same in-memory
+ * blocks of 10, 1k and 100k entities, the way DataReaderImpl reads them. Both
+ * queues run the same loop over {@link LinkQueue}, so only the queue differs.
+ * See fs/tools/LinkMergeBenchmark for the end-to-end reader benchmark.
+ *
+ * <pre>
+ * LinkQueueBenchmark [totalMessages] [iterations]
+ * </pre>
+ */
+final class LinkQueueBenchmark {
+    private static final int[] NUM_ENTITIES = { 10, 1000, 100000 };
+
+    private static final class Counter implements TSMessageConsumer {
+        long count;
+        long sum;
+
+        @Override
+        public void process(int entity, long timestampNanos, int type, int bodyLength, MemoryDataInput mdi) {
+            count++;
+            sum += timestampNanos;
+        }
+
+        @Override
+        public boolean processRealTime(long timestampNanos) {
+            return false;
+        }
+
+        @Override
+        public boolean isRealTime() {
+            return false;
+        }
+
+        @Override
+        public boolean realTimeAvailable() {
+            return false;
+        }
+    }
+
+    private final DataWriterImpl accessor = new DataWriterImpl();
+    private final DataBlock[] blocks;
+
+    private LinkQueueBenchmark(int numEntities, int numMessages) {
+        Random rnd = new Random(numEntities);
+        MemoryDataOutput out = new MemoryDataOutput();
+
+        blocks = new DataBlock[numEntities];
+
+        for (int ii = 0; ii < numEntities; ii++) {
+            long time = rnd.nextInt(1000);
+            long startTime = time;
+
+            out.reset();
+
+            for (int jj = 0; jj < numMessages; jj++) {
+                int start = out.getPosition();
+
+                TimeCodec.writeNanoTime(time, out);
+                out.writeUnsignedByte(1);
+                SymmetricSizeCodec.write(8, out);
+                out.writeLong(jj);
+                SymmetricSizeCodec.write(out.getPosition() - start, out);
+
+                time += 1 + rnd.nextInt(numEntities);
+            }
+
+            DataBlock db = new DataBlock();
+            db.init(null, ii, out.getPosition(), startTime, time);
+
+            ByteArray data = db.getData();
+            System.arraycopy(out.getBuffer(), 0, data.getArray(), data.getOffset(), out.getPosition());
+
+            blocks[ii] = db;
+        }
+    }
+
+    private long run(LinkQueue queue, boolean forward, Counter counter) {
+        for (DataBlock block : blocks) {
+            AccessorBlockLink link = new AccessorBlockLink(accessor, null, block);
+
+            if (forward)
+                link.forward(Long.MIN_VALUE);
+            else
+                link.forwardToLast(Long.MAX_VALUE);
+
+            queue.offer(link);
+        }
+
+        long start = System.nanoTime();
+
+        for (AccessorBlockLink next; (next = queue.peek()) != null;) {
+            int state = forward ? next.readMessageForward(counter) : next.readMessageReverse(counter);
+
+            if (NextState.hasMore(state))
+                queue.updateTop();
+            else
+                queue.poll();
+        }
+
+        return (System.nanoTime() - start);
+    }
+
+    public static void main(String[] args) {
+        int totalMessages = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        for (int numEntities : NUM_ENTITIES) {
+            LinkQueueBenchmark test = new LinkQueueBenchmark(numEntities, Math.max(1, totalMessages / numEntities));
+
+            for (boolean forward : new boolean[] { true, false }) {
+                Counter heap = new Counter();
+                Counter tree = new Counter();
+                long heapTime = Long.MAX_VALUE;
+                long treeTime = Long.MAX_VALUE;
+
+                for (int ii = 0; ii < iterations; ii++) {
+                    heapTime = Math.min(heapTime, test.run(new ABLPQ(100, forward), forward, heap));
+                    treeTime = Math.min(treeTime, test.run(new ABLTournament(128, forward), forward, tree));
+                }
+
+                if (heap.count != tree.count || heap.sum != tree.sum)
+                    throw new AssertionError("Merged messages differ: " + heap.count + " vs. " + tree.count);
+
+                long perRun = heap.count / iterations;
+
+                System.out.printf("%7d entities %-8s ABLPQ: %6.1f ns/msg  ABLTournament: %6.1f ns/msg%n",
+                        numEntities, forward ? "forward" : "reverse", (double) heapTime / perRun,
+                        (double) treeTime / perRun);
+            }
+        }
+    }
+}
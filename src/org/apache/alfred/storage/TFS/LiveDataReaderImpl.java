@@ -325,6 +325,96 @@ public final class LiveDataReaderImpl extends BlockAccessorBase
         }
     }
 
+    @Override
+    public synchronized int readBatch(TSMessageConsumer processor, int maxMessages, long maxTimestamp,
+            boolean runs) {
+        int count = 0;
+
+        while (count < maxMessages) {
+            if (currentTimeSlice == null) {
+                try {
+                    // filter should be empty to not miss any symbol updates
+                    currentTimeSlice = store.checkOutTimeSliceForRead(this, currentTimestamp, null);
+
+                    pqIsLoaded = false;
+                } catch (InterruptedException e) {
+                    throw new UncheckedInterruptedException(e);
+                }
+            }
+
+            if (currentTimeSlice == null) {
+                // do not wait for live data when something was read
+                if (count > 0)
+                    break;
+
+                if (endOfHistoricalData(processor))
+                    return (REAL_TIME);
+                else
+                    continue;
+            }
+
+            if (!pqIsLoaded) {
+                currentTimeSlice.processBlocks(currentFilter, this);
+                pqIsLoaded = true;
+            }
+
+            // process waiting blocks (for live mode)
+            for (;;) {
+                DataBlock block = pollWaiting();
+
+                if (block == null)
+                    break;
+
+                if (currentFilter.accept(block.getEntity()))
+                    process(block);
+            }
+
+            AccessorBlockLink next = pq.peek();
+
+            if (next != null) {
+                if (isBeyond(forward, next.getNextTimestamp(), maxTimestamp))
+                    break;
+
+                count += readRun(pq, forward, processor, maxMessages - count, maxTimestamp, runs);
+                continue;
+            }
+
+            TimeSlice nextSlice;
+            try {
+                nextSlice = currentTimeSlice.getStore().getNextTimeSliceToRead(this, currentTimeSlice, null, forward,
+                        true);
+            } catch (InterruptedException x) {
+                throw new UncheckedInterruptedException(x);
+            }
+
+            if (nextSlice == null) {
+                if (count > 0)
+                    break;
+
+                if (endOfHistoricalData(processor))
+                    return (REAL_TIME);
+                else
+                    continue;
+            } else {
+
+                release(currentTimeSlice);
+
+                if (limit != Long.MAX_VALUE && limit != Long.MIN_VALUE) {
+                    // check limits for the both modes
+                    if ((forward && nextSlice.getStartTimestamp() >= limit)
+                            || (!forward && nextSlice.getLimitTimestamp() > limit)) {
+                        release(nextSlice);
+                        return (count > 0 ? count : -1);
+                    }
+                }
+            }
+
+            currentTimeSlice = nextSlice;
+        }
+
+        return (count);
+    }
+
     private void release(TimeSlice slice) {
         if (slice != null)
             slice.getStore().checkInTimeSlice(this, slice);
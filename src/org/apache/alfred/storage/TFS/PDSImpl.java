@@ -73,6 +73,11 @@ class PDSImpl implements PersistentDataStore {
     private final ObjectArrayList<TSFile> dirtyFiles = new ObjectArrayList<>();
     private int numWriters = NUMBER_OF_WRITERS;
     private final List<TSFWriterThread> writers = new ObjectArrayList<>(numWriters);
+    private TSFCompactorThread compactor = null;
+    private volatile TSFSplitterThread splitter = null;
+
+    // Open roots, used by compactor
+    private final ObjectArrayList<TSRootFolder> openRoots = new ObjectArrayList<>();
 
     private final Object cleanLock = new Object();
     private int numDirtyFiles = 0;
@@ -143,9 +148,55 @@ class PDSImpl implements PersistentDataStore {
             writers.add(wt);
         }
 
+        if (TSFCompactorThread.ENABLED && !isReadOnly) {
+            compactor = new TSFCompactorThread(this);
+            compactor.start();
+        }
+
+        if (SliceSizePolicy.ENABLED && !isReadOnly) {
+            TSFSplitterThread st = new TSFSplitterThread();
+            st.start();
+            splitter = st;
+        }
+
         isStarted = true;
     }
 
+    /**
+     * Schedules background split of the file of the given root containing given
+     * timestamp.
+     *
+     * @return false, if background splits are not supported
+     */
+    boolean scheduleSplit(TSRootFolder root, long timestamp) {
+        TSFSplitterThread st = splitter;
+
+        if (st == null)
+            return false;
+
+        st.schedule(root, timestamp);
+        return true;
+    }
+
+    /**
+     * Starts additional writer threads, so that given number of files (one per
+     * shard of a sharded root) may be stored concurrently.
+     */
+    synchronized void ensureWriterThreads(int n) {
+        if (!isStarted)
+            return;
+
+        for (int ii = writers.size(); ii < n; ii++) {
+            TSFWriterThread wt = new TSFWriterThread(this, ii);
+
+            wt.start();
+
+            writers.add(wt);
+        }
+
+        numWriters = Math.max(numWriters, n);
+    }
+
     public synchronized void startShutdown() {
         shutdownInProgress = true;
     }
@@ -157,6 +208,16 @@ class PDSImpl implements PersistentDataStore {
         for (TSFWriterThread wt : writers)
             wt.interrupt();
 
+        if (compactor != null) {
+            compactor.interrupt();
+            compactor = null;
+        }
+
+        if (splitter != null) {
+            splitter.interrupt();
+            splitter = null;
+        }
+
         shutdownInProgress = false;
 
         if (localExecutor != null)
@@ -250,6 +311,25 @@ class PDSImpl implements PersistentDataStore {
         return (true);
     }
 
+    void rootOpened(TSRootFolder root) {
+        synchronized (openRoots) {
+            if (!openRoots.contains(root))
+                openRoots.add(root);
+        }
+    }
+
+    void rootClosed(TSRootFolder root) {
+        synchronized (openRoots) {
+            openRoots.remove(root);
+        }
+    }
+
+    TSRootFolder[] getOpenRoots() {
+        synchronized (openRoots) {
+            return openRoots.toArray(new TSRootFolder[openRoots.size()]);
+        }
+    }
+
     synchronized void writerFailed(TSFWriterThread writer) {
         writers.remove(writer);
         if (writers.size() == 0) {
@@ -283,6 +363,18 @@ class PDSImpl implements PersistentDataStore {
         return new TSRootFolder(this, path.getFileSystem(), path.getPathString(), space);
     }
 
+    @Override
+    public ShardedTSRoot createShardedRoot(@Nullable String space, AbstractPath[] paths) {
+        checkIsStarted();
+        checkShutdown();
+
+        TSRootFolder[] shards = new TSRootFolder[paths.length];
+        for (int ii = 0; ii < paths.length; ii++)
+            shards[ii] = new TSRootFolder(this, paths[ii].getFileSystem(), paths[ii].getPathString(), space);
+
+        return new ShardedTSRoot(this, shards);
+    }
+
     @Override
     public DataWriter createWriter() {
         checkIsStarted();
@@ -301,6 +393,20 @@ class PDSImpl implements PersistentDataStore {
         return live ? new LiveDataReaderImpl(exe) : new DataReaderImpl(exe);
     }
 
+    @Override
+    public DataReader createParallelReader(int numPartitions, boolean ordered) {
+        checkIsStarted();
+        checkShutdown();
+
+        QuickExecutor exe = this.executor != null ? executor : localExecutor;
+
+        DataReader[] readers = new DataReader[numPartitions];
+        for (int ii = 0; ii < numPartitions; ii++)
+            readers[ii] = new DataReaderImpl(exe);
+
+        return new ParallelDataReader(readers, ordered);
+    }
+
     @Override
     public void setEmergencyShutdownControl(EmergencyShutdownControl shutdownControl) {
         this.shutdownControl = shutdownControl;
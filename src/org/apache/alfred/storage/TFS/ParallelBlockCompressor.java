@@ -0,0 +1,230 @@
+/*******************************************************************************
+ *
+ *
+ *  Copyright (c) 2022 Alfred
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.apache.alfred.storage.tfs;
+
+import org.apache.alfred.storage.tfs.codecs.BlockCompressor;
+import org.apache.alfred.storage.tfs.codecs.BlockCompressorFactory;
+import org.apache.alfred.storage.tfs.codecs.CompressionDictionary;
+import org.apache.alfred.util.collections.ByteArray;
+import org.apache.alfred.util.collections.generated.ByteArrayList;
+import org.apache.alfred.util.collections.generated.ObjectArrayList;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Compresses data blocks of a single TSF concurrently. Blocks are split into
+ * contiguous chunks; every chunk is deflated into its own buffer by a
+ * compressor owned by the worker thread, so chunk buffers written one after
+ * another produce exactly the same layout as sequential compression.
+ */
+final class ParallelBlockCompressor {
+
+    // Number of threads used to compress blocks of one file. Zero disables
+    // parallel compression.
+    static final int NUMBER_OF_THREADS = Integer.getInteger("TimeBase.storage.compression.threads", 0);
+
+    // Files with smaller number of entities are compressed sequentially.
+    static final int MIN_ENTITIES = Integer.getInteger("TimeBase.storage.compression.parallelMinEntities", 64);
+
+    // Minimal amount of uncompressed data handled by a single task.
+    private static final int MIN_CHUNK_SIZE = Integer.getInteger("TimeBase.storage.compression.parallelChunkSize",
+            1 << 16);
+
+    private static volatile ForkJoinPool pool;
+
+    private static ForkJoinPool getPool() {
+        ForkJoinPool p = pool;
+
+        if (p == null) {
+            synchronized (ParallelBlockCompressor.class) {
+                if ((p = pool) == null)
+                    pool = p = new ForkJoinPool(NUMBER_OF_THREADS, CompressorThread::new, null, false);
+            }
+        }
+
+        return (p);
+    }
+
+    static boolean isEnabled(int numEntities) {
+        return (NUMBER_OF_THREADS > 0 && numEntities >= MIN_ENTITIES);
+    }
+
+    private static final class CompressorThread extends ForkJoinWorkerThread {
+        private BlockCompressor compressor;
+        private String compression;
+        private CompressionDictionary dictionary;
+
+        CompressorThread(ForkJoinPool pool) {
+            super(pool);
+            setName("TSF Compressor Thread #" + getPoolIndex());
+            setDaemon(true);
+        }
+
+        BlockCompressor getCompressor(String compression, CompressionDictionary dictionary) {
+            if (!compression.equals(this.compression) || dictionary != this.dictionary) {
+                if (this.compressor != null)
+                    this.compressor.close();
+
+                this.compressor = BlockCompressorFactory.createCompressor(compression, dictionary,
+                        new ByteArrayList());
+                this.compression = compression;
+                this.dictionary = dictionary;
+            }
+
+            return (compressor);
+        }
+    }
+
+    private final ObjectArrayList<DataBlockInfo> blocks;
+    private final String compression;
+    private final CompressionDictionary dictionary;
+    private final ByteArrayList encoded;
+    private final int[] encodedLengths;
+    private final int[] encodedOffsets;
+    private final int[] compLengths;
+    private final ObjectArrayList<ByteArrayList> chunks = new ObjectArrayList<>();
+    private int totalSize = 0;
+
+    /**
+     * @param encoded        time-encoded data of all blocks, or null if blocks are
+     *                       compressed as is
+     * @param encodedLengths lengths of time-encoded blocks
+     */
+    ParallelBlockCompressor(ObjectArrayList<DataBlockInfo> blocks, String compression,
+            CompressionDictionary dictionary, ByteArrayList encoded, int[] encodedLengths) {
+        this.blocks = blocks;
+        this.compression = compression;
+        this.dictionary = dictionary;
+        this.encoded = encoded;
+        this.encodedLengths = encodedLengths;
+        this.compLengths = new int[blocks.size()];
+
+        if (encoded != null) {
+            encodedOffsets = new int[encodedLengths.length];
+
+            for (int ii = 1; ii < encodedLengths.length; ii++)
+                encodedOffsets[ii] = encodedOffsets[ii - 1] + encodedLengths[ii - 1];
+        } else {
+            encodedOffsets = null;
+        }
+    }
+
+    /**
+     * Compresses all blocks and fills compressed lengths.
+     *
+     * @return compressed lengths of the blocks, in the order of blocks
+     */
+    int[] compress() {
+        int numBlocks = blocks.size();
+        long dataSize = 0;
+
+        for (int ii = 0; ii < numBlocks; ii++)
+            dataSize += blocks.getObjectNoRangeCheck(ii).getDataLength();
+
+        int numChunks = (int) Math.max(1, Math.min(NUMBER_OF_THREADS * 4L, dataSize / MIN_CHUNK_SIZE));
+        numChunks = Math.min(numChunks, numBlocks);
+
+        ChunkTask[] tasks = new ChunkTask[numChunks];
+
+        int from = 0;
+        for (int ii = 0; ii < numChunks; ii++) {
+            int to = (int) ((long) numBlocks * (ii + 1) / numChunks);
+            tasks[ii] = new ChunkTask(from, to);
+            from = to;
+        }
+
+        getPool().invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+
+        for (ChunkTask task : tasks) {
+            chunks.add(task.out);
+            totalSize += task.out.size();
+        }
+
+        return (compLengths);
+    }
+
+    /**
+     * @return total size of compressed data
+     */
+    int getCompressedSize() {
+        return (totalSize);
+    }
+
+    void writeTo(OutputStream os) throws IOException {
+        for (int ii = 0; ii < chunks.size(); ii++) {
+            ByteArrayList chunk = chunks.getObjectNoRangeCheck(ii);
+            os.write(chunk.getInternalBuffer(), 0, chunk.size());
+        }
+    }
+
+    private final class ChunkTask extends RecursiveAction {
+        private final int from;
+        private final int to;
+        private final ByteArrayList out = new ByteArrayList();
+
+        ChunkTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            BlockCompressor compressor;
+            boolean owned = false;
+
+            Thread thread = Thread.currentThread();
+            if (thread instanceof CompressorThread)
+                compressor = ((CompressorThread) thread).getCompressor(compression, dictionary);
+            else { // caller thread may help to execute tasks
+                compressor = BlockCompressorFactory.createCompressor(compression, dictionary, out);
+                owned = true;
+            }
+
+            try {
+                for (int ii = from; ii < to; ii++) {
+                    DataBlock db = (DataBlock) blocks.getObjectNoRangeCheck(ii);
+
+                    if (db.getDataLength() == 0)
+                        compLengths[ii] = 0;
+                    else if (encoded != null)
+                        compLengths[ii] = compressor.deflate(encoded.getInternalBuffer(), encodedOffsets[ii],
+                                encodedLengths[ii], out);
+                    else {
+                        ByteArray data = db.getData();
+                        compLengths[ii] = compressor.deflate(data.getArray(), data.getOffset(), db.getDataLength(),
+                                out);
+                    }
+                }
+            } finally {
+                if (owned)
+                    compressor.close();
+            }
+        }
+    }
+}
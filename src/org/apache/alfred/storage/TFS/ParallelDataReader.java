@@ -0,0 +1,648 @@
+/*******************************************************************************
+ *
+ *
+ *  Copyright (c) 2022 Alfred
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.apache.alfred.storage.tfs;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.alfred.storage.tfs.pub.DataReader;
+import org.apache.alfred.storage.tfs.pub.EntityFilter;
+import org.apache.alfred.storage.tfs.pub.TSMessageConsumer;
+import org.apache.alfred.storage.tfs.pub.TSRef;
+import org.apache.alfred.storage.tfs.pub.TSRoot;
+import org.apache.alfred.util.concurrent.UncheckedInterruptedException;
+import org.apache.alfred.util.memory.MemoryDataInput;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Historical reader that splits entities into partitions, each one read by its
+ * own {@link DataReader} on its own thread. Partition threads copy decoded
+ * messages into chunks and hand them over to the consumer thread through
+ * single-producer/single-consumer rings, without locks.
+ *
+ * <p>
+ * In ordered mode partition streams are merged by time (then by entity), so
+ * messages are delivered in the same order as by a single reader. In unordered
+ * mode chunks are delivered as soon as they are ready, so messages are ordered
+ * only within an entity.
+ * </p>
+ *
+ * <p>
+ * Associated with a {@link ShardedTSRoot} having as many shards as partitions,
+ * every partition reads its own shard.
+ * </p>
+ *
+ * Not thread-safe: all methods are supposed to be called by a single thread.
+ */
+public class ParallelDataReader implements DataReader {
+
+    // Number of chunks buffered by a partition
+    static final int RING_SIZE = Integer.getInteger("TimeBase.parallelReader.ringSize", 8);
+
+    // Maximum number of messages in a chunk
+    static final int CHUNK_MESSAGES = Integer.getInteger("TimeBase.parallelReader.chunkMessages", 1024);
+
+    // Size of chunk data, after which chunk is handed over
+    static final int CHUNK_SIZE = Integer.getInteger("TimeBase.parallelReader.chunkSize", 1 << 18);
+
+    // Number of messages requested from the partition reader at once
+    private static final int BATCH_SIZE = 64;
+
+    private static final int SPINS = 100;
+    private static final long PARK_NANOS = 50000;
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("parallel-reader-%d").setDaemon(true).build());
+
+    /**
+     * Accepts entities of the base filter that fall into the given partition.
+     */
+    static final class PartitionEntityFilter implements EntityFilter {
+        private final EntityFilter base;
+        private final int partition;
+        private final int numPartitions;
+
+        PartitionEntityFilter(EntityFilter base, int partition, int numPartitions) {
+            this.base = base;
+            this.partition = partition;
+            this.numPartitions = numPartitions;
+        }
+
+        private boolean inPartition(int entity) {
+            return (Math.floorMod(entity, numPartitions) == partition);
+        }
+
+        @Override
+        public boolean acceptAll() {
+            return (false);
+        }
+
+        @Override
+        public boolean accept(int entity) {
+            return (inPartition(entity) && base.accept(entity));
+        }
+
+        @Override
+        public long acceptFrom(int entity) {
+            return (inPartition(entity) ? base.acceptFrom(entity) : Long.MAX_VALUE);
+        }
+
+        @Override
+        public boolean restrictAll() {
+            return (base.restrictAll());
+        }
+    }
+
+    private static final class Chunk {
+        final int[] entities = new int[CHUNK_MESSAGES];
+        final long[] times = new long[CHUNK_MESSAGES];
+        final int[] types = new int[CHUNK_MESSAGES];
+        final int[] offsets = new int[CHUNK_MESSAGES];
+        final int[] lengths = new int[CHUNK_MESSAGES];
+        byte[] data = new byte[CHUNK_SIZE];
+        int size;
+        int length;
+
+        void clear() {
+            size = 0;
+            length = 0;
+        }
+
+        boolean isFull() {
+            return (size == CHUNK_MESSAGES || length >= CHUNK_SIZE);
+        }
+
+        void add(int entity, long time, int type, byte[] src, int offset, int bodyLength) {
+            if (length + bodyLength > data.length)
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + bodyLength));
+
+            System.arraycopy(src, offset, data, length, bodyLength);
+
+            entities[size] = entity;
+            times[size] = time;
+            types[size] = type;
+            offsets[size] = length;
+            lengths[size] = bodyLength;
+
+            size++;
+            length += bodyLength;
+        }
+    }
+
+    private final class Partition implements Runnable, TSMessageConsumer {
+        final DataReader reader;
+        final Chunk[] ring = new Chunk[RING_SIZE];
+
+        // number of chunks consumed, written by consumer thread
+        final AtomicLong head = new AtomicLong();
+        // number of chunks published, written by partition thread
+        final AtomicLong tail = new AtomicLong();
+
+        // set by partition thread after the last chunk is published
+        volatile boolean done;
+        volatile Throwable error;
+        volatile boolean stopped;
+
+        Future<?> future;
+
+        // consumer side
+        Chunk current;
+        int position;
+
+        // partition side
+        Chunk filling;
+
+        Partition(DataReader reader) {
+            this.reader = reader;
+
+            for (int ii = 0; ii < RING_SIZE; ii++)
+                ring[ii] = new Chunk();
+        }
+
+        @Override
+        public void run() {
+            long maxTimestamp = forward ? Long.MAX_VALUE : Long.MIN_VALUE;
+            boolean runs = !ordered;
+
+            try {
+                boolean end = false;
+                int spins = 0;
+
+                while (!end && !stopped) {
+                    long t = tail.get();
+
+                    if (t - head.get() >= RING_SIZE) {
+                        spins = idle(spins);
+                        continue;
+                    }
+
+                    spins = 0;
+
+                    Chunk chunk = filling = ring[(int) (t % RING_SIZE)];
+                    chunk.clear();
+
+                    while (!stopped && !chunk.isFull()) {
+                        int count = reader.readBatch(this, Math.min(BATCH_SIZE, CHUNK_MESSAGES - chunk.size),
+                                maxTimestamp, runs);
+
+                        if (count == DataReader.END_OF_DATA) {
+                            end = true;
+                            break;
+                        }
+
+                        // live reader has no data for now - publish what was read
+                        if (count == DataReader.REAL_TIME)
+                            break;
+                    }
+
+                    // messages already read from the reader are published even when stopped
+                    if (chunk.size > 0)
+                        tail.set(t + 1);
+                }
+
+                if (end)
+                    done = true;
+            } catch (Throwable x) {
+                error = x;
+                done = true;
+            }
+        }
+
+        @Override
+        public void process(int entity, long timestampNanos, int type, int bodyLength, MemoryDataInput mdi) {
+            filling.add(entity, timestampNanos, type, mdi.getBytes(), mdi.getCurrentOffset(), bodyLength);
+        }
+
+        @Override
+        public boolean processRealTime(long timestampNanos) {
+            return false;
+        }
+
+        @Override
+        public boolean isRealTime() {
+            return false;
+        }
+
+        @Override
+        public boolean realTimeAvailable() {
+            return false;
+        }
+
+        boolean hasCurrent() {
+            return (current != null);
+        }
+
+        /**
+         * Takes next published chunk, if any.
+         *
+         * @return false if partition has no more messages or no chunk is ready yet
+         */
+        boolean poll() {
+            if (current != null)
+                return true;
+
+            boolean finished = done;
+            long h = head.get();
+
+            if (tail.get() > h) {
+                current = ring[(int) (h % RING_SIZE)];
+                position = 0;
+                return true;
+            }
+
+            if (finished && error != null)
+                throw new IllegalStateException("Partition reader failed", error);
+
+            return false;
+        }
+
+        /**
+         * @return true if partition has no more chunks and will not publish them
+         */
+        boolean isFinished() {
+            return (current == null && done && tail.get() == head.get());
+        }
+
+        long getTime() {
+            return (current.times[position]);
+        }
+
+        int getEntity() {
+            return (current.entities[position]);
+        }
+
+        void advance() {
+            if (++position == current.size) {
+                current = null;
+                head.set(head.get() + 1);
+            }
+        }
+
+        void stop() {
+            Future<?> f = future;
+
+            if (f == null)
+                return;
+
+            stopped = true;
+
+            try {
+                f.get();
+            } catch (InterruptedException x) {
+                throw new UncheckedInterruptedException(x);
+            } catch (ExecutionException x) {
+                throw new RuntimeException(x.getCause());
+            } finally {
+                future = null;
+                stopped = false;
+            }
+        }
+
+        void reset() {
+            stop();
+
+            head.set(0);
+            tail.set(0);
+            current = null;
+            done = false;
+            error = null;
+        }
+
+        void start() {
+            if (future == null && !done)
+                future = executor.submit(this);
+        }
+    }
+
+    private final Partition[] partitions;
+    private final boolean ordered;
+    private final MemoryDataInput mdi = new MemoryDataInput();
+
+    private boolean forward = true;
+    private EntityFilter filter = EntityFilter.ALL;
+    private boolean running = false;
+    private int next = 0;
+
+    // partitions read shards of a sharded root instead of splitting entities
+    private boolean sharded = false;
+
+    /**
+     * @param readers underlying historical readers, one per partition
+     * @param ordered true to merge partitions into a single time-ordered stream
+     */
+    public ParallelDataReader(DataReader[] readers, boolean ordered) {
+        if (readers.length == 0)
+            throw new IllegalArgumentException("No partitions");
+
+        this.ordered = ordered;
+        this.partitions = new Partition[readers.length];
+
+        for (int ii = 0; ii < readers.length; ii++)
+            partitions[ii] = new Partition(readers[ii]);
+    }
+
+    public int getNumPartitions() {
+        return (partitions.length);
+    }
+
+    public boolean isOrdered() {
+        return (ordered);
+    }
+
+    private EntityFilter partition(EntityFilter filter, int partition) {
+        if (sharded)
+            return (filter);
+
+        return (new PartitionEntityFilter(filter != null ? filter : EntityFilter.ALL, partition, partitions.length));
+    }
+
+    /*
+     * Stops partition threads, keeping already buffered messages.
+     */
+    private void halt() {
+        if (running) {
+            for (Partition p : partitions)
+                p.stop();
+
+            running = false;
+        }
+    }
+
+    /*
+     * Stops partition threads and discards buffered messages.
+     */
+    private void discard() {
+        for (Partition p : partitions)
+            p.reset();
+
+        running = false;
+        next = 0;
+    }
+
+    private void ensureRunning() {
+        if (!running) {
+            for (Partition p : partitions)
+                p.start();
+
+            running = true;
+        }
+    }
+
+    private static int idle(int spins) {
+        if (spins < SPINS)
+            Thread.yield();
+        else
+            LockSupport.parkNanos(PARK_NANOS);
+
+        return (spins + 1);
+    }
+
+    private boolean precedes(Partition p1, Partition p2) {
+        long t1 = p1.getTime();
+        long t2 = p2.getTime();
+
+        if (t1 != t2)
+            return (forward ? t1 < t2 : t1 > t2);
+
+        return (forward ? p1.getEntity() < p2.getEntity() : p1.getEntity() > p2.getEntity());
+    }
+
+    /**
+     * @return partition holding the next message to deliver, or null at the end
+     */
+    private Partition select() {
+        ensureRunning();
+
+        return (ordered ? selectOrdered() : selectAny());
+    }
+
+    private Partition selectOrdered() {
+        Partition best = null;
+
+        for (Partition p : partitions) {
+            int spins = 0;
+
+            // head of every active partition is needed to choose the next message
+            while (!p.poll()) {
+                if (p.isFinished())
+                    break;
+
+                spins = idle(spins);
+            }
+
+            if (p.hasCurrent() && (best == null || precedes(p, best)))
+                best = p;
+        }
+
+        return (best);
+    }
+
+    private Partition selectAny() {
+        int spins = 0;
+
+        for (;;) {
+            boolean finished = true;
+
+            for (int ii = 0; ii < partitions.length; ii++) {
+                Partition p = partitions[next];
+
+                if (p.poll())
+                    return (p);
+
+                finished &= p.isFinished();
+                next = (next + 1) % partitions.length;
+            }
+
+            if (finished)
+                return (null);
+
+            spins = idle(spins);
+        }
+    }
+
+    /**
+     * @return false if message was rejected by the current filter
+     */
+    private boolean deliver(Partition p, TSMessageConsumer processor) {
+        Chunk chunk = p.current;
+        int pos = p.position;
+        int entity = chunk.entities[pos];
+        boolean accepted = filter.accept(entity);
+
+        if (accepted) {
+            mdi.setBytes(chunk.data, chunk.offsets[pos], chunk.lengths[pos]);
+            processor.process(entity, chunk.times[pos], chunk.types[pos], chunk.lengths[pos], mdi);
+        }
+
+        p.advance();
+        return (accepted);
+    }
+
+    private boolean isBeyond(long timestamp, long maxTimestamp) {
+        return (forward ? timestamp > maxTimestamp : timestamp < maxTimestamp);
+    }
+
+    //
+    // DataReader IMPLEMENTATION
+    //
+    @Override
+    public void associate(TSRoot root) {
+        discard();
+
+        sharded = root instanceof ShardedTSRoot;
+
+        if (sharded) {
+            ShardedTSRoot shards = (ShardedTSRoot) root;
+
+            if (shards.getNumShards() != partitions.length)
+                throw new IllegalArgumentException(root + " has " + shards.getNumShards() + " shards instead of "
+                        + partitions.length);
+
+            for (int ii = 0; ii < partitions.length; ii++)
+                partitions[ii].reader.associate(shards.getShard(ii));
+        } else {
+            for (Partition p : partitions)
+                p.reader.associate(root);
+        }
+    }
+
+    @Override
+    public void open(TSRef timeSlice, long timestamp, boolean movePastTSFEnd, EntityFilter filter) {
+        if (sharded)
+            throw new UnsupportedOperationException("Time slice belongs to a single shard");
+
+        discard();
+
+        this.forward = true;
+        this.filter = filter != null ? filter : EntityFilter.ALL;
+
+        for (int ii = 0; ii < partitions.length; ii++)
+            partitions[ii].reader.open(timeSlice, timestamp, movePastTSFEnd, partition(filter, ii));
+    }
+
+    @Override
+    public void open(long timestamp, boolean forward, EntityFilter filter) {
+        discard();
+
+        this.forward = forward;
+        this.filter = filter != null ? filter : EntityFilter.ALL;
+
+        for (int ii = 0; ii < partitions.length; ii++)
+            partitions[ii].reader.open(timestamp, forward, partition(filter, ii));
+    }
+
+    @Override
+    public void setFilter(EntityFilter filter) {
+        halt();
+
+        // buffered messages are filtered on delivery
+        this.filter = filter != null ? filter : EntityFilter.ALL;
+
+        for (int ii = 0; ii < partitions.length; ii++)
+            partitions[ii].reader.setFilter(partition(filter, ii));
+    }
+
+    @Override
+    public void setLimitTimestamp(long timestamp) {
+        halt();
+
+        for (Partition p : partitions)
+            p.reader.setLimitTimestamp(timestamp);
+    }
+
+    @Override
+    public long getStartTimestamp() {
+        long result = Long.MAX_VALUE;
+
+        for (Partition p : partitions)
+            result = Math.min(result, p.reader.getStartTimestamp());
+
+        return (result);
+    }
+
+    @Override
+    public long getEndTimestamp() {
+        long result = Long.MIN_VALUE;
+
+        for (Partition p : partitions)
+            result = Math.max(result, p.reader.getEndTimestamp());
+
+        return (result);
+    }
+
+    @Override
+    public boolean readNext(TSMessageConsumer processor) {
+        for (;;) {
+            Partition p = select();
+
+            if (p == null)
+                return (false);
+
+            if (deliver(p, processor))
+                return (true);
+        }
+    }
+
+    @Override
+    public int readBatch(TSMessageConsumer processor, int maxMessages, long maxTimestamp, boolean runs) {
+        int count = 0;
+
+        while (count < maxMessages) {
+            Partition p = select();
+
+            if (p == null)
+                return (count > 0 ? count : -1);
+
+            if (isBeyond(p.getTime(), maxTimestamp))
+                break;
+
+            if (deliver(p, processor))
+                count++;
+        }
+
+        return (count);
+    }
+
+    @Override
+    public void reopen(long timestamp) {
+        discard();
+
+        for (Partition p : partitions)
+            p.reader.reopen(timestamp);
+    }
+
+    public void setAvailabilityListener(Runnable lnr) {
+        for (Partition p : partitions)
+            p.reader.setAvailabilityListener(lnr);
+    }
+
+    @Override
+    public void close() {
+        discard();
+
+        for (Partition p : partitions)
+            p.reader.close();
+    }
+}
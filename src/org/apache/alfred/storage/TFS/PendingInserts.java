@@ -0,0 +1,178 @@
+/*******************************************************************************
+ *
+ *
+ *  Copyright (c) 2022 Alfred
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.apache.alfred.storage.tfs;
+
+import org.apache.alfred.util.collections.generated.ByteArrayList;
+
+import java.util.Arrays;
+
+/**
+ * Messages inserted into the middle of a data block, which are not merged into
+ * block data yet. Every message has its final (logical) offset in the block;
+ * messages are ordered by offset and therefore by time. Block data with pending
+ * messages removed is contiguous, so merging all pending messages is a single
+ * backward pass over the block. Guarded by the owning block.
+ */
+final class PendingInserts {
+
+    // Maximum number of pending messages of a block. Zero disables deferred inserts.
+    static final int MAX_COUNT = Integer.getInteger("TimeBase.storage.pendingInserts.maxCount", 64);
+
+    // Maximum size (in bytes) of pending messages of a block
+    static final int MAX_SIZE = Integer.getInteger("TimeBase.storage.pendingInserts.maxSize", 1 << 16);
+
+    private long[] times = new long[8];
+    private int[] offsets = new int[8];
+    private int[] starts = new int[8];
+    private int[] lengths = new int[8];
+    private int count = 0;
+
+    // data of messages, in order of arrival
+    private final ByteArrayList data = new ByteArrayList();
+
+    static boolean isEnabled() {
+        return (MAX_COUNT > 0);
+    }
+
+    boolean isFull() {
+        return (count >= MAX_COUNT || data.size() >= MAX_SIZE);
+    }
+
+    /**
+     * @return total length of pending messages
+     */
+    int size() {
+        return (data.size());
+    }
+
+    /**
+     * Adds message placed after all messages with time less or equal to the
+     * given time.
+     *
+     * @param offset logical offset of the message
+     */
+    void add(long time, byte[] src, int srcOffset, int length, int offset) {
+        int pos = 0;
+
+        while (pos < count && offsets[pos] < offset)
+            pos++;
+
+        if (count == times.length) {
+            int capacity = count * 2;
+
+            times = Arrays.copyOf(times, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+        }
+
+        int tail = count - pos;
+
+        if (tail > 0) {
+            System.arraycopy(times, pos, times, pos + 1, tail);
+            System.arraycopy(offsets, pos, offsets, pos + 1, tail);
+            System.arraycopy(starts, pos, starts, pos + 1, tail);
+            System.arraycopy(lengths, pos, lengths, pos + 1, tail);
+
+            for (int ii = pos + 1; ii <= count; ii++)
+                offsets[ii] += length;
+        }
+
+        int start = data.size();
+
+        data.ensureCapacity(start + length);
+        System.arraycopy(src, srcOffset, data.getInternalBuffer(), start, length);
+        data.setSize(start + length);
+
+        times[pos] = time;
+        offsets[pos] = offset;
+        starts[pos] = start;
+        lengths[pos] = length;
+        count++;
+    }
+
+    /**
+     * @return total length of pending messages with time less or equal to the
+     *         given time
+     */
+    int lengthUpTo(long time) {
+        int result = 0;
+
+        for (int ii = 0; ii < count && times[ii] <= time; ii++)
+            result += lengths[ii];
+
+        return (result);
+    }
+
+    /**
+     * @return total length of pending messages located before the given offset
+     */
+    int lengthBefore(int offset) {
+        int result = 0;
+
+        for (int ii = 0; ii < count && offsets[ii] < offset; ii++)
+            result += lengths[ii];
+
+        return (result);
+    }
+
+    /**
+     * @return index of the pending message at the given offset, or -1
+     */
+    int find(int offset) {
+        for (int ii = 0; ii < count && offsets[ii] <= offset; ii++) {
+            if (offsets[ii] == offset)
+                return (ii);
+        }
+
+        return (-1);
+    }
+
+    long getTime(int idx) {
+        return (times[idx]);
+    }
+
+    /**
+     * Merges pending messages into block data.
+     *
+     * @param block  block data, capacity should fit total length
+     * @param base   offset of the block data in array
+     * @param length total (logical) length of the block
+     */
+    void mergeInto(byte[] block, int base, int length) {
+        byte[] src = data.getInternalBuffer();
+
+        int from = length - data.size(); // end of block data not merged yet
+        int to = length;
+
+        for (int ii = count - 1; ii >= 0; ii--) {
+            int end = offsets[ii] + lengths[ii];
+            int move = to - end;
+
+            from -= move;
+            System.arraycopy(block, base + from, block, base + end, move);
+            System.arraycopy(src, starts[ii], block, base + offsets[ii], lengths[ii]);
+
+            to = offsets[ii];
+        }
+
+        assert from == to;
+    }
+}
@@ -25,8 +25,14 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 import java.util.stream.Stream;
 
+import org.apache.commons.lang3.NotImplementedException;
+
 import org.apache.alfred.storage.tfs.pub.AbstractPath;
 import org.apache.alfred.storage.tfs.pub.FSUtils;
 import org.apache.alfred.storage.tfs.codecs.TSNames;
@@ -41,17 +47,31 @@ import static org.apache.alfred.storage.tfs.PDSImpl.LOGGER;
 
 public class Restorer {
 
+    // Number of threads restoring independent subtrees. One restores sequentially.
+    static final int NUMBER_OF_THREADS = Integer.getInteger("TimeBase.storage.restorer.threads",
+            Runtime.getRuntime().availableProcessors());
+
     private final DiagPrinter printer = new DiagPrinter();
 
     // static final Logger LOGGER =
     // Logger.getLogger("deltix.qsrv.dtb.store.impl.Restorer");
 
+    private final AbstractPath root;
     private final AbstractPath propertyFile;
     private final boolean isReadOnly;
 
-    private Restorer(AbstractPath root, boolean isReadOnly) {
+    // Folder fingerprints recorded by previous restore, or null if not used
+    private final Properties verified;
+    // Folder fingerprints after this restore
+    private final Properties restored = new Properties();
+
+    private ForkJoinPool pool;
+
+    private Restorer(AbstractPath root, boolean isReadOnly, boolean useStamps) {
+        this.root = root;
         this.isReadOnly = isReadOnly;
         this.propertyFile = root.append(TSNames.ROOT_PROPS_NAME);
+        this.verified = useStamps ? new Properties() : null;
     }
 
     /*
@@ -59,11 +79,21 @@ public class Restorer {
      */
 
     public static void restore(TSRoot root, boolean isReadOnly) throws IOException {
-        Restorer restorer = new Restorer(root.getPath(), isReadOnly);
-        restorer.restoreFolders(root.getPath(), true);
+        AbstractPath path = root.getPath();
+
+        if (path.append(TSNames.CLEAN_SHUTDOWN_NAME).exists()) {
+            LOGGER.info("Root %s was closed cleanly. Skipping verification.").with(path.getPathString());
+        } else {
+            Restorer restorer = new Restorer(path, isReadOnly, true);
+            restorer.loadStamps();
+            restorer.restoreTree(path, true);
+
+            if (!isReadOnly)
+                restorer.storeStamps();
+        }
 
         // root MUST contains index file
-        AbstractPath indexPath = root.getPath().append(TSNames.INDEX_NAME);
+        AbstractPath indexPath = path.append(TSNames.INDEX_NAME);
         if (!indexPath.exists())
             new IndexInfo().saveTo(indexPath);
     }
@@ -72,27 +102,166 @@ public class Restorer {
      * Verify given path for the errors and restore consistency
      */
     public static void restore(AbstractPath path) throws IOException {
-        new Restorer(path, false).restoreFolders(path, false);
+        new Restorer(path, false, false).restoreTree(path, false);
     }
 
-    private void restoreFolders(AbstractPath entry, boolean isFirst) throws IOException {
+    private void restoreTree(AbstractPath entry, boolean isFirst) throws IOException {
+        if (NUMBER_OF_THREADS <= 1) {
+            restoreFolders(entry, isFirst);
+            return;
+        }
 
-        restoreTempFolders(entry, isFirst);
+        pool = new ForkJoinPool(NUMBER_OF_THREADS);
+
+        try {
+            pool.invoke(new RestoreTask(entry, isFirst));
+        } catch (UncheckedIOException x) {
+            throw x.getCause();
+        } finally {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /**
+     * Restores given folder and its subtree. Subfolders following the first
+     * non-empty one do not depend on each other and are restored concurrently.
+     * 
+     * @return true, if neither folder nor its subtree were changed since they were
+     *         verified last time
+     */
+    private boolean restoreFolders(AbstractPath entry, boolean isFirst) throws IOException {
+        String key = verified != null ? getStampKey(entry) : null;
+        String fingerprint = key != null ? getFingerprint(entry) : null;
+        boolean unchanged = fingerprint != null && fingerprint.equals(verified.getProperty(key));
+
+        if (!unchanged)
+            restoreTempFolders(entry, isFirst);
 
         String[] children = entry.listFolder();
         int index = 0;
+        ArrayList<RestoreTask> tasks = null;
 
         for (String name : children) {
             AbstractPath child = entry.getFileSystem().createPath(entry, name);
             if (child.isFolder()) {
-                restoreFolders(child, isFirst && index == 0);
+                if (pool == null || isFirst && index == 0) {
+                    unchanged &= restoreFolders(child, isFirst && index == 0);
+
+                    if (!isEmpty(child) && !child.getName().startsWith("tmp"))
+                        index++;
+                } else {
+                    if (tasks == null)
+                        tasks = new ArrayList<>();
+                    tasks.add(new RestoreTask(child, false));
+                }
+            }
+        }
+
+        if (tasks != null) {
+            ForkJoinTask.invokeAll(tasks);
+
+            for (RestoreTask task : tasks)
+                unchanged &= task.join();
+        }
+
+        if (!unchanged) {
+            restoreFolder(entry, isFirst);
+
+            if (key != null)
+                fingerprint = getFingerprint(entry);
+        }
+
+        if (fingerprint != null)
+            restored.setProperty(key, fingerprint);
 
-                if (!isEmpty(child) && !child.getName().startsWith("tmp"))
-                    index++;
+        return unchanged;
+    }
+
+    private final class RestoreTask extends RecursiveTask<Boolean> {
+        private final AbstractPath entry;
+        private final boolean isFirst;
+
+        RestoreTask(AbstractPath entry, boolean isFirst) {
+            this.entry = entry;
+            this.isFirst = isFirst;
+        }
+
+        @Override
+        protected Boolean compute() {
+            try {
+                return restoreFolders(entry, isFirst);
+            } catch (IOException x) {
+                throw new UncheckedIOException(x);
             }
         }
+    }
+
+    private String getStampKey(AbstractPath folder) {
+        String rootPath = root.getPathString();
+        String path = folder.getPathString();
 
-        restoreFolder(entry, isFirst);
+        return path.startsWith(rootPath) ? path.substring(rootPath.length()) : path;
+    }
+
+    /**
+     * Computes fingerprint of folder listing: names of tree entries and sizes and
+     * modification times of files.
+     * 
+     * @return fingerprint or null, if file system does not report modification
+     *         times
+     */
+    private static String getFingerprint(AbstractPath folder) throws IOException {
+        long hash = 1;
+
+        for (String name : folder.listFolder()) {
+            if (!TSNames.isTSFileName(name) && !TSNames.isTSFolder(name) && !name.equals(TSNames.INDEX_NAME)
+                    && !name.startsWith(TSNames.TMP_PREFIX) && !name.startsWith(TSNames.SAVE_PREFIX))
+                continue;
+
+            hash = 31 * hash + name.hashCode();
+
+            AbstractPath path = folder.append(name);
+            if (path.isFile()) {
+                try {
+                    hash = 31 * hash + path.getModificationTime();
+                } catch (NotImplementedException x) {
+                    return null;
+                }
+
+                hash = 31 * hash + path.length();
+            }
+        }
+
+        return Long.toHexString(hash);
+    }
+
+    private void loadStamps() {
+        AbstractPath path = root.append(TSNames.VERIFIED_NAME);
+
+        if (!path.exists())
+            return;
+
+        try (InputStream is = BufferedStreamUtil.wrapWithBuffered(path.openInput(0))) {
+            verified.load(is);
+        } catch (IOException x) {
+            LOGGER.warn("Failed to read %s. Error: %s").with(path).with(x);
+            verified.clear();
+        }
+    }
+
+    private void storeStamps() {
+        AbstractPath tmp = TreeOps.makeTempPath(root, TSNames.VERIFIED_NAME);
+
+        try {
+            try (OutputStream os = tmp.openOutput(0)) {
+                restored.store(os, null);
+            }
+
+            TreeOps.finalize(tmp);
+        } catch (IOException x) {
+            LOGGER.warn("Failed to store %s. Error: %s").with(tmp).with(x);
+        }
     }
 
     /**
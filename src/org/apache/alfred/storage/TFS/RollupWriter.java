@@ -0,0 +1,206 @@
+/*******************************************************************************
+ *
+ *
+ *  Copyright (c) 2022 Alfred
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.apache.alfred.storage.tfs;
+
+import org.apache.alfred.hf.pub.codec.TimeCodec;
+import org.apache.alfred.storage.tfs.codecs.SymmetricSizeCodec;
+import org.apache.alfred.storage.tfs.pub.RollupBucket;
+import org.apache.alfred.storage.tfs.pub.RollupDefinition;
+import org.apache.alfred.storage.tfs.pub.SymbolRegistry;
+import org.apache.alfred.storage.tfs.pub.TSRoot;
+import org.apache.alfred.util.memory.MemoryDataInput;
+
+import java.util.Arrays;
+
+/**
+ * Maintains open buckets of a single rollup for the owning
+ * {@link DataWriterImpl}, and writes closed buckets into the target root.
+ * Messages of already closed buckets are not aggregated. Guarded by the owning
+ * writer.
+ */
+final class RollupWriter {
+    private static final long NO_BUCKET = Long.MIN_VALUE;
+
+    private final TSRoot source;
+    private final RollupDefinition definition;
+    private final long bucketNanos;
+    private final RollupDefinition.ValueExtractor extractor;
+
+    // open bucket of every entity
+    private long[] buckets = new long[0];
+    private long[] counts = new long[0];
+    private double[] mins = new double[0];
+    private double[] maxs = new double[0];
+    private double[] sums = new double[0];
+    private double[] lasts = new double[0];
+
+    // entity ids in the target root
+    private int[] targetIds = new int[0];
+
+    private final MemoryDataInput mdi = new MemoryDataInput();
+    private final RollupBucket bucket = new RollupBucket();
+    private DataWriterImpl writer;
+
+    private long lateMessages = 0;
+
+    RollupWriter(TSRoot source, RollupDefinition definition) {
+        this.source = source;
+        this.definition = definition;
+        this.bucketNanos = definition.getBucketNanos();
+        this.extractor = definition.getExtractor();
+    }
+
+    RollupDefinition getDefinition() {
+        return definition;
+    }
+
+    /**
+     * @return number of messages skipped because their bucket was closed
+     */
+    long getLateMessages() {
+        return lateMessages;
+    }
+
+    /**
+     * Aggregates encoded message.
+     */
+    void add(int entity, long nstime, byte[] packet, int offset, int length) {
+        mdi.setBytes(packet, offset, length);
+
+        TimeCodec.readNanoTime(mdi);
+        int typeCode = mdi.readUnsignedByte();
+        int bodyLength = SymmetricSizeCodec.readForward(mdi);
+
+        mdi.setBytes(packet, mdi.getCurrentOffset(), bodyLength);
+
+        double value = extractor.getValue(typeCode, mdi);
+
+        if (!Double.isNaN(value))
+            add(entity, nstime, value);
+    }
+
+    void add(int entity, long nstime, double value) {
+        if (entity >= buckets.length)
+            grow(entity + 1);
+
+        long start = Math.floorDiv(nstime, bucketNanos) * bucketNanos;
+        long current = buckets[entity];
+
+        if (start < current) {
+            lateMessages++;
+            return;
+        }
+
+        if (start > current) {
+            if (current != NO_BUCKET)
+                flush(entity);
+
+            buckets[entity] = start;
+            counts[entity] = 0;
+            sums[entity] = 0;
+            mins[entity] = value;
+            maxs[entity] = value;
+        } else {
+            mins[entity] = Math.min(mins[entity], value);
+            maxs[entity] = Math.max(maxs[entity], value);
+        }
+
+        counts[entity]++;
+        sums[entity] += value;
+        lasts[entity] = value;
+    }
+
+    /**
+     * Writes open buckets and closes the target writer.
+     */
+    void close() {
+        try {
+            for (int entity = 0; entity < buckets.length; entity++) {
+                if (buckets[entity] != NO_BUCKET) {
+                    flush(entity);
+                    buckets[entity] = NO_BUCKET;
+                }
+            }
+        } finally {
+            if (writer != null) {
+                writer.close();
+                writer = null;
+            }
+        }
+    }
+
+    private void flush(int entity) {
+        long time = buckets[entity];
+
+        bucket.count = counts[entity];
+        bucket.min = mins[entity];
+        bucket.max = maxs[entity];
+        bucket.sum = sums[entity];
+        bucket.last = lasts[entity];
+
+        if (writer == null) {
+            writer = (DataWriterImpl) definition.getTarget().getStore().createWriter();
+            writer.associate(definition.getTarget());
+            writer.open(time, null);
+        }
+
+        writer.insertMessage(getTargetId(entity), time, definition.getTypeCode(), bucket);
+    }
+
+    private int getTargetId(int entity) {
+        int id = targetIds[entity];
+
+        if (id < 0) {
+            SymbolRegistry from = source.getSymbolRegistry();
+            SymbolRegistry to = definition.getTarget().getSymbolRegistry();
+
+            String symbol = from.idToSymbol(entity);
+
+            if (symbol == null) {
+                // entity is not registered in the source root, keep its id
+                id = entity;
+            } else {
+                id = to.symbolToId(symbol);
+                if (id == SymbolRegistry.NO_SUCH_SYMBOL)
+                    id = to.registerSymbol(symbol, from.getEntityData(entity));
+            }
+
+            targetIds[entity] = id;
+        }
+
+        return id;
+    }
+
+    private void grow(int size) {
+        int length = Math.max(size, buckets.length * 2);
+        int old = buckets.length;
+
+        buckets = Arrays.copyOf(buckets, length);
+        counts = Arrays.copyOf(counts, length);
+        mins = Arrays.copyOf(mins, length);
+        maxs = Arrays.copyOf(maxs, length);
+        sums = Arrays.copyOf(sums, length);
+        lasts = Arrays.copyOf(lasts, length);
+        targetIds = Arrays.copyOf(targetIds, length);
+
+        Arrays.fill(buckets, old, length, NO_BUCKET);
+        Arrays.fill(targetIds, old, length, -1);
+    }
+}
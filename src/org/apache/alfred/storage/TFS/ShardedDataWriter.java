@@ -0,0 +1,142 @@
+/*******************************************************************************
+ *
+ *
+ *  Copyright (c) 2022 Alfred
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.apache.alfred.storage.tfs;
+
+import org.apache.alfred.storage.tfs.pub.DataWriter;
+import org.apache.alfred.storage.tfs.pub.EntityFilter;
+import org.apache.alfred.storage.tfs.pub.TSMessageProducer;
+import org.apache.alfred.storage.tfs.pub.TSRoot;
+
+import java.util.Arrays;
+
+/**
+ * Writer of a {@link ShardedTSRoot}. Keeps a writer per shard and routes every
+ * message to the writer of the shard owning its entity.
+ *
+ * Not thread-safe: all methods are supposed to be called by a single thread.
+ */
+final class ShardedDataWriter implements DataWriter {
+    private final DataWriterImpl[] writers;
+
+    // messages of a batch routed to one shard
+    private int[] entities = new int[0];
+    private long[] nstimes = new long[0];
+    private int[] typeCodes = new int[0];
+    private TSMessageProducer[] producers = new TSMessageProducer[0];
+
+    ShardedDataWriter(int numShards) {
+        writers = new DataWriterImpl[numShards];
+
+        for (int ii = 0; ii < numShards; ii++)
+            writers[ii] = new DataWriterImpl();
+    }
+
+    private DataWriterImpl getWriter(int entity) {
+        return (writers[ShardedTSRoot.getShardIndex(entity, writers.length)]);
+    }
+
+    //
+    // DataWriter IMPLEMENTATION
+    //
+    @Override
+    public void associate(TSRoot root) {
+        if (!(root instanceof ShardedTSRoot))
+            throw new IllegalArgumentException("Not a sharded root: " + root);
+
+        ShardedTSRoot sharded = (ShardedTSRoot) root;
+
+        if (sharded.getNumShards() != writers.length)
+            throw new IllegalArgumentException(root + " has " + sharded.getNumShards() + " shards instead of "
+                    + writers.length);
+
+        for (int ii = 0; ii < writers.length; ii++)
+            writers[ii].associate(sharded.getShard(ii));
+    }
+
+    @Override
+    public void open(long nstime, EntityFilter filter) {
+        for (DataWriterImpl writer : writers)
+            writer.open(nstime, filter);
+    }
+
+    @Override
+    public void insertMessage(int entity, long nstime, int typeCode, TSMessageProducer producer) {
+        getWriter(entity).insertMessage(entity, nstime, typeCode, producer);
+    }
+
+    @Override
+    public void insertMessages(int[] entities, long[] nstimes, int[] typeCodes, TSMessageProducer[] producers,
+            int offset, int count) {
+        if (this.entities.length < count) {
+            this.entities = new int[count];
+            this.nstimes = new long[count];
+            this.typeCodes = new int[count];
+            this.producers = new TSMessageProducer[count];
+        }
+
+        for (int shard = 0; shard < writers.length; shard++) {
+            int n = 0;
+
+            for (int ii = offset; ii < offset + count; ii++) {
+                if (ShardedTSRoot.getShardIndex(entities[ii], writers.length) != shard)
+                    continue;
+
+                this.entities[n] = entities[ii];
+                this.nstimes[n] = nstimes[ii];
+                this.typeCodes[n] = typeCodes[ii];
+                this.producers[n] = producers[ii];
+                n++;
+            }
+
+            if (n > 0)
+                writers[shard].insertMessages(this.entities, this.nstimes, this.typeCodes, this.producers, 0, n);
+        }
+
+        // do not retain producers of the caller
+        Arrays.fill(this.producers, 0, count, null);
+    }
+
+    @Override
+    public void appendMessage(int entity, long nstime, int typeCode, TSMessageProducer producer, boolean truncate) {
+        getWriter(entity).appendMessage(entity, nstime, typeCode, producer, truncate);
+    }
+
+    @Override
+    public void truncate(long nstime, int entity) {
+        getWriter(entity).truncate(nstime, entity);
+    }
+
+    @Override
+    public void close() {
+        RuntimeException error = null;
+
+        for (DataWriterImpl writer : writers) {
+            try {
+                writer.close();
+            } catch (RuntimeException x) {
+                if (error == null)
+                    error = x;
+            }
+        }
+
+        if (error != null)
+            throw error;
+    }
+}
@@ -0,0 +1,169 @@
+/*******************************************************************************
+ *
+ *
+ *  Copyright (c) 2022 Alfred
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.apache.alfred.storage.tfs;
+
+import org.apache.alfred.storage.tfs.pub.AbstractPath;
+import org.apache.alfred.storage.tfs.pub.SymbolRegistry;
+import org.apache.alfred.util.collections.generated.IntegerArrayList;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Symbol registry of a sharded stream. The registry of the first shard assigns
+ * ids; every change is replayed to registries of other shards under the same
+ * ids, so that each shard stays readable on its own.
+ */
+final class ShardedSymbolRegistry implements SymbolRegistry {
+    private final TSRootFolder[] shards;
+
+    ShardedSymbolRegistry(TSRootFolder[] shards) {
+        this.shards = shards;
+    }
+
+    private SymbolRegistryImpl primary() {
+        return shards[0].getSymbolRegistry();
+    }
+
+    /**
+     * Brings registries of other shards up to date with the primary one, after
+     * they were interrupted between registrations.
+     *
+     * @throws IllegalStateException if a replica holds a symbol under another
+     *                               id, or an id under another symbol
+     */
+    synchronized void synchronize() {
+        SymbolRegistryImpl primary = primary();
+        IntegerArrayList ids = new IntegerArrayList();
+        int conflicts = 0;
+        String first = null;
+
+        primary.listIds(ids);
+
+        for (int ii = 0; ii < ids.size(); ii++) {
+            int id = ids.getIntegerNoRangeCheck(ii);
+            String symbol = primary.idToSymbol(id);
+
+            for (int jj = 1; jj < shards.length; jj++) {
+                SymbolRegistryImpl registry = shards[jj].getSymbolRegistry();
+                int replicaId = registry.symbolToId(symbol);
+                String conflict = null;
+
+                if (replicaId == NO_SUCH_SYMBOL) {
+                    String taken = registry.idToSymbol(id);
+
+                    if (taken != null) {
+                        conflict = "id " + id + " of '" + symbol + "' is taken by '" + taken + "'";
+                    } else {
+                        try {
+                            registry.registerSymbolAt(id, symbol, primary.getEntityData(id));
+                        } catch (IllegalStateException x) {
+                            conflict = x.getMessage();
+                        }
+                    }
+                } else if (replicaId != id) {
+                    conflict = "'" + symbol + "' has id " + replicaId + " instead of " + id;
+                }
+
+                if (conflict != null) {
+                    PDSImpl.LOGGER.error("Shard %s diverged from %s: %s").with(shards[jj]).with(shards[0])
+                            .with(conflict);
+
+                    if (conflicts++ == 0)
+                        first = shards[jj] + ": " + conflict;
+                }
+            }
+        }
+
+        if (conflicts > 0)
+            throw new IllegalStateException("Symbol registries of shards diverged from " + shards[0] + " in "
+                    + conflicts + " places, first: " + first);
+    }
+
+    @Override
+    public synchronized int registerSymbol(String symbol, String entityData) {
+        int id = primary().registerSymbol(symbol, entityData);
+
+        for (int ii = 1; ii < shards.length; ii++)
+            shards[ii].getSymbolRegistry().registerSymbolAt(id, symbol, entityData);
+
+        return (id);
+    }
+
+    @Override
+    public synchronized void unregisterSymbol(CharSequence symbol) {
+        for (TSRootFolder shard : shards)
+            shard.getSymbolRegistry().unregisterSymbol(symbol);
+    }
+
+    @Override
+    public synchronized void renameSymbol(String symbol, String newSymbol, String newEntityData) {
+        // primary goes first and rejects illegal renames before any replica changes
+        for (TSRootFolder shard : shards)
+            shard.getSymbolRegistry().renameSymbol(symbol, newSymbol, newEntityData);
+    }
+
+    @Override
+    public String getEntityData(int id) {
+        return primary().getEntityData(id);
+    }
+
+    @Override
+    public int symbolToId(CharSequence symbol) {
+        return primary().symbolToId(symbol);
+    }
+
+    @Override
+    public void symbolsToIds(CharSequence[] symbols, int symbolsOffset, int numSymbols, int[] ids, int idsOffset) {
+        primary().symbolsToIds(symbols, symbolsOffset, numSymbols, ids, idsOffset);
+    }
+
+    @Override
+    public String idToSymbol(int id) {
+        return primary().idToSymbol(id);
+    }
+
+    @Override
+    public void idsToSymbols(int[] ids, int idsOffset, int numIds, String[] symbols, int symbolsOffset) {
+        primary().idsToSymbols(ids, idsOffset, numIds, symbols, symbolsOffset);
+    }
+
+    @Override
+    public void listSymbols(Collection<String> symbols, Collection<String> data) {
+        primary().listSymbols(symbols, data);
+    }
+
+    @Override
+    public void listIds(IntegerArrayList ids) {
+        primary().listIds(ids);
+    }
+
+    /**
+     * Stores registry of the first shard to the given folder, and registries of
+     * other shards to their roots.
+     */
+    @Override
+    public synchronized void storeIfDirty(AbstractPath folder) throws IOException {
+        primary().storeIfDirty(folder);
+
+        for (int ii = 1; ii < shards.length; ii++)
+            shards[ii].getSymbolRegistry().storeIfDirty(shards[ii].getPath());
+    }
+}
@@ -0,0 +1,381 @@
+/*******************************************************************************
+ *
+ *
+ *  Copyright (c) 2022 Alfred
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.apache.alfred.storage.tfs;
+
+import org.apache.alfred.hf.pub.TimeInterval;
+import org.apache.alfred.storage.tfs.pub.AbstractFileSystem;
+import org.apache.alfred.storage.tfs.pub.AbstractPath;
+import org.apache.alfred.storage.tfs.pub.DataReader;
+import org.apache.alfred.storage.tfs.pub.DataWriter;
+import org.apache.alfred.storage.tfs.pub.EntityFilter;
+import org.apache.alfred.storage.tfs.pub.PersistentDataStore;
+import org.apache.alfred.storage.tfs.pub.RollupDefinition;
+import org.apache.alfred.storage.tfs.pub.SymbolRegistry;
+import org.apache.alfred.storage.tfs.pub.TSMessageConsumer;
+import org.apache.alfred.storage.tfs.pub.TSRef;
+import org.apache.alfred.storage.tfs.pub.TSRoot;
+import org.apache.alfred.storage.tfs.pub.TimeRange;
+import org.apache.alfred.storage.tfs.pub.TimeSliceIterator;
+import org.apache.alfred.util.collections.generated.IntegerArrayList;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Logical stream split by entity into several roots, usually placed on
+ * different devices. Entities are routed to shards by hash of their id, so
+ * every shard holds complete history of its entities and is written and read
+ * independently.
+ *
+ * <p>
+ * Symbol ids are assigned by the first shard and replicated to others (see
+ * {@link ShardedSymbolRegistry}). Position of every shard is kept in its root
+ * properties, so shards can not be reordered or reused with another count.
+ * </p>
+ *
+ * Data is accessed with {@link #createWriter()} and {@link #createReader()};
+ * accessors created by the store directly serve single roots only.
+ */
+public class ShardedTSRoot implements TSRoot {
+    private final PDSImpl cache;
+    private final TSRootFolder[] shards;
+    private final ShardedSymbolRegistry symRegistry;
+
+    ShardedTSRoot(PDSImpl cache, TSRootFolder[] shards) {
+        if (shards.length == 0)
+            throw new IllegalArgumentException("No shards");
+
+        this.cache = cache;
+        this.shards = shards;
+        this.symRegistry = new ShardedSymbolRegistry(shards);
+    }
+
+    /**
+     * @return index of the shard storing given entity
+     */
+    public static int getShardIndex(int entity, int numShards) {
+        int h = entity * 0x9E3779B9;
+
+        return (Math.floorMod(h ^ (h >>> 16), numShards));
+    }
+
+    public int getNumShards() {
+        return (shards.length);
+    }
+
+    public TSRoot getShard(int index) {
+        return (shards[index]);
+    }
+
+    TSRootFolder getShardFor(int entity) {
+        return (shards[getShardIndex(entity, shards.length)]);
+    }
+
+    /**
+     * Creates writer associated with this root, which routes messages to
+     * writers of shards.
+     */
+    public DataWriter createWriter() {
+        DataWriter writer = new ShardedDataWriter(shards.length);
+
+        writer.associate(this);
+        return (writer);
+    }
+
+    /**
+     * Creates historical reader associated with this root, which reads shards
+     * in parallel and merges them in time order.
+     */
+    public DataReader createReader() {
+        DataReader reader = cache.createParallelReader(shards.length, true);
+
+        reader.associate(this);
+        return (reader);
+    }
+
+    //
+    // TSRoot IMPLEMENTATION
+    //
+    @Override
+    public PersistentDataStore getStore() {
+        return (cache);
+    }
+
+    @Override
+    public void open(boolean readOnly) {
+        for (int ii = 0; ii < shards.length; ii++) {
+            shards[ii].open(readOnly);
+            shards[ii].setShard(ii, shards.length);
+        }
+
+        if (!readOnly) {
+            symRegistry.synchronize();
+            cache.ensureWriterThreads(shards.length);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return (shards[0].isOpen());
+    }
+
+    @Override
+    public void format() {
+        for (int ii = 0; ii < shards.length; ii++) {
+            shards[ii].format();
+            shards[ii].setShard(ii, shards.length);
+        }
+
+        cache.ensureWriterThreads(shards.length);
+    }
+
+    @Override
+    public void delete() {
+        for (TSRootFolder shard : shards)
+            shard.delete();
+    }
+
+    @Override
+    public SymbolRegistry getSymbolRegistry() {
+        return (symRegistry);
+    }
+
+    @Override
+    public void setMaxFolderSize(int numTimeSlices) {
+        for (TSRootFolder shard : shards)
+            shard.setMaxFolderSize(numTimeSlices);
+    }
+
+    @Override
+    public int getMaxFolderSize() {
+        return (shards[0].getMaxFolderSize());
+    }
+
+    @Override
+    public void setMaxFileSize(int numBytes) {
+        for (TSRootFolder shard : shards)
+            shard.setMaxFileSize(numBytes);
+    }
+
+    @Override
+    public int getMaxFileSize() {
+        return (shards[0].getMaxFileSize());
+    }
+
+    @Override
+    public String getCompression() {
+        return (shards[0].getCompression());
+    }
+
+    @Override
+    public void setCompression(String compression) {
+        for (TSRootFolder shard : shards)
+            shard.setCompression(compression);
+    }
+
+    @Override
+    public void getTimeRange(int id, TimeRange out) {
+        getShardFor(id).getTimeRange(id, out);
+    }
+
+    @Override
+    public void getTimeRange(TimeRange out) {
+        TimeRange total = new TimeRange();
+        TimeRange range = new TimeRange();
+
+        for (TSRootFolder shard : shards) {
+            range.setNull();
+            shard.getTimeRange(range);
+            total.unionInPlace(range.from, range.to);
+        }
+
+        // like a single root, leave bounds of empty stream untouched
+        if (total.from != Long.MAX_VALUE)
+            out.from = total.from;
+
+        if (total.to != Long.MIN_VALUE)
+            out.to = total.to;
+    }
+
+    @Override
+    public AbstractFileSystem getFileSystem() {
+        return (shards[0].getFileSystem());
+    }
+
+    @Override
+    public TimeInterval[] getTimeRanges(int[] ids) {
+        TimeInterval[] out = new TimeInterval[ids.length];
+        int[] shardIds = new int[ids.length];
+
+        for (int ii = 0; ii < shards.length; ii++) {
+            boolean any = false;
+
+            for (int jj = 0; jj < ids.length; jj++) {
+                boolean own = ids[jj] != -1 && getShardIndex(ids[jj], shards.length) == ii;
+
+                shardIds[jj] = own ? ids[jj] : -1;
+                any |= own;
+            }
+
+            if (!any)
+                continue;
+
+            TimeInterval[] ranges = shards[ii].getTimeRanges(shardIds);
+
+            for (int jj = 0; jj < ids.length; jj++) {
+                if (shardIds[jj] != -1)
+                    out[jj] = ranges[jj];
+            }
+        }
+
+        return (out);
+    }
+
+    @Override
+    public void close() {
+        for (TSRootFolder shard : shards)
+            shard.close();
+    }
+
+    @Override
+    public AbstractPath getPath() {
+        return (shards[0].getPath());
+    }
+
+    @Override
+    public void forceClose() {
+        for (TSRootFolder shard : shards)
+            shard.forceClose();
+    }
+
+    @Override
+    public void selectTimeSlices(TimeRange timeRange, EntityFilter filter, Collection<TSRef> addTo) {
+        for (TSRootFolder shard : shards)
+            shard.selectTimeSlices(timeRange, filter, addTo);
+    }
+
+    @Override
+    public String getPathString() {
+        return (shards[0].getPathString());
+    }
+
+    @Override
+    public void drop(TimeRange range) {
+        for (TSRootFolder shard : shards)
+            shard.drop(range);
+    }
+
+    /**
+     * Iterates time slices shard by shard; slices of different shards are not
+     * ordered by time.
+     */
+    @Override
+    public void iterate(TimeRange range, EntityFilter filter, TimeSliceIterator it) {
+        for (TSRootFolder shard : shards)
+            shard.iterate(range, filter, it);
+    }
+
+    @Override
+    public TSRef associate(String path) {
+        for (TSRootFolder shard : shards) {
+            TSRef ref = shard.associate(path);
+
+            if (ref != null)
+                return (ref);
+        }
+
+        return (null);
+    }
+
+    @Override
+    public void addRollup(RollupDefinition rollup) {
+        for (TSRootFolder shard : shards)
+            shard.addRollup(rollup);
+    }
+
+    @Override
+    public void removeRollup(RollupDefinition rollup) {
+        for (TSRootFolder shard : shards)
+            shard.removeRollup(rollup);
+    }
+
+    @Override
+    public RollupDefinition[] getRollups() {
+        return (shards[0].getRollups());
+    }
+
+    @Override
+    public TSRoot selectRoot(TimeRange range, long resolution) {
+        TSRoot root = shards[0].selectRoot(range, resolution);
+
+        return (root == shards[0] ? this : root);
+    }
+
+    @Override
+    public boolean getLast(int entity, TSMessageConsumer consumer) {
+        return (getShardFor(entity).getLast(entity, consumer));
+    }
+
+    @Override
+    public long countMessages(TimeRange range, EntityFilter filter) {
+        long count = 0;
+
+        for (TSRootFolder shard : shards)
+            count += shard.countMessages(range, filter);
+
+        return (count);
+    }
+
+    @Override
+    public void activeEntities(TimeRange range, IntegerArrayList out) {
+        // entities of shards do not intersect
+        for (TSRootFolder shard : shards)
+            shard.activeEntities(range, out);
+    }
+
+    @Nullable
+    @Override
+    public String getSpace() {
+        return (shards[0].getSpace());
+    }
+
+    @Override
+    public void setSpace(String name) {
+        for (TSRootFolder shard : shards)
+            shard.setSpace(name);
+    }
+
+    @Override
+    public void setSpaceIndex(int index) {
+        for (TSRootFolder shard : shards)
+            shard.setSpaceIndex(index);
+    }
+
+    @Override
+    public int getSpaceIndex() {
+        return (shards[0].getSpaceIndex());
+    }
+
+    @Override
+    public String toString() {
+        return ("ShardedTSRoot" + Arrays.toString(shards));
+    }
+}
@@ -0,0 +1,111 @@
+/*******************************************************************************
+ *
+ *
+ *  Copyright (c) 2022 Alfred
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.apache.alfred.storage.tfs;
+
+/**
+ * Sizes time slices of a root by measured ingest rate. The rate (bytes per
+ * nanosecond of data time) is sampled from tail slices when they are closed
+ * and smoothed exponentially. Tail slice is closed when it reaches the size
+ * taking target time span at that rate, or when it spans target time, bounded
+ * by min and max file size. Slices overflowing max file size by late inserts
+ * are split by {@link TSFSplitterThread} instead of the inserting thread.
+ */
+final class SliceSizePolicy {
+    // Enables adaptive sizing of time slices
+    static final boolean ENABLED = Boolean.getBoolean("TimeBase.storage.adaptiveSlices");
+
+    // Target time span of a slice, in milliseconds
+    private static final long TARGET_SPAN = Long.getLong("TimeBase.storage.adaptiveSlices.targetSpan", 600000);
+
+    // Min size of a slice, in percents of max file size
+    private static final int MIN_FILL = Integer.getInteger("TimeBase.storage.adaptiveSlices.minFill", 10);
+
+    // Slices exceeding max file size up to that factor are split in background
+    private static final int OVERFLOW = Integer.getInteger("TimeBase.storage.adaptiveSlices.overflow", 2);
+
+    // Weight of the latest sample in the smoothed rate
+    private static final double ALPHA = 0.3;
+
+    private final long targetSpan = TARGET_SPAN * 1_000_000L;
+
+    // bytes per nanosecond, NaN until the first sample
+    private volatile double rate = Double.NaN;
+
+    /**
+     * Accounts closed tail slice.
+     *
+     * @param size uncompressed size of the slice
+     * @param span time span of the slice data, in nanoseconds
+     */
+    synchronized void sliceClosed(int size, long span) {
+        if (size <= 0 || span <= 0)
+            return;
+
+        double sample = (double) size / span;
+        double current = rate;
+
+        rate = Double.isNaN(current) ? sample : current + ALPHA * (sample - current);
+    }
+
+    /**
+     * @return measured ingest rate, in bytes per second, or NaN if unknown
+     */
+    double getRate() {
+        return rate * 1_000_000_000L;
+    }
+
+    int getMinSize(int maxSize) {
+        return (int) ((long) maxSize * MIN_FILL / 100);
+    }
+
+    /**
+     * @return size, at which tail slice is closed
+     */
+    int getTailSize(int maxSize) {
+        int max = maxSize - maxSize / 10;
+        double current = rate;
+
+        if (Double.isNaN(current))
+            return max;
+
+        return (int) Math.max(getMinSize(maxSize), Math.min(max, current * targetSpan));
+    }
+
+    /**
+     * @param size current size of the tail slice
+     * @param span time span of its data including the new message, or -1 if
+     *             unknown
+     * @return true, if tail slice should be closed before adding message of
+     *         size newSize - size
+     */
+    boolean isTailComplete(int size, int newSize, long span, int maxSize) {
+        if (size <= 0 || size < getMinSize(maxSize))
+            return false;
+
+        return newSize > getTailSize(maxSize) || span >= targetSpan;
+    }
+
+    /**
+     * @return true, if slice of the given size may wait for split in background
+     */
+    boolean canDeferSplit(int newSize, int maxSize) {
+        return newSize <= (long) maxSize * OVERFLOW;
+    }
+}
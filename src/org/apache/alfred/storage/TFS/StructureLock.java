@@ -0,0 +1,240 @@
+/*******************************************************************************
+ *
+ *
+ *  Copyright (c) 2022 Alfred
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.apache.alfred.storage.tfs;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Reentrant read-write lock guarding the structure of a root. Two
+ * implementations are available: the default one is based on
+ * {@link ReentrantReadWriteLock}; the striped one keeps reader counts in
+ * separate cache lines, so readers do not contend on a shared counter, at the
+ * cost of more expensive write locking.
+ */
+abstract class StructureLock {
+
+    // Use striped reader counters instead of ReentrantReadWriteLock
+    static final boolean STRIPED = Boolean.getBoolean("TimeBase.storage.structureLock.striped");
+
+    static StructureLock create() {
+        return STRIPED ? new Striped() : new Standard();
+    }
+
+    abstract void lockRead() throws InterruptedException;
+
+    abstract boolean tryLockRead();
+
+    abstract void unlockRead();
+
+    abstract void lockWrite() throws InterruptedException;
+
+    abstract void unlockWrite();
+
+    abstract boolean isWriteLockedByCurrentThread();
+
+    abstract int getReadHoldCount();
+
+    private static final class Standard extends StructureLock {
+        private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
+
+        @Override
+        void lockRead() throws InterruptedException {
+            rwl.readLock().lockInterruptibly();
+        }
+
+        @Override
+        boolean tryLockRead() {
+            return rwl.readLock().tryLock();
+        }
+
+        @Override
+        void unlockRead() {
+            rwl.readLock().unlock();
+        }
+
+        @Override
+        void lockWrite() throws InterruptedException {
+            rwl.writeLock().lockInterruptibly();
+        }
+
+        @Override
+        void unlockWrite() {
+            rwl.writeLock().unlock();
+        }
+
+        @Override
+        boolean isWriteLockedByCurrentThread() {
+            return rwl.isWriteLockedByCurrentThread();
+        }
+
+        @Override
+        int getReadHoldCount() {
+            return rwl.getReadHoldCount();
+        }
+
+        @Override
+        public String toString() {
+            return rwl.toString();
+        }
+    }
+
+    /*
+     * Readers announce themselves by incrementing a counter of their stripe and
+     * then check the writer flag; writer sets the flag and waits until all
+     * stripes are drained. Nested read locks and read locks taken by the writer
+     * only touch thread-local state.
+     */
+    private static final class Striped extends StructureLock {
+        private static final int STRIPES = Integer.highestOneBit(
+                Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+
+        // distance between counters, to keep each of them in own cache line
+        private static final int PADDING = 16;
+
+        private final AtomicLongArray readers = new AtomicLongArray(STRIPES * PADDING);
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private volatile boolean writing = false;
+
+        private final ThreadLocal<ReaderState> state = ThreadLocal.withInitial(ReaderState::new);
+
+        private static final class ReaderState {
+            private final int slot = (int) (Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+
+            private int holds = 0;
+
+            // true if this reader is registered in the stripe counter
+            private boolean counted = false;
+        }
+
+        @Override
+        void lockRead() throws InterruptedException {
+            ReaderState rs = state.get();
+
+            if (rs.holds > 0 || writeLock.isHeldByCurrentThread()) {
+                rs.holds++;
+                return;
+            }
+
+            for (;;) {
+                if (tryRegister(rs))
+                    return;
+
+                // wait for the writer
+                writeLock.lockInterruptibly();
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        boolean tryLockRead() {
+            ReaderState rs = state.get();
+
+            if (rs.holds > 0 || writeLock.isHeldByCurrentThread()) {
+                rs.holds++;
+                return true;
+            }
+
+            return !writing && tryRegister(rs);
+        }
+
+        private boolean tryRegister(ReaderState rs) {
+            readers.incrementAndGet(rs.slot);
+
+            if (writing) {
+                readers.decrementAndGet(rs.slot);
+                return false;
+            }
+
+            rs.holds = 1;
+            rs.counted = true;
+            return true;
+        }
+
+        @Override
+        void unlockRead() {
+            ReaderState rs = state.get();
+
+            if (rs.holds <= 0)
+                throw new IllegalMonitorStateException("Read lock is not held by current thread");
+
+            if (--rs.holds == 0 && rs.counted) {
+                rs.counted = false;
+                readers.decrementAndGet(rs.slot);
+            }
+        }
+
+        @Override
+        void lockWrite() throws InterruptedException {
+            writeLock.lockInterruptibly();
+
+            if (writeLock.getHoldCount() > 1)
+                return;
+
+            writing = true;
+
+            for (int ii = 0; ii < readers.length(); ii += PADDING) {
+                while (readers.get(ii) != 0) {
+                    if (Thread.interrupted()) {
+                        writing = false;
+                        writeLock.unlock();
+                        throw new InterruptedException();
+                    }
+
+                    LockSupport.parkNanos(1000);
+                }
+            }
+        }
+
+        @Override
+        void unlockWrite() {
+            if (writeLock.getHoldCount() == 1) {
+                ReaderState rs = state.get();
+
+                // downgrade: read lock taken under the write lock stays held
+                if (rs.holds > 0 && !rs.counted) {
+                    readers.incrementAndGet(rs.slot);
+                    rs.counted = true;
+                }
+
+                writing = false;
+            }
+
+            writeLock.unlock();
+        }
+
+        @Override
+        boolean isWriteLockedByCurrentThread() {
+            return writeLock.isHeldByCurrentThread();
+        }
+
+        @Override
+        int getReadHoldCount() {
+            return state.get().holds;
+        }
+
+        @Override
+        public String toString() {
+            return super.toString() + (writing ? "[Write locked]" : "[Unlocked]");
+        }
+    }
+}
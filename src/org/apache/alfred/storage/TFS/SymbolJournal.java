@@ -0,0 +1,212 @@
+/*******************************************************************************
+ *
+ *
+ *  Copyright (c) 2022 Alfred
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.apache.alfred.storage.tfs;
+
+import org.apache.alfred.storage.tfs.codecs.TSNames;
+import org.apache.alfred.storage.tfs.pub.AbstractPath;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of symbol registry changes. Registry file
+ * ({@link TSNames#SYM_REGISTRY_NAME}) is a checkpoint, and the journal
+ * ({@link TSNames#SYM_JOURNAL_NAME}) keeps changes made after it, so
+ * registering a symbol costs one appended record instead of rewriting the
+ * whole registry.
+ *
+ * <pre>
+ *  record:    length (int), CRC32 of payload (int), payload
+ *  payload:   id (int), active (boolean), name (UTF), data (UTF)
+ * </pre>
+ *
+ * Every record holds the complete state of one entry, so replaying a record
+ * already included into the checkpoint is harmless. Records are buffered and
+ * appended when registry is stored. Guarded by the owning registry.
+ */
+final class SymbolJournal {
+
+    // Enables journal for file systems supporting append
+    static final boolean ENABLED = Boolean
+            .parseBoolean(System.getProperty("TimeBase.storage.symbols.journal", "true"));
+
+    // Minimal number of journal records triggering checkpoint
+    static final int MIN_CHECKPOINT_RECORDS = Integer.getInteger("TimeBase.storage.symbols.checkpointRecords",
+            10000);
+
+    interface Replayer {
+        void replay(int id, boolean active, String name, String data);
+    }
+
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    private final DataOutputStream payloadOut = new DataOutputStream(payload);
+    private final CRC32 crc = new CRC32();
+
+    // number of records in the journal file and buffered ones
+    private int numRecords;
+
+    static boolean isSupported(AbstractPath folder) {
+        return (ENABLED && folder.getFileSystem().isAppendSupported());
+    }
+
+    void log(int id, boolean active, String name, String data) {
+        payload.reset();
+
+        try {
+            payloadOut.writeInt(id);
+            payloadOut.writeBoolean(active);
+            payloadOut.writeUTF(name);
+            payloadOut.writeUTF(data != null ? data : "");
+        } catch (IOException x) {
+            throw new UncheckedIOException(x);
+        }
+
+        byte[] bytes = payload.toByteArray();
+
+        crc.reset();
+        crc.update(bytes);
+
+        writeInt(pending, bytes.length);
+        writeInt(pending, (int) crc.getValue());
+        pending.write(bytes, 0, bytes.length);
+
+        numRecords++;
+    }
+
+    private static void writeInt(OutputStream out, int v) {
+        try {
+            out.write(v >>> 24);
+            out.write(v >>> 16);
+            out.write(v >>> 8);
+            out.write(v);
+        } catch (IOException x) {
+            throw new UncheckedIOException(x);
+        }
+    }
+
+    boolean isEmpty() {
+        return (numRecords == 0);
+    }
+
+    /**
+     * @return true, if journal grew enough to be folded into a new checkpoint:
+     *         rewriting the registry is amortized over registered symbols
+     */
+    boolean needsCheckpoint(int numSymbols) {
+        return (numRecords >= Math.max(MIN_CHECKPOINT_RECORDS, numSymbols / 2));
+    }
+
+    /**
+     * Appends buffered records to the journal file. On failure, part of them may
+     * be written already, so the caller should not append to the journal again
+     * until it is reset by a checkpoint.
+     */
+    void flush(AbstractPath folder) throws IOException {
+        if (pending.size() == 0)
+            return;
+
+        AbstractPath fp = folder.append(TSNames.SYM_JOURNAL_NAME);
+
+        try (OutputStream os = fp.exists() ? fp.openOutputForAppend() : fp.openOutput(0)) {
+            pending.writeTo(os);
+        }
+
+        pending.reset();
+    }
+
+    /**
+     * Discards journal after all changes were written to a checkpoint.
+     */
+    void reset(AbstractPath folder) throws IOException {
+        pending.reset();
+        numRecords = 0;
+
+        folder.append(TSNames.SYM_JOURNAL_NAME).deleteIfExists();
+    }
+
+    /**
+     * Replays journal records up to the first incomplete or corrupted one.
+     *
+     * @return number of replayed records
+     */
+    static int replay(AbstractPath folder, Replayer replayer) throws IOException {
+        AbstractPath fp = folder.append(TSNames.SYM_JOURNAL_NAME);
+
+        if (!fp.exists())
+            return (0);
+
+        int count = 0;
+        CRC32 crc = new CRC32();
+
+        try (InputStream is = fp.openInput(0)) {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(is));
+            byte[] data = new byte[256];
+
+            for (;;) {
+                int length;
+                int checksum;
+
+                try {
+                    length = dis.readInt();
+                    checksum = dis.readInt();
+
+                    if (length < 0 || length > (1 << 20))
+                        break;
+
+                    if (data.length < length)
+                        data = new byte[Math.max(length, data.length * 2)];
+
+                    dis.readFully(data, 0, length);
+                } catch (EOFException x) {
+                    break; // torn tail
+                }
+
+                crc.reset();
+                crc.update(data, 0, length);
+
+                if ((int) crc.getValue() != checksum) {
+                    PDSImpl.LOGGER.warn("Symbol journal %s is corrupted after %s records").with(fp).with(count);
+                    break;
+                }
+
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(data, 0, length));
+                int id = record.readInt();
+                boolean active = record.readBoolean();
+                String name = record.readUTF().intern();
+                String entityData = record.readUTF().intern();
+
+                replayer.replay(id, active, name, entityData);
+                count++;
+            }
+        }
+
+        return (count);
+    }
+}
@@ -24,24 +24,165 @@ import org.apache.alfred.storage.tfs.pub.AbstractPath;
 import org.apache.alfred.storage.tfs.codecs.TSNames;
 import org.apache.alfred.storage.tfs.pub.SymbolRegistry;
 import org.apache.alfred.storage.tfs.pub.TimeRange;
-import org.apache.alfred.util.collections.CharSequenceToIntegerMap;
 import org.apache.alfred.util.collections.generated.IntegerArrayList;
 import org.apache.alfred.util.collections.generated.ObjectArrayList;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.Collection;
 
 /**
- *
+ * Registry of symbols. Modifications are synchronized, while lookups of ids
+ * and symbols read an immutable published {@link SymbolView} without locking.
  */
 class SymbolRegistryImpl implements SymbolRegistry {
     private static final Log LOGGER = PDSImpl.LOGGER;
     private final int VERSION = 501;
 
     private boolean isDirty;
-    private CharSequenceToIntegerMap symbolToIdMap = null;
     private ObjectArrayList<SymbolEntry> symbols = null;
 
+    // journal of changes made after the last checkpoint, or null if not supported
+    private SymbolJournal journal = null;
+
+    // registry file does not reflect replayed journal (or journal left by other settings)
+    private boolean checkpointNeeded = false;
+
+    // published state for lookups, replaced under the registry lock
+    private volatile SymbolView view = SymbolView.EMPTY;
+
+    /**
+     * Names, data and hash index of symbols as seen by lookups. Slots of ids
+     * below {@code count} never change once the view is published: a new
+     * symbol is written to the next free slot of the shared arrays (and to an
+     * empty slot of the hash table) before the new view is published, any
+     * other change builds a copy.
+     */
+    private static final class SymbolView {
+        static final SymbolView EMPTY = new SymbolView(new String[0], new String[0], 0,
+                new int[] { NO_SUCH_SYMBOL });
+
+        final String[] names;
+        final String[] data;
+        final int count;
+
+        // open addressing table of ids, hashed by symbol names
+        final int[] table;
+
+        SymbolView(String[] names, String[] data, int count, int[] table) {
+            this.names = names;
+            this.data = data;
+            this.count = count;
+            this.table = table;
+        }
+
+        static SymbolView build(ObjectArrayList<SymbolEntry> symbols) {
+            int n = symbols.size();
+            String[] names = new String[Math.max(16, n)];
+            String[] data = new String[names.length];
+
+            for (int id = 0; id < n; id++) {
+                SymbolEntry e = symbols.getObjectNoRangeCheck(id);
+
+                if (e != null) {
+                    names[id] = e.name;
+                    data[id] = e.data;
+                }
+            }
+
+            return new SymbolView(names, data, n, buildTable(names, n));
+        }
+
+        private static int[] buildTable(String[] names, int count) {
+            int size = 32;
+            while (size < count * 2 + 2)
+                size <<= 1;
+
+            int[] table = new int[size];
+            Arrays.fill(table, NO_SUCH_SYMBOL);
+
+            for (int id = 0; id < count; id++) {
+                if (names[id] != null)
+                    insert(table, names[id], id);
+            }
+
+            return table;
+        }
+
+        private static int hash(CharSequence symbol) {
+            int h = 0;
+
+            for (int ii = 0, n = symbol.length(); ii < n; ii++)
+                h = 31 * h + symbol.charAt(ii);
+
+            return h ^ (h >>> 16);
+        }
+
+        private static void insert(int[] table, CharSequence name, int id) {
+            int mask = table.length - 1;
+            int pos = hash(name) & mask;
+
+            while (table[pos] != NO_SUCH_SYMBOL)
+                pos = (pos + 1) & mask;
+
+            table[pos] = id;
+        }
+
+        /**
+         * Returns view with the symbol registered with the next id. Must be
+         * called under the registry lock.
+         */
+        SymbolView append(String name, String entityData) {
+            int id = count;
+            String[] names = this.names;
+            String[] data = this.data;
+
+            if (id == names.length) {
+                names = Arrays.copyOf(names, Math.max(16, id * 2));
+                data = Arrays.copyOf(data, names.length);
+            }
+
+            names[id] = name;
+            data[id] = entityData;
+
+            int[] table = this.table;
+
+            if ((id + 1) * 2 >= table.length)
+                table = buildTable(names, id + 1);
+            else
+                insert(table, name, id);
+
+            return new SymbolView(names, data, id + 1, table);
+        }
+
+        int lookup(CharSequence symbol) {
+            int mask = table.length - 1;
+
+            for (int pos = hash(symbol) & mask;; pos = (pos + 1) & mask) {
+                int id = table[pos];
+
+                if (id == NO_SUCH_SYMBOL)
+                    return NO_SUCH_SYMBOL;
+
+                // ids above count may be registered concurrently and are not visible yet
+                if (id < count) {
+                    String name = names[id];
+
+                    if (name != null && name.contentEquals(symbol))
+                        return id;
+                }
+            }
+        }
+
+        String getName(int id) {
+            return (id < 0 || id >= count ? null : names[id]);
+        }
+
+        String getData(int id) {
+            return (id < 0 || id >= count ? null : data[id]);
+        }
+    }
+
     private static class SymbolEntry {
 
         public SymbolEntry(String name, String data, int index, boolean active) {
@@ -78,78 +219,85 @@ class SymbolRegistryImpl implements SymbolRegistry {
     SymbolRegistryImpl() {
     }
 
-    private int oneSymbolToId(CharSequence symbol) {
+    private static int oneSymbolToId(SymbolView view, CharSequence symbol) {
         if (symbol == null)
             return (NO_SUCH_SYMBOL);
 
-        return (symbolToIdMap.get(symbol, NO_SUCH_SYMBOL));
+        return (view.lookup(symbol));
     }
 
     @Override
-    public synchronized int symbolToId(CharSequence symbol) {
-        return (oneSymbolToId(symbol));
+    public int symbolToId(CharSequence symbol) {
+        return (oneSymbolToId(view, symbol));
     }
 
     @Override
-    public synchronized void symbolsToIds(CharSequence[] symbols, int symbolsOffset, int numSymbols, int[] ids,
-            int idsOffset) {
+    public void symbolsToIds(CharSequence[] symbols, int symbolsOffset, int numSymbols, int[] ids, int idsOffset) {
+        SymbolView view = this.view;
+
         for (int ii = 0; ii < numSymbols; ii++)
-            ids[idsOffset + ii] = oneSymbolToId(symbols[symbolsOffset + ii]);
+            ids[idsOffset + ii] = oneSymbolToId(view, symbols[symbolsOffset + ii]);
     }
 
-    private String oneIdToSymbol(int id) {
-        if (id < 0 || id >= symbols.size())
-            return (null);
-
-        return (symbols.getObjectNoRangeCheck(id).name);
+    @Override
+    public String idToSymbol(int id) {
+        return (view.getName(id));
     }
 
-    private String oneIdToData(int id) {
-        if (id < 0 || id >= symbols.size())
-            return (null);
+    @Override
+    public void idsToSymbols(int[] ids, int idsOffset, int numIds, String[] symbols, int symbolsOffset) {
+        SymbolView view = this.view;
 
-        return (symbols.getObjectNoRangeCheck(id).data);
+        for (int ii = 0; ii < numIds; ii++)
+            symbols[symbolsOffset + ii] = view.getName(ids[idsOffset + ii]);
     }
 
-    @Override
-    public synchronized String idToSymbol(int id) {
-        return (oneIdToSymbol(id));
+    private void logEntry(SymbolEntry entry) {
+        if (journal != null)
+            journal.log(entry.index, entry.active, entry.name, entry.data);
     }
 
-    @Override
-    public synchronized void idsToSymbols(int[] ids, int idsOffset, int numIds, String[] symbols, int symbolsOffset) {
-        for (int ii = 0; ii < numIds; ii++)
-            symbols[symbolsOffset + ii] = oneIdToSymbol(ids[idsOffset + ii]);
+    private void replayEntry(int id, boolean active, String name, String data) {
+        while (symbols.size() <= id)
+            symbols.add(null);
+
+        symbols.set(id, new SymbolEntry(name, data, id, active));
     }
 
     private int registerSymbolInternal(String symbol, String entityData) {
+        if (oneSymbolToId(view, symbol) != NO_SUCH_SYMBOL)
+            throw new IllegalArgumentException("Duplicate symbol");
+
         int id = symbols.indexOf(null);
+        SymbolEntry entry;
 
-        if (id < 0)
+        if (id < 0) {
             id = symbols.size();
+            symbols.add(entry = new SymbolEntry(symbol, entityData, id));
+            view = view.append(symbol, entityData);
+        } else {
+            symbols.set(id, entry = new SymbolEntry(symbol, entityData, id));
+            view = SymbolView.build(symbols);
+        }
 
-        boolean check = symbolToIdMap.put(symbol, id);
-
-        if (!check)
-            throw new IllegalArgumentException("Duplicate symbol");
-
-        symbols.add(id, new SymbolEntry(symbol, entityData, id));
-
+        logEntry(entry);
         isDirty = true;
 
-        return (id);
+        return (entry.index);
     }
 
     @Override
     public synchronized int registerSymbol(String symbol, String entityData) {
-        int index = symbolToIdMap.get(symbol, NO_SUCH_SYMBOL);
+        int index = oneSymbolToId(view, symbol);
 
-        if (index != -1) {
+        if (index != NO_SUCH_SYMBOL) {
             SymbolEntry entry = symbols.get(index);
 
             if (!entry.active) {
                 entry.active = true;
                 entry.data = entityData;
+                view = SymbolView.build(symbols);
+                logEntry(entry);
                 isDirty = true;
             }
             return index;
@@ -158,42 +306,78 @@ class SymbolRegistryImpl implements SymbolRegistry {
         return (registerSymbolInternal(symbol, entityData));
     }
 
+    /**
+     * Registers symbol under the id assigned to it by another registry, so that
+     * registries of shards of the same stream stay identical.
+     */
+    synchronized void registerSymbolAt(int id, String symbol, String entityData) {
+        int index = oneSymbolToId(view, symbol);
+
+        if (index == id) {
+            registerSymbol(symbol, entityData);
+            return;
+        }
+
+        if (index != NO_SUCH_SYMBOL)
+            throw new IllegalStateException("Symbol '" + symbol + "' has id " + index + " instead of " + id);
+
+        if (id > symbols.size())
+            throw new IllegalStateException("Id " + id + " would leave a hole after " + symbols.size() + " symbols");
+
+        if (id < symbols.size() && symbols.get(id) != null)
+            throw new IllegalStateException("Id " + id + " is already taken by '" + symbols.get(id).name + "'");
+
+        if (id == symbols.size()) {
+            symbols.add(new SymbolEntry(symbol, entityData, id));
+            view = view.append(symbol, entityData);
+        } else {
+            // fills a hole - rebuild
+            symbols.set(id, new SymbolEntry(symbol, entityData, id));
+            view = SymbolView.build(symbols);
+        }
+
+        logEntry(symbols.get(id));
+        isDirty = true;
+    }
+
     @Override
     public synchronized void unregisterSymbol(CharSequence symbol) {
-        int index = symbolToIdMap.get(symbol, -1);
+        int index = oneSymbolToId(view, symbol);
 
         if (index != -1) {
-            symbols.get(index).active = false;
+            SymbolEntry entry = symbols.get(index);
+            entry.active = false;
+            logEntry(entry);
             isDirty = true;
         }
     }
 
     public synchronized void renameSymbol(String symbol, String newSymbol, String newEntityData) {
-        if (symbolToIdMap.get(newSymbol, NO_SUCH_SYMBOL) != NO_SUCH_SYMBOL)
+        if (oneSymbolToId(view, newSymbol) != NO_SUCH_SYMBOL)
             throw new IllegalArgumentException("Symbol '" + newSymbol + "' already exists!");
 
-        int index = symbolToIdMap.get(symbol, NO_SUCH_SYMBOL);
+        int index = oneSymbolToId(view, symbol);
         if (index == NO_SUCH_SYMBOL)
             throw new IllegalArgumentException("Symbol '" + symbol + "' not exits!");
 
         SymbolEntry entry = symbols.get(index);
 
-        symbolToIdMap.remove(symbol);
-        symbolToIdMap.put(newSymbol, entry.index);
-
         entry.name = newSymbol;
         entry.data = newEntityData;
 
+        view = SymbolView.build(symbols);
+        logEntry(entry);
+
         isDirty = true;
     }
 
     public synchronized void setTimeRange(int id, TimeRange range) {
-        if (id >= 0 && id < symbols.size())
+        if (id >= 0 && id < symbols.size() && symbols.get(id) != null)
             symbols.get(id).range = range;
     }
 
     public synchronized TimeRange getTimeRange(int id) {
-        if (id < 0 || id >= symbols.size())
+        if (id < 0 || id >= symbols.size() || symbols.getObjectNoRangeCheck(id) == null)
             return (null);
 
         return (symbols.getObjectNoRangeCheck(id).range);
@@ -211,7 +395,11 @@ class SymbolRegistryImpl implements SymbolRegistry {
         TimeRange global = new TimeRange();
 
         for (int id = 0; id < n; id++) {
-            TimeRange range = symbols.getObjectNoRangeCheck(id).range;
+            SymbolEntry e = symbols.getObjectNoRangeCheck(id);
+            if (e == null)
+                continue;
+
+            TimeRange range = e.range;
             if (range == null)
                 return null;
             else if (!range.isUndefined())
@@ -225,14 +413,17 @@ class SymbolRegistryImpl implements SymbolRegistry {
         if (symbols != null) {
             int n = symbols.size();
 
-            for (int id = 0; id < n; id++)
-                symbols.getObjectNoRangeCheck(id).range = null;
+            for (int id = 0; id < n; id++) {
+                SymbolEntry e = symbols.getObjectNoRangeCheck(id);
+                if (e != null)
+                    e.range = null;
+            }
         }
     }
 
     @Override
-    public synchronized String getEntityData(int id) {
-        return (oneIdToData(id));
+    public String getEntityData(int id) {
+        return (view.getData(id));
     }
 
     // @Override
@@ -270,7 +461,7 @@ class SymbolRegistryImpl implements SymbolRegistry {
 
         for (int ii = 0; ii < n; ii++) {
             SymbolEntry e = symbols.getObjectNoRangeCheck(ii);
-            if (e.active) {
+            if (e != null && e.active) {
                 out.add(e.name);
                 data.add(e.data);
             }
@@ -299,12 +490,15 @@ class SymbolRegistryImpl implements SymbolRegistry {
 
     synchronized void close() {
         symbols = null;
-        symbolToIdMap = null;
+        view = SymbolView.EMPTY;
+        journal = null;
     }
 
     synchronized void format(AbstractPath folder) throws IOException {
         symbols = new ObjectArrayList<>();
-        symbolToIdMap = new CharSequenceToIntegerMap();
+        view = SymbolView.EMPTY;
+        journal = SymbolJournal.isSupported(folder) ? new SymbolJournal() : null;
+        checkpointNeeded = true; // drop journal of the previous content
         isDirty = true;
 
         storeIfDirty(folder);
@@ -312,13 +506,13 @@ class SymbolRegistryImpl implements SymbolRegistry {
 
     synchronized void format() {
         symbols = new ObjectArrayList<>();
-        symbolToIdMap = new CharSequenceToIntegerMap();
+        view = SymbolView.EMPTY;
         isDirty = true;
     }
 
     synchronized boolean load(AbstractPath folder) throws IOException {
         symbols = new ObjectArrayList<>();
-        symbolToIdMap = new CharSequenceToIntegerMap();
+        view = SymbolView.EMPTY;
         isDirty = false;
 
         // try to restore symbols from temp path
@@ -342,6 +536,25 @@ class SymbolRegistryImpl implements SymbolRegistry {
                 loadText(fp);
         }
 
+        journal = SymbolJournal.isSupported(folder) ? new SymbolJournal() : null;
+        checkpointNeeded = false;
+
+        // changes made after the checkpoint
+        AbstractPath jp = folder.append(TSNames.SYM_JOURNAL_NAME);
+        if (jp.exists()) {
+            int count = SymbolJournal.replay(folder, this::replayEntry);
+
+            if (LOGGER.isDebugEnabled())
+                LOGGER.debug().append("Replayed ").append(count).append(" symbol journal records: ")
+                        .append(jp.getPathString()).commit();
+
+            view = SymbolView.build(symbols);
+            checkpointNeeded = true;
+            isDirty = true;
+
+            return true;
+        }
+
         return fp.exists();
     }
 
@@ -364,11 +577,11 @@ class SymbolRegistryImpl implements SymbolRegistry {
                 SymbolEntry entry = new SymbolEntry(name, data, index, active);
                 symbols.add(entry);
 
-                symbolToIdMap.put(name, index);
-
                 assert i == index;
             }
         }
+
+        view = SymbolView.build(symbols);
     }
 
     synchronized void loadText(AbstractPath fp) throws IOException {
@@ -389,17 +602,17 @@ class SymbolRegistryImpl implements SymbolRegistry {
 
                     if (x < 0) {
                         String symbol = line.intern();
-                        symbolToIdMap.put(symbol, id);
                         symbols.add(new SymbolEntry(symbol, "", id));
                     } else {
                         String symbol = line.substring(0, x).intern();
-                        symbolToIdMap.put(symbol, id);
                         String data = line.substring(x + 1).intern();
                         symbols.add(new SymbolEntry(symbol, data, id));
                     }
                 }
             }
         }
+
+        view = SymbolView.build(symbols);
     }
 
     protected void store(AbstractPath folder) throws IOException {
@@ -428,10 +641,52 @@ class SymbolRegistryImpl implements SymbolRegistry {
     }
 
     public synchronized void storeIfDirty(AbstractPath folder) throws IOException {
-        if (isDirty) {
+        storeIfDirty(folder, false);
+    }
+
+    /**
+     * Appends changes to the journal, or writes the whole registry, when journal
+     * is not supported or grew large enough to be folded into a checkpoint.
+     *
+     * @param checkpoint true to fold journal into the registry file (on close)
+     */
+    synchronized void storeIfDirty(AbstractPath folder, boolean checkpoint) throws IOException {
+        if (symbols == null)
+            return;
+
+        boolean fold = checkpointNeeded || (journal != null
+                && (journal.needsCheckpoint(symbols.size()) || (checkpoint && !journal.isEmpty())));
+
+        if (fold)
+            checkpoint(folder);
+        else if (isDirty && journal != null)
+            flushJournal(folder);
+        else if (isDirty)
             store(folder);
-            isDirty = false;
+
+        isDirty = false;
+    }
+
+    private void flushJournal(AbstractPath folder) throws IOException {
+        try {
+            journal.flush(folder);
+        } catch (IOException x) {
+            // journal may end with a torn record now, and records appended after it
+            // would never be replayed: write the whole registry next time instead
+            checkpointNeeded = true;
+            throw x;
         }
     }
 
+    private void checkpoint(AbstractPath folder) throws IOException {
+        store(folder);
+
+        if (journal != null)
+            journal.reset(folder);
+        else
+            folder.append(TSNames.SYM_JOURNAL_NAME).deleteIfExists();
+
+        checkpointNeeded = false;
+    }
+
 }
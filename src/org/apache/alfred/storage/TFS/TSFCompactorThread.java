@@ -0,0 +1,156 @@
+/*******************************************************************************
+ *
+ *
+ *  Copyright (c) 2022 Alfred
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.apache.alfred.storage.tfs;
+
+import org.apache.alfred.gflog.api.Log;
+import org.apache.alfred.storage.tfs.codecs.Algorithm;
+import org.apache.alfred.storage.tfs.codecs.BlockCompressorFactory;
+
+import java.util.StringTokenizer;
+
+/**
+ * Background thread, which periodically merges adjacent cold time slices of
+ * open roots into larger files. Merged files are stored by writer threads
+ * using compaction codec, see {@link #getCompression(String)}.
+ */
+class TSFCompactorThread extends Thread {
+    private static final Log LOGGER = PDSImpl.LOGGER;
+
+    // Enables background compaction
+    static final boolean ENABLED = Boolean.getBoolean("TimeBase.storage.compaction");
+
+    // Delay between compaction passes, in milliseconds
+    private static final long INTERVAL = Long.getLong("TimeBase.storage.compaction.interval", 60000);
+
+    // Files having data older than that age (in milliseconds) are compacted
+    private static final long COLD_AGE = Long.getLong("TimeBase.storage.compaction.coldAge", 3600000);
+
+    // Max size of merged file, in percents of max file size
+    private static final int FILL = Integer.getInteger("TimeBase.storage.compaction.fill", 90);
+
+    // Compression of compacted files, like "ZSTD(19)". Root compression is used,
+    // when not defined.
+    private static final String COMPRESSION = System.getProperty("TimeBase.storage.compaction.compression");
+
+    // Compression level of compacted files, applied to the root compression
+    // algorithm. Ignored, when negative.
+    private static final int LEVEL = Integer.getInteger("TimeBase.storage.compaction.level", -1);
+
+    private final PDSImpl pds;
+    private final CompactorAccessor accessor = new CompactorAccessor();
+
+    TSFCompactorThread(PDSImpl pds) {
+        super("TSF Compactor Thread");
+        this.pds = pds;
+
+        // interrupted in the middle of pass leaves files consistent
+        setDaemon(true);
+        setPriority(MIN_PRIORITY);
+    }
+
+    /**
+     * @return compression of compacted files, or null if compacted files are
+     *         not compressed
+     */
+    static String getCompression(String rootCompression) {
+        if (COMPRESSION != null && !COMPRESSION.isEmpty())
+            return COMPRESSION;
+
+        if (rootCompression == null || rootCompression.isEmpty() || LEVEL < 0)
+            return rootCompression;
+
+        Algorithm algorithm = BlockCompressorFactory
+                .getAlgorithm(BlockCompressorFactory.getCode(rootCompression));
+
+        switch (algorithm) {
+            case ZSTD:
+            case ZLIB:
+            case LZ4:
+                return new StringTokenizer(rootCompression, "()").nextToken().trim() + "(" + LEVEL + ")";
+
+            default:
+                return rootCompression;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (;;) {
+                Thread.sleep(INTERVAL);
+
+                long coldBefore = (System.currentTimeMillis() - COLD_AGE) * 1_000_000L;
+
+                for (TSRootFolder root : pds.getOpenRoots()) {
+                    if (isInterrupted())
+                        return;
+
+                    try {
+                        long maxSize = (long) root.getMaxFileSize() * FILL / 100;
+                        int merged = root.compact(coldBefore, maxSize, accessor);
+
+                        if (merged > 0 && LOGGER.isDebugEnabled())
+                            LOGGER.debug().append(root).append(": ").append(merged).append(" files compacted")
+                                    .commit();
+                    } catch (IllegalStateException x) {
+                        // root was closed
+                        if (root.isOpen())
+                            LOGGER.warn().append("Failed to compact ").append(root).append(": ").append(x).commit();
+                    } catch (Throwable x) {
+                        LOGGER.warn().append("Failed to compact ").append(root).append(": ").append(x).commit();
+                    }
+                }
+            }
+        } catch (InterruptedException x) {
+            LOGGER.debug().append(getName()).append(" is interrupted. Terminating.").commit();
+        }
+    }
+
+    /**
+     * Stub class that stubs {@link DAPrivate} to use it as owner of merged files.
+     */
+    private static final class CompactorAccessor implements DAPrivate {
+
+        @Override
+        public long getCurrentTimestamp() {
+            return 0;
+        }
+
+        @Override
+        public void asyncDataInserted(DataBlock db, int dataOffset, int msgLength, long timestamp) {
+
+        }
+
+        @Override
+        public void asyncDataDropped(DataBlock db, int dataOffset, int msgLength, long timestamp) {
+
+        }
+
+        @Override
+        public void checkedOut(TimeSlice slice) {
+
+        }
+
+        @Override
+        public String toString() {
+            return "TSF Compactor";
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*******************************************************************************
+ *
+ *
+ *  Copyright (c) 2022 Alfred
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.apache.alfred.storage.tfs;
+
+import org.apache.alfred.gflog.api.Log;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Background thread, which splits time slices overflowed by inserts, so that
+ * inserting threads do not split them under the structure lock (see
+ * {@link SliceSizePolicy}).
+ */
+class TSFSplitterThread extends Thread {
+    private static final Log LOGGER = PDSImpl.LOGGER;
+
+    private static final class Request {
+        final TSRootFolder root;
+        final long timestamp;
+
+        Request(TSRootFolder root, long timestamp) {
+            this.root = root;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+
+    // owner of files being split
+    private final DataWriterImpl accessor = new DataWriterImpl();
+
+    TSFSplitterThread() {
+        super("TSF Splitter Thread");
+
+        setDaemon(true);
+    }
+
+    /**
+     * Schedules split of the file of the given root containing given timestamp.
+     */
+    void schedule(TSRootFolder root, long timestamp) {
+        queue.add(new Request(root, timestamp));
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (;;) {
+                Request request = queue.take();
+                TSRootFolder root = request.root;
+
+                try {
+                    if (root.splitOverflow(request.timestamp, accessor) && LOGGER.isDebugEnabled())
+                        LOGGER.debug().append(root).append(": split file at ")
+                                .append(request.timestamp).commit();
+                } catch (Throwable x) {
+                    // root may be closed meanwhile
+                    if (root.isOpen())
+                        LOGGER.warn().append("Failed to split file of ").append(root).append(": ").append(x)
+                                .commit();
+                }
+            }
+        } catch (InterruptedException x) {
+            LOGGER.debug().append(getName()).append(" is interrupted. Terminating.").commit();
+        }
+    }
+}
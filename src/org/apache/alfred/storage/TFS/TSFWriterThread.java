@@ -34,6 +34,12 @@ class TSFWriterThread extends Thread {
     // compression related
     private BlockCompressor compressor = null;
     private String compression = null;
+    private int dictionaryId = 0;
+
+    // compression of compacted files
+    private BlockCompressor compactionCompressor = null;
+    private String compactionCompression = null;
+    private int compactionDictionaryId = 0;
 
     private final ByteArrayList buffer = new ByteArrayList();
 
@@ -54,8 +60,13 @@ class TSFWriterThread extends Thread {
                 final TSFile tsf = pds.getTSFToWrite();
                 final TSRootFolder root = tsf.root;
 
-                if (!StringUtils.equals(root.getCompression(), compression)) {
+                if (!StringUtils.equals(root.getCompression(), compression)
+                        || root.getCompressionDictionaryId() != dictionaryId) {
                     compression = root.getCompression();
+                    dictionaryId = root.getCompressionDictionaryId();
+
+                    if (compressor != null)
+                        compressor.close();
                     compressor = root.createCompressor(buffer);
                 }
 
@@ -97,14 +108,20 @@ class TSFWriterThread extends Thread {
                         // delete file, because we can have last usage here
                         TreeOps.tryDrop(tsf);
 
+                        // merged data was dropped along with this file
+                        tsf.releaseMergedFiles();
+
                         pds.fileWasDropped(tsf);
                     } else {
                         if (logThisOne)
                             LOGGER.debug().append("Storing ").append(tsf).append(" ...").commit();
 
-                        if (tsf.store(compressor)) {
+                        if (tsf.store(tsf.isCompacted() ? getCompactionCompressor(root) : compressor)) {
                             TreeOps.finalizeIndex(tsf.getParent());
 
+                            // merged data is on disk now - files merged into this one may go
+                            tsf.releaseMergedFiles();
+
                             if (logThisOne)
                                 LOGGER.debug().append(tsf).append(" was stored [").append(tsf.getState()).append("]")
                                         .commit();
@@ -130,4 +147,22 @@ class TSFWriterThread extends Thread {
             pds.writerFailed(this);
         }
     }
+
+    private BlockCompressor getCompactionCompressor(TSRootFolder root) {
+        String compression = TSFCompactorThread.getCompression(root.getCompression());
+
+        if (compression == null || compression.isEmpty())
+            return null;
+
+        if (!compression.equals(compactionCompression) || root.getCompressionDictionaryId() != compactionDictionaryId) {
+            compactionCompression = compression;
+            compactionDictionaryId = root.getCompressionDictionaryId();
+
+            if (compactionCompressor != null)
+                compactionCompressor.close();
+            compactionCompressor = root.createCompressor(compression, buffer);
+        }
+
+        return compactionCompressor;
+    }
 }
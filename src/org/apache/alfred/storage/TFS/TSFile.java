@@ -32,8 +32,10 @@ import org.apache.alfred.util.collections.generated.ByteArrayList;
 import org.apache.alfred.util.collections.generated.IntegerArrayList;
 import org.apache.alfred.util.collections.generated.ObjectArrayList;
 import org.apache.alfred.util.collections.generated.ObjectHashSet;
+import org.apache.alfred.util.memory.MemoryDataInput;
 
 import java.io.*;
+import java.util.BitSet;
 
 import static org.apache.alfred.storage.TFS.TSFState.*;
 
@@ -54,11 +56,38 @@ final class TSFile extends TSFolderEntry implements TimeSlice {
 
     static final int FILE_FORMAT_VERSION = 3;
 
+    // format version of files having time-encoded blocks
+    static final int TIME_ENCODED_FORMAT_VERSION = TSFFormat.TIME_ENCODED_FORMAT_VERSION;
+
+    // format version of files which may be followed by append segments
+    static final int APPENDABLE_FORMAT_VERSION = TSFFormat.APPENDABLE_FORMAT_VERSION;
+
+    // format version of files having number of messages in the index
+    static final int COUNTED_FORMAT_VERSION = TSFFormat.COUNTED_FORMAT_VERSION;
+
+    // format version of files having store sequence in the header
+    static final int STORE_SEQUENCE_FORMAT_VERSION = TSFFormat.STORE_SEQUENCE_FORMAT_VERSION;
+
+    // Store number of messages of every block in the index
+    private static final boolean MESSAGE_COUNTS = Boolean.getBoolean("TimeBase.storage.messageCounts");
+
+    // Store blocks using delta-of-delta timestamps encoding
+    private static final boolean TIME_ENCODING = Boolean.getBoolean("TimeBase.storage.timeEncoding");
+
+    private static final ThreadLocal<TimeDeltaBlockCodec> CODECS = ThreadLocal.withInitial(TimeDeltaBlockCodec::new);
+
     private static final int FILE_HEADER_SIZE = 14;
 
-    private static int computeIndexBlockSize(boolean compressed, int numEntities, int formatVersion) {
-        return (numEntities * (compressed ? 28 : DataBlockStub.SIZE_ON_DISK)
-                + (formatVersion >= 3 ? FILE_HEADER_SIZE : 10));
+    private static int computeIndexBlockSize(boolean compressed, boolean encoded, boolean counted,
+            int numEntities, int formatVersion) {
+        int entrySize = DataBlockStub.SIZE_ON_DISK + (compressed ? 4 : 0) + (encoded ? 4 : 0) + (counted ? 4 : 0);
+
+        int headerSize = formatVersion >= 3 ? FILE_HEADER_SIZE : 10;
+
+        if (formatVersion >= STORE_SEQUENCE_FORMAT_VERSION)
+            headerSize += 8;
+
+        return (numEntities * entrySize + headerSize);
     }
 
     private static final int INITIAL_SIZE = FILE_HEADER_SIZE;
@@ -88,6 +117,15 @@ final class TSFile extends TSFolderEntry implements TimeSlice {
 
     private ObjectArrayList<DataBlockInfo> dbs = null;
 
+    private final AppendLog appendLog = new AppendLog();
+
+    /*
+     * Number of stores of the file content on disk: sequence written by the last
+     * full store plus number of append segments following it. Zero, if file was
+     * never stored. Read without lock by write-ahead log.
+     */
+    private volatile long storeSequence;
+
     private ObjectHashSet<DAPrivate> checkouts = null;
 
     /**
@@ -100,6 +138,26 @@ final class TSFile extends TSFolderEntry implements TimeSlice {
      */
     long limitTimestamp = Long.MAX_VALUE;
 
+    /*
+     * File contains data merged from the following file and was not stored yet
+     */
+    private boolean compacted;
+
+    /*
+     * File exceeds max size and its split is scheduled to the background
+     */
+    private boolean splitDeferred;
+
+    /*
+     * Dropped by compaction: not queued for deletion until the file it was merged into is stored
+     */
+    private boolean dropDeferred;
+
+    /*
+     * Files merged into this one, which are deleted only after this file is stored
+     */
+    private ObjectArrayList<TSFile> mergedFiles;
+
     private final ThreadLocal<SingleEntityFilter> sef = new ThreadLocal<>();
 
     // @GuardedBy("this")
@@ -246,6 +304,23 @@ final class TSFile extends TSFolderEntry implements TimeSlice {
         return uncompressedSize;
     }
 
+    /**
+     * @return store sequence of the loaded file, or zero if file was never
+     *         stored
+     */
+    long getStoreSequence() {
+        return (storeSequence);
+    }
+
+    /**
+     * @return store sequence of the file content on disk, index is loaded if
+     *         required
+     */
+    long readStoreSequence() throws IOException {
+        ensureIndexAndDataLoaded(null, null);
+        return (storeSequence);
+    }
+
     boolean hasDataFor(EntityFilter filter) throws IOException {
         ensureIndexAndDataLoaded(filter, null);
 
@@ -403,6 +478,34 @@ final class TSFile extends TSFolderEntry implements TimeSlice {
         }
     }
 
+    @Override
+    public boolean tryInsertNotify(EntityFilter loadHint, long minTime, long maxTime, int addlLength) {
+        if (!isIndexLoaded())
+            ensureIndexAndDataLoadedCatchIOX(loadHint, null);
+
+        synchronized (this) {
+            if (minTime < getStartTimestamp() || maxTime >= limitTimestamp)
+                return false;
+
+            int newSize = uncompressedSize + addlLength;
+            int maxSize = root.getMaxFileSize();
+
+            // same tail rule as checkInsert(), leave boundary cases to it
+            if (maxTime > lastTimestamp && limitTimestamp == Long.MAX_VALUE && isTailComplete(maxTime, newSize, maxSize))
+                return false;
+
+            if (newSize > maxSize)
+                return false;
+
+            uncompressedSize = newSize;
+
+            if (maxTime > lastTimestamp)
+                setLastTimestamp(maxTime);
+
+            return true;
+        }
+    }
+
     private void invalidateTime() {
         assert Thread.holdsLock(this);
 
@@ -435,10 +538,123 @@ final class TSFile extends TSFolderEntry implements TimeSlice {
         return dataSize == 0;
     }
 
+    /**
+     * @return total length of data blocks, or -1 if index is not loaded
+     */
+    synchronized long getDataSize() {
+        if (dbs == null)
+            return -1;
+
+        int entities = dbs.size();
+        long dataSize = 0;
+
+        for (int pos = 0; pos < entities; pos++)
+            dataSize += dbs.getObjectNoRangeCheck(pos).getDataLength();
+
+        return dataSize;
+    }
+
+    /**
+     * Counts messages of accepted entities in the time range [from, to]. Message
+     * counts stored in the index are used for blocks entirely within the range,
+     * other blocks are read.
+     */
+    long countMessages(long from, long to, EntityFilter filter) throws IOException {
+        ensureIndexAndDataLoaded(null, null);
+
+        MemoryDataInput mdi = new MemoryDataInput();
+        IntegerArrayList partial = new IntegerArrayList();
+        long count = 0;
+
+        synchronized (this) {
+            for (int pos = 0, entities = dbs.size(); pos < entities; pos++) {
+                DataBlockInfo info = dbs.getObjectNoRangeCheck(pos);
+
+                if (info.getDataLength() == 0 || !filter.accept(info.getEntity()))
+                    continue;
+
+                long start = info.getStartTime();
+                long end = info.getEndTime();
+
+                if (end < from || start > to)
+                    continue;
+
+                int stored = info instanceof DataBlockStub ? ((DataBlockStub) info).getMessageCount(mdi) : -1;
+
+                if (stored >= 0 && start >= from && end <= to)
+                    count += stored;
+                else
+                    partial.add(info.getEntity());
+            }
+        }
+
+        for (int ii = 0; ii < partial.size(); ii++)
+            count += countMessages(partial.getIntegerNoRangeCheck(ii), from, to, mdi);
+
+        return count;
+    }
+
+    /**
+     * Marks entities having messages in the time range [from, to]. Only blocks
+     * spanning the whole range are read.
+     */
+    void activeEntities(long from, long to, BitSet out) throws IOException {
+        ensureIndexAndDataLoaded(null, null);
+
+        IntegerArrayList partial = new IntegerArrayList();
+
+        synchronized (this) {
+            for (int pos = 0, entities = dbs.size(); pos < entities; pos++) {
+                DataBlockInfo info = dbs.getObjectNoRangeCheck(pos);
+                int entity = info.getEntity();
+
+                if (info.getDataLength() == 0 || out.get(entity))
+                    continue;
+
+                long start = info.getStartTime();
+                long end = info.getEndTime();
+
+                if (end < from || start > to)
+                    continue;
+
+                // first or last message is within the range
+                if (start >= from || end <= to)
+                    out.set(entity);
+                else
+                    partial.add(entity);
+            }
+        }
+
+        MemoryDataInput mdi = new MemoryDataInput();
+
+        for (int ii = 0; ii < partial.size(); ii++) {
+            int entity = partial.getIntegerNoRangeCheck(ii);
+
+            if (countMessages(entity, from, to, mdi) > 0)
+                out.set(entity);
+        }
+    }
+
+    private int countMessages(int entity, long from, long to, MemoryDataInput mdi) {
+        DataBlock block = getBlock(entity, false);
+
+        if (block == null)
+            return 0;
+
+        synchronized (block) {
+            return block.countMessages(mdi, from, to);
+        }
+    }
+
     void split(final long nstime, final TSFile next, final DataAccessorBase accessor) throws IOException {
 
         assertCheckedOutTo(accessor);
 
+        // moved data remains in the log until both files are stored
+        WriteAheadLog wal = root.getWriteAheadLog();
+        if (wal != null)
+            wal.fileSplit(this, next);
+
         ensureIndexAndDataLoadedCatchIOX(EntityFilter.ALL, new AbstractBlockProcessor() {
             long lastTime = Long.MIN_VALUE;
             long firstTime = Long.MAX_VALUE;
@@ -486,6 +702,77 @@ final class TSFile extends TSFolderEntry implements TimeSlice {
         }
     }
 
+    /**
+     * Moves all data of the following file of the same folder into this file.
+     * Both files must be checked out to the given accessor; the next file
+     * should be dropped after that.
+     */
+    void merge(final TSFile next, final DAPrivate accessor) throws IOException {
+
+        assertCheckedOutTo(accessor);
+        next.assertCheckedOutTo(accessor);
+
+        ensureIndexAndDataLoaded(EntityFilter.ALL, null);
+
+        final ObjectArrayList<DataBlock> blocks = new ObjectArrayList<>();
+
+        next.ensureIndexAndDataLoaded(EntityFilter.ALL, new AbstractBlockProcessor() {
+            @Override
+            public void process(DataBlock block) {
+                if (block.getDataLength() > 0)
+                    blocks.add(block);
+            }
+        });
+
+        int moved = 0;
+
+        for (int ii = 0; ii < blocks.size(); ii++) {
+            DataBlock from = blocks.getObjectNoRangeCheck(ii);
+            DataBlock to = getBlock(from.getEntity(), true);
+
+            boolean dirty;
+
+            synchronized (to) {
+                synchronized (from) {
+                    dirty = to.appendData(from);
+                }
+            }
+
+            if (dirty)
+                blockGoesDirty(to);
+
+            moved += from.getDataLength();
+        }
+
+        synchronized (this) {
+            uncompressedSize += moved;
+            limitTimestamp = next.limitTimestamp;
+            compacted = true;
+
+            invalidateTime();
+
+            // rewrite file even if nothing was moved
+            state = TSFState.DIRTY_CHECKED_OUT;
+        }
+    }
+
+    synchronized boolean isCompacted() {
+        return compacted;
+    }
+
+    /**
+     * Loads index and data of all entities.
+     *
+     * @return uncompressed size of the file
+     */
+    int loadFully() throws IOException {
+        ensureIndexAndDataLoaded(EntityFilter.ALL, null);
+
+        synchronized (this) {
+            return uncompressedSize;
+        }
+    }
+
     long getSplitTime(final DataAccessorBase accessor) {
 
         assertCheckedOutTo(accessor);
@@ -736,6 +1023,46 @@ final class TSFile extends TSFolderEntry implements TimeSlice {
         }
     }
 
+    /**
+     * Drops this file after its data was merged into the given file. The file is deleted from disk
+     * only when the given file is stored (see {@link #releaseMergedFiles()}), so that a crash in
+     * between never loses the merged data.
+     */
+    void dropMergedInto(TSFile into) {
+        synchronized (this) {
+            dropDeferred = true;
+        }
+        synchronized (into) {
+            if (into.mergedFiles == null)
+                into.mergedFiles = new ObjectArrayList<>();
+            into.mergedFiles.add(this);
+        }
+        drop();
+    }
+
+    /**
+     * Queues deletion of files merged into this one. Called once this file is stored.
+     */
+    void releaseMergedFiles() {
+        ObjectArrayList<TSFile> merged;
+        synchronized (this) {
+            merged = mergedFiles;
+            mergedFiles = null;
+        }
+
+        if (merged != null) {
+            for (int i = 0; i < merged.size(); i++)
+                merged.getObjectNoRangeCheck(i).releaseDeferredDrop();
+        }
+    }
+
+    private synchronized void releaseDeferredDrop() {
+        dropDeferred = false;
+
+        if (state == DIRTY_QUEUED_FOR_WRITE)
+            addToWriteQueue(root.getCache());
+    }
+
     @Override
     void drop() {
         if (LOGGER.isDebugEnabled())
@@ -744,6 +1071,10 @@ final class TSFile extends TSFolderEntry implements TimeSlice {
         getParent().buildCache();
         getParent().dropChild(this);
 
+        WriteAheadLog wal = root.getWriteAheadLog();
+        if (wal != null)
+            wal.fileStored(this);
+
         synchronized (this) {
             dropped = true;
 
@@ -759,6 +1090,11 @@ final class TSFile extends TSFolderEntry implements TimeSlice {
     @Override
     synchronized void deactivate() {
 
+        if (decompressor != null) {
+            decompressor.close();
+            decompressor = null;
+        }
+
         if (dbs != null) {
             for (int pos = 0, numEntities = dbs.size(); pos < numEntities; pos++)
                 dbs.getObjectNoRangeCheck(pos).clear();
@@ -829,7 +1165,17 @@ final class TSFile extends TSFolderEntry implements TimeSlice {
     boolean store(BlockCompressor compressor) throws IOException {
         ensureIndexAndDataLoaded(EntityFilter.ALL, null);
 
-        return storeInternal(compressor);
+        synchronized (this) {
+            if (!storeInternal(compressor))
+                return false;
+
+            // logged data of this file is on disk now
+            WriteAheadLog wal = root.getWriteAheadLog();
+            if (wal != null)
+                wal.fileStored(this);
+
+            return true;
+        }
     }
 
     private synchronized boolean storeInternal(BlockCompressor compressor) throws IOException {
@@ -839,26 +1185,102 @@ final class TSFile extends TSFolderEntry implements TimeSlice {
         if (state != DIRTY_QUEUED_FOR_WRITE)
             return false;
 
+        boolean appendable = AppendLog.isSupported(root);
+
+        if (appendable && !isNew && appendLog.canAppend(dbs)) {
+            if (appendLog.append(getPath(), dbs))
+                storeSequence++;
+
+            return true;
+        }
+
         int numEntities = dbs.size();
 
         compressedOnDisk = (compressor != null);
 
-        int indexSize = computeIndexBlockSize(compressedOnDisk, numEntities, FILE_FORMAT_VERSION);
+        if (compressedOnDisk)
+            root.sampleForDictionary(dbs);
+
+        boolean timeEncoded = TIME_ENCODING;
+        boolean counted = MESSAGE_COUNTS;
+
+        // write-ahead log compares store sequences to skip data stored already
+        boolean sequenced = root.getWriteAheadLog() != null;
+        long sequence = storeSequence + 1;
+
+        if (sequenced)
+            formatVersion = STORE_SEQUENCE_FORMAT_VERSION;
+        else if (counted)
+            formatVersion = COUNTED_FORMAT_VERSION;
+        else if (appendable)
+            formatVersion = APPENDABLE_FORMAT_VERSION;
+        else
+            formatVersion = timeEncoded ? TIME_ENCODED_FORMAT_VERSION : FILE_FORMAT_VERSION;
+
+        int indexSize = computeIndexBlockSize(compressedOnDisk, timeEncoded, counted, numEntities, formatVersion);
+        int[] counts = null;
+
+        if (counted) {
+            MemoryDataInput mdi = new MemoryDataInput();
+            counts = new int[numEntities];
+
+            for (int ii = 0; ii < numEntities; ii++) {
+                DataBlock db = (DataBlock) dbs.getObjectNoRangeCheck(ii);
+                counts[ii] = db.countMessages(mdi, Long.MIN_VALUE, Long.MAX_VALUE);
+            }
+        }
         int sizeOnDisk;
         int[] compLengths;
+        int[] encLengths = null;
+        ByteArrayList encodedData = null;
         ByteArrayList compressedData = null;
+        ParallelBlockCompressor parallel = null;
+
+        if (timeEncoded) {
+            TimeDeltaBlockCodec codec = CODECS.get();
+
+            encodedData = new ByteArrayList(); // @ALLOCATION
+            encLengths = new int[numEntities];
+
+            for (int ii = 0; ii < numEntities; ii++) {
+                final DataBlock db = (DataBlock) dbs.getObjectNoRangeCheck(ii);
 
-        if (compressedOnDisk) {
+                if (db.getDataLength() == 0)
+                    encLengths[ii] = 0;
+                else {
+                    ByteArray data = db.getData();
+                    encLengths[ii] = codec.encode(data.getArray(), data.getOffset(), db.getDataLength(),
+                            db.getStartTime(), encodedData);
+                }
+            }
+        }
+
+        if (compressedOnDisk && ParallelBlockCompressor.isEnabled(numEntities)) {
+            // compression of the given compressor, which differs from the root one for compacted files
+            String compression = compressor.getCompression();
+            if (compression != null)
+                parallel = new ParallelBlockCompressor(dbs, compression, compressor.getDictionary(), encodedData,
+                        encLengths);
+        }
+
+        if (parallel != null) {
+            compLengths = parallel.compress();
+            sizeOnDisk = indexSize + parallel.getCompressedSize();
+        } else if (compressedOnDisk) {
             compressedData = compressor.getReusableBuffer();
             compressedData.setSize(0);
             compLengths = new int[numEntities];
 
-            for (int ii = 0; ii < numEntities; ii++) {
+            for (int ii = 0, encOffset = 0; ii < numEntities; ii++) {
                 final DataBlock db = (DataBlock) dbs.getObjectNoRangeCheck(ii);
 
                 if (db.getDataLength() == 0)
                     compLengths[ii] = 0;
-                else {
+                else if (timeEncoded) {
+                    compLengths[ii] = compressor.deflate(encodedData.getInternalBuffer(), encOffset, encLengths[ii],
+                            compressedData);
+                    encOffset += encLengths[ii];
+                } else {
                     ByteArray data = db.getData();
                     compLengths[ii] = compressor.deflate(data.getArray(), data.getOffset(), db.getDataLength(),
                             compressedData);
@@ -866,13 +1288,14 @@ final class TSFile extends TSFolderEntry implements TimeSlice {
             }
 
             sizeOnDisk = indexSize + compressedData.size();
+        } else if (timeEncoded) {
+            compLengths = null;
+            sizeOnDisk = indexSize + encodedData.size();
         } else {
             compLengths = null;
-            sizeOnDisk = uncompressedSize;
+            sizeOnDisk = counted || sequenced ? indexSize + (int) getDataSize() : uncompressedSize;
         }
 
-        formatVersion = FILE_FORMAT_VERSION;
-
         //
         // Rebuild the offsets array to correspond to the data on disk.
         // Must get a shared structure lock to prevent folder changes.
@@ -890,8 +1313,20 @@ final class TSFile extends TSFolderEntry implements TimeSlice {
             if (compressedOnDisk)
                 flags = TSFFormat.setAlgorithmCode(flags, compressor.code());
 
+            if (timeEncoded)
+                flags |= TSFFormat.TIME_ENCODED_FLAG;
+
+            if (appendable)
+                flags |= TSFFormat.APPENDABLE_FLAG;
+
+            if (counted)
+                flags |= TSFFormat.COUNTED_FLAG;
+
             dos.writeInt(flags);
 
+            if (sequenced)
+                dos.writeLong(sequence);
+
             int offset = indexSize;
 
             for (int ii = 0; ii < numEntities; ii++) {
@@ -900,17 +1335,32 @@ final class TSFile extends TSFolderEntry implements TimeSlice {
                 dos.writeInt(db.getEntity());
                 dos.writeInt(db.getDataLength());
 
+                if (timeEncoded)
+                    dos.writeInt(encLengths[ii]);
+
                 if (compressedOnDisk)
                     dos.writeInt(compLengths[ii]);
 
+                if (counted)
+                    dos.writeInt(counts[ii]);
+
                 dos.writeLong(db.getStartTime());
                 dos.writeLong(db.getEndTime());
 
                 offset += db.getDataLength();
             }
 
-            if (compressedOnDisk) {
+            if (parallel != null) {
+                parallel.writeTo(os);
+            } else if (compressedOnDisk) {
                 os.write(compressedData.getInternalBuffer(), 0, compressedData.size());
+            } else if (timeEncoded) {
+                uncompressedSize = offset;
+
+                os.write(encodedData.getInternalBuffer(), 0, encodedData.size());
+
+                for (int ii = 0; ii < numEntities; ii++)
+                    ((DataBlock) dbs.getObjectNoRangeCheck(ii)).setClean();
             } else {
 
                 uncompressedSize = offset;
@@ -931,6 +1381,13 @@ final class TSFile extends TSFolderEntry implements TimeSlice {
         TreeOps.finalize(tmp);
 
         isNew = false;
+        compacted = false;
+        storeSequence = sequence;
+
+        appendLog.reset(sizeOnDisk, appendable);
+
+        for (int ii = 0; ii < numEntities; ii++)
+            ((DataBlock) dbs.getObjectNoRangeCheck(ii)).setStored();
 
         // if (DEBUG_VERIFY_FILE_AFTER_STORE) {
         // TSFVerifier tsfv = new TSFVerifier ();
@@ -998,6 +1455,9 @@ final class TSFile extends TSFolderEntry implements TimeSlice {
     private void addToWriteQueue(PDSImpl cache) {
         assert Thread.holdsLock(this);
 
+        if (dropDeferred)
+            return; // queued by releaseDeferredDrop()
+
         if (!queued) {
             useMore(); // account for queue referencing this TSF
             cache.addToWriteQueue(this);
@@ -1018,6 +1478,48 @@ final class TSFile extends TSFolderEntry implements TimeSlice {
     // );
     // }
 
+    /**
+     * Clears deferred split request of this file.
+     *
+     * @return true, if split was requested and the file still exceeds max size
+     */
+    synchronized boolean takeDeferredSplit(int maxSize) {
+        boolean split = splitDeferred && uncompressedSize > maxSize;
+
+        splitDeferred = false;
+
+        return split;
+    }
+
+    /**
+     * @return true, if tail file should be closed before appending message at
+     *         given timestamp, making its size newSize
+     */
+    private boolean isTailComplete(long timestamp, int newSize, int maxSize) {
+        assert Thread.holdsLock(this);
+
+        SliceSizePolicy policy = root.getSlicePolicy();
+
+        if (policy == null)
+            return newSize < maxSize && newSize > maxSize - maxSize / 10; // more that 90% max size
+
+        long start = getStartTimestamp();
+        long span = start != Long.MIN_VALUE ? timestamp - start : -1;
+
+        return policy.isTailComplete(uncompressedSize, newSize, span, maxSize);
+    }
+
+    /**
+     * Accounts size and time span of this file, when the next file is created
+     * after it.
+     */
+    synchronized void tailClosed(SliceSizePolicy policy) {
+        long start = getStartTimestamp();
+
+        if (start != Long.MIN_VALUE)
+            policy.sliceClosed(uncompressedSize, lastTimestamp - start);
+    }
+
     private synchronized ExpansionStrategy checkInsert(long timestamp, int addlLength) {
         // check start timestamp
         if (timestamp < getStartTimestamp())
@@ -1032,7 +1534,7 @@ final class TSFile extends TSFolderEntry implements TimeSlice {
 
         //
         if (timestamp > lastTimestamp && limitTimestamp == Long.MAX_VALUE) {
-            if (newSize < maxSize && newSize > maxSize - maxSize / 10) // more that 90% max size
+            if (isTailComplete(timestamp, newSize, maxSize))
                 return (ExpansionStrategy.MOVE_FORWARD);
         }
 
@@ -1055,6 +1557,23 @@ final class TSFile extends TSFolderEntry implements TimeSlice {
             return (null);
         }
 
+        // leave split to the background, while overflow is tolerable
+        SliceSizePolicy policy = root.getSlicePolicy();
+
+        if (policy != null && policy.canDeferSplit(newSize, maxSize)) {
+            if (!splitDeferred)
+                splitDeferred = root.getCache().scheduleSplit(root, lastTimestamp);
+
+            if (splitDeferred) {
+                uncompressedSize = newSize;
+
+                if (timestamp > lastTimestamp)
+                    setLastTimestamp(timestamp);
+
+                return (null);
+            }
+        }
+
         return (ExpansionStrategy.SPLIT);
     }
 
@@ -1112,19 +1631,27 @@ final class TSFile extends TSFolderEntry implements TimeSlice {
         else {
             DataBlockStub dbx = (DataBlockStub) dbi;
 
-            openOrSeek(in, dbx.getOffsetInFile());
-
             if (bp != null)
                 db = bp.allocate(); // TODO: @ALLOCATION
             else
                 db = new DataBlock();
 
-            db.init(this, dbi.getEntity(), dbi.getDataLength(), dbi.getStartTime(), dbi.getEndTime());
+            db.init(this, dbi.getEntity(), dbx.getBaseLength(), dbx.getBaseStartTime(), dbx.getBaseEndTime());
 
-            if (compressedOnDisk && decompressor == null)
-                decompressor = root.createDecompressor(compressionCode);
+            // entities added by append segments have nothing in the base part
+            if (dbx.getLengthOnDisk() > 0) {
+                openOrSeek(in, dbx.getOffsetInFile());
+
+                if (compressedOnDisk && decompressor == null)
+                    decompressor = root.createDecompressor(compressionCode);
+
+                in.read(db, dbx.getLengthOnDisk(), dbx.getEncodedLength(), decompressor);
+            }
+
+            AppendLog.Tail tail = dbx.getTail();
+            if (tail != null)
+                db.appendStored(tail.data.getInternalBuffer(), 0, tail.data.size(), tail.startTime, tail.endTime);
 
-            in.read(db, dbx.getLengthOnDisk(), decompressor);
             dbs.set(pos, db);
         }
 
@@ -1134,6 +1661,14 @@ final class TSFile extends TSFolderEntry implements TimeSlice {
         return (db);
     }
 
+    /*
+     * Returns true if the block is not loaded and has data in the base part of
+     * the file, i.e. loading it needs positioning of the input
+     */
+    private static boolean isStoredStub(DataBlockInfo dbi) {
+        return (dbi instanceof DataBlockStub && ((DataBlockStub) dbi).getLengthOnDisk() > 0);
+    }
+
     private DataBlock getOrLoadBlock(int entity) {
         return (ensureIndexAndDataLoadedCatchIOX(single(entity), null));
     }
@@ -1203,7 +1738,7 @@ final class TSFile extends TSFolderEntry implements TimeSlice {
 
                     if (pos >= 0) {
                         DataBlockInfo info = dbs.getObjectNoRangeCheck(pos);
-                        if (info instanceof DataBlockStub) {
+                        if (isStoredStub(info)) {
                             startOffset = ((DataBlockStub) info).getOffsetInFile();
                         } else {
                             lastDB = processEntity(input, pos, dbs.getObjectNoRangeCheck(pos), bp);
@@ -1238,7 +1773,7 @@ final class TSFile extends TSFolderEntry implements TimeSlice {
                         DataBlockInfo test = dbs.getObjectNoRangeCheck(pos);
 
                         if (filter.accept(test.getEntity())) {
-                            if (test instanceof DataBlockStub) {
+                            if (isStoredStub(test)) {
                                 startOffset = ((DataBlockStub) test).getOffsetInFile();
                                 break;
                             }
@@ -1286,6 +1821,8 @@ final class TSFile extends TSFolderEntry implements TimeSlice {
         int flags = dis.readInt();
         int numEntities = flags & TSFFormat.NUM_ENTS_MASK;
 
+        long sequence = formatVersion >= STORE_SEQUENCE_FORMAT_VERSION ? dis.readLong() : 0;
+
         compressedOnDisk = (flags & TSFFormat.COMPRESSED_FLAG) != 0;
 
         if (formatVersion >= 2)
@@ -1293,9 +1830,15 @@ final class TSFile extends TSFolderEntry implements TimeSlice {
         else if (compressedOnDisk)
             compressionCode = BlockCompressorFactory.getCode(Algorithm.LZ4);
 
-        int indexBlockSize = computeIndexBlockSize(compressedOnDisk, numEntities, formatVersion);
+        boolean timeEncoded = formatVersion >= TIME_ENCODED_FORMAT_VERSION
+                && (flags & TSFFormat.TIME_ENCODED_FLAG) != 0;
+
+        boolean counted = formatVersion >= COUNTED_FORMAT_VERSION && (flags & TSFFormat.COUNTED_FLAG) != 0;
 
-        uncompressedSize = indexBlockSize;
+        int indexBlockSize = computeIndexBlockSize(compressedOnDisk, timeEncoded, counted, numEntities,
+                formatVersion);
+
+        uncompressedSize = computeIndexBlockSize(compressedOnDisk, false, counted, numEntities, formatVersion);
 
         int blockOffsetOnDisk = indexBlockSize;
         DataBlockStub prevStub = null;
@@ -1307,7 +1850,9 @@ final class TSFile extends TSFolderEntry implements TimeSlice {
                 throw new IOException("Wrong entity ordering: " + entity + " after " + prevStub.getEntity());
 
             int dataLength = dis.readInt();
-            int lengthOnDisk = compressedOnDisk ? dis.readInt() : dataLength;
+            int encodedLength = timeEncoded ? dis.readInt() : -1;
+            int lengthOnDisk = compressedOnDisk ? dis.readInt() : (timeEncoded ? encodedLength : dataLength);
+            int messageCount = counted ? dis.readInt() : -1;
             long startTime = dis.readLong();
             long endTime = dis.readLong();
 
@@ -1319,8 +1864,9 @@ final class TSFile extends TSFolderEntry implements TimeSlice {
                 continue;
             }
 
-            DataBlockStub dbx = new DataBlockStub(entity, blockOffsetOnDisk, lengthOnDisk, dataLength, startTime,
-                    endTime);
+            DataBlockStub dbx = new DataBlockStub(entity, blockOffsetOnDisk, lengthOnDisk, dataLength, encodedLength,
+                    startTime, endTime);
+            dbx.setMessageCount(messageCount);
 
             dbs.add(dbx);
 
@@ -1333,9 +1879,43 @@ final class TSFile extends TSFolderEntry implements TimeSlice {
                 setLastTimestamp(endTime);
         }
 
+        if (formatVersion >= APPENDABLE_FORMAT_VERSION && (flags & TSFFormat.APPENDABLE_FLAG) != 0)
+            applyTails(appendLog.load(getPath(), blockOffsetOnDisk), blockOffsetOnDisk);
+        else
+            appendLog.reset(blockOffsetOnDisk, false);
+
+        storeSequence = sequence + appendLog.getNumSegments();
+
         input.setOffset(indexBlockSize);
     }
 
+    /*
+     * Attaches data of append segments to block stubs
+     */
+    private void applyTails(ObjectArrayList<AppendLog.Tail> tails, int baseSize) {
+        for (int ii = 0, n = tails.size(); ii < n; ii++) {
+            AppendLog.Tail tail = tails.getObjectNoRangeCheck(ii);
+            int pos = find(tail.entity);
+            DataBlockStub dbx;
+
+            if (pos >= 0) {
+                dbx = (DataBlockStub) dbs.getObjectNoRangeCheck(pos);
+            } else {
+                dbx = new DataBlockStub(tail.entity, baseSize, 0, 0, Long.MAX_VALUE, Long.MIN_VALUE);
+                dbs.add(-pos - 1, dbx);
+
+                uncompressedSize += DataBlockStub.SIZE_ON_DISK;
+            }
+
+            dbx.setTail(tail);
+
+            uncompressedSize += tail.data.size();
+
+            if (tail.endTime > lastTimestamp)
+                setLastTimestamp(tail.endTime);
+        }
+    }
+
     private synchronized void assertCheckedOutTo(DAPrivate accessor) {
         // assert isCheckedOut () :
         // this + " is not in a checked out state";
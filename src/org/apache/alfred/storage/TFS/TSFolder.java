@@ -24,6 +24,7 @@ import org.apache.alfred.storage.TFS.codecs.TSFFormat;
 import org.apache.alfred.storage.TFS.codecs.TSNames;
 import org.apache.alfred.storage.TFS.pub.AbstractSingleEntityFilter;
 import org.apache.alfred.storage.TFS.pub.EntityFilter;
+import org.apache.alfred.storage.TFS.pub.ListEntityFilter;
 import org.apache.alfred.util.collections.generated.IntegerArrayList;
 import org.apache.alfred.util.collections.generated.IntegerToObjectHashMap;
 import org.apache.alfred.util.collections.generated.ObjectArrayList;
@@ -84,7 +85,7 @@ abstract class TSFolder extends TSFolderEntry {
     private ObjectArrayList<EntityIndexEntry> entityIndex = null;
 
     // run-time cache of entities for each file - only for leaf folders
-    private HashMap<TSFolderEntry, IntegerArrayList> cache;
+    private HashMap<TSFolderEntry, EntityBitmap> cache;
 
     TSFolder() {
     }
@@ -115,7 +116,7 @@ abstract class TSFolder extends TSFolderEntry {
 
         synchronized (this) {
             if (cache == null)
-                cache = new HashMap<TSFolderEntry, IntegerArrayList>();
+                cache = new HashMap<TSFolderEntry, EntityBitmap>();
             else
                 return;
         }
@@ -124,7 +125,7 @@ abstract class TSFolder extends TSFolderEntry {
             if (child instanceof TSFile) {
                 TreeOps.use(child);
                 try {
-                    IntegerArrayList value = ((TSFile) child).getEntities();
+                    EntityBitmap value = EntityBitmap.of(((TSFile) child).getEntities());
                     synchronized (this) {
                         cache.put(child, value);
                     }
@@ -150,7 +151,7 @@ abstract class TSFolder extends TSFolderEntry {
     TSFolderEntry getNext(TSFolderEntry entry, int entity) {
         TSFolderEntry next = entry.getNextSibling();
         while (next != null && cache != null) {
-            IntegerArrayList entries = cache.get(next);
+            EntityBitmap entries = cache.get(next);
             if (entries != null && entries.contains(entity))
                 return next;
             else
@@ -163,7 +164,7 @@ abstract class TSFolder extends TSFolderEntry {
     TSFolderEntry getPrevious(TSFolderEntry entry, int entity) {
         TSFolderEntry previous = entry.getPreviousSibling();
         while (previous != null && cache != null) {
-            IntegerArrayList entries = cache.get(previous);
+            EntityBitmap entries = cache.get(previous);
             if (entries != null && entries.contains(entity))
                 return previous;
             else
@@ -395,6 +396,23 @@ abstract class TSFolder extends TSFolderEntry {
         ensureLoaded();
 
         TSFolderEntry ret = null;
+
+        if (filter instanceof ListEntityFilter) {
+            for (int entity : ((ListEntityFilter) filter).getEntities()) {
+                int pos = findEntity(entity);
+
+                if (pos < 0)
+                    continue;
+
+                EntityIndexEntry ee = entityIndex.getObjectNoRangeCheck(pos);
+
+                if (ret == null || earlier(ee.first, ret))
+                    ret = ee.first;
+            }
+
+            return (ret);
+        }
+
         int numEntries = entityIndex.size();
 
         for (int ii = 0; ii < numEntries; ii++) {
@@ -414,14 +432,24 @@ abstract class TSFolder extends TSFolderEntry {
         if (filter == null)
             return true;
 
-        if (filter instanceof AbstractSingleEntityFilter) {
-            int entity = ((AbstractSingleEntityFilter) filter).getSingleEntity();
-            EntityIndexEntry ee = entityIndex.getObjectNoRangeCheck(entity);
+        ensureLoaded();
 
-            return earlier(ee.first, entry);
-        }
+        int[] selected = getSelectedEntities(filter);
 
-        ensureLoaded();
+        EntityBitmap entities = cache != null ? cache.get(entry) : null;
+        if (entities != null)
+            return selected != null ? entities.containsAny(selected) : entities.containsAny(filter);
+
+        if (selected != null) {
+            for (int entity : selected) {
+                int pos = findEntity(entity);
+
+                if (pos >= 0 && isInRange(entityIndex.getObjectNoRangeCheck(pos), entry))
+                    return true;
+            }
+
+            return false;
+        }
 
         int numEntries = entityIndex.size();
 
@@ -431,14 +459,32 @@ abstract class TSFolder extends TSFolderEntry {
             if (!filter.accept(ee.entity))
                 continue;
 
-            if (ee.first.getIdxInParent() <= entry.getIdxInParent()
-                    && ee.last.getIdxInParent() >= entry.getIdxInParent())
+            if (isInRange(ee, entry))
                 return true;
         }
 
         return false;
     }
 
+    private static boolean isInRange(EntityIndexEntry ee, TSFolderEntry entry) {
+        return ee.first.getIdxInParent() <= entry.getIdxInParent()
+                && ee.last.getIdxInParent() >= entry.getIdxInParent();
+    }
+
+    /*
+     * Returns sorted entities selected by the filter, or null if filter does
+     * not enumerate them.
+     */
+    private static int[] getSelectedEntities(EntityFilter filter) {
+        if (filter instanceof AbstractSingleEntityFilter)
+            return new int[] { ((AbstractSingleEntityFilter) filter).getSingleEntity() };
+
+        if (filter instanceof ListEntityFilter)
+            return ((ListEntityFilter) filter).getEntities();
+
+        return null;
+    }
+
     TSFolderEntry getLastChildWithDataFor(EntityFilter filter) throws IOException {
         if (filter == null)
             return (getLastEntry());
@@ -449,6 +495,23 @@ abstract class TSFolder extends TSFolderEntry {
         ensureLoaded();
 
         TSFolderEntry ret = null;
+
+        if (filter instanceof ListEntityFilter) {
+            for (int entity : ((ListEntityFilter) filter).getEntities()) {
+                int pos = findEntity(entity);
+
+                if (pos < 0)
+                    continue;
+
+                EntityIndexEntry ee = entityIndex.getObjectNoRangeCheck(pos);
+
+                if (ret == null || later(ee.last, ret))
+                    ret = ee.last;
+            }
+
+            return (ret);
+        }
+
         int numEntries = entityIndex.size();
 
         for (int ii = 0; ii < numEntries; ii++) {
@@ -563,8 +626,7 @@ abstract class TSFolder extends TSFolderEntry {
         }
 
         if (cache != null) {
-            IntegerArrayList list = cache.computeIfAbsent(child, k -> new IntegerArrayList());
-            list.add(entity);
+            cache.computeIfAbsent(child, k -> new EntityBitmap()).add(entity);
         }
 
         return (wasNewEntity);
@@ -587,12 +649,9 @@ abstract class TSFolder extends TSFolderEntry {
             assert pos >= 0;
 
             if (cache != null) {
-                IntegerArrayList list = cache.get(child);
-                if (list != null) {
-                    int index = list.indexOf(entity);
-                    if (index != -1)
-                        list.remove(index);
-                }
+                EntityBitmap entities = cache.get(child);
+                if (entities != null)
+                    entities.remove(entity);
             }
 
             ee = entityIndex.getObjectNoRangeCheck(pos);
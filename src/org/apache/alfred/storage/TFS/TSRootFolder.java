@@ -26,6 +26,8 @@ import org.apache.alfred.storage.tfs.pub.*;
 import org.apache.alfred.hf.pub.TimeInterval;
 import org.apache.alfred.hf.tickdb.impl.PDStreamSpaceIndexManager;
 import org.apache.alfred.util.collections.generated.ByteArrayList;
+import org.apache.alfred.util.collections.generated.IntegerArrayList;
+import org.apache.alfred.util.collections.generated.ObjectArrayList;
 import org.apache.alfred.util.concurrent.*;
 import org.apache.alfred.util.lang.*;
 import org.apache.alfred.util.time.GMT;
@@ -36,7 +38,6 @@ import java.io.*;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 
 import static org.apache.alfred.storage.tfs.TreeOps.*;
@@ -63,7 +64,9 @@ final class TSRootFolder extends TSFolder implements TSRoot, TimeSliceStore {
     private int spaceIndex = PDStreamSpaceIndexManager.NO_INDEX;
     private final PDSImpl cache;
     private final SymbolRegistryImpl symRegistry = new SymbolRegistryImpl();
-    private final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
+    private final CompressionDictionaries dictionaries = new CompressionDictionaries(this);
+    private final StructureLock rwl = StructureLock.create();
+    private volatile WriteAheadLog wal;
 
     // indicates that we have active writers now, affects time range retrieval
     private final AtomicInteger writing = new AtomicInteger(0);
@@ -71,6 +74,18 @@ final class TSRootFolder extends TSFolder implements TSRoot, TimeSliceStore {
     // global structure index
     private final AtomicLong sequence = new AtomicLong(0);
 
+    // rollups maintained by writers, copied on write
+    private volatile RollupDefinition[] rollups = new RollupDefinition[0];
+
+    private final LastMessageCache lastMessages = new LastMessageCache(this);
+
+    // adaptive sizing of time slices, or null if disabled
+    private final SliceSizePolicy slicePolicy = SliceSizePolicy.ENABLED ? new SliceSizePolicy() : null;
+
+    // position of this root in a sharded stream, persisted in root properties
+    private int shardIndex = -1;
+    private int numShards = 0;
+
     TSRootFolder(PDSImpl cache, AbstractFileSystem fs, String path, @Nullable String space) {
         super();
 
@@ -110,6 +125,70 @@ final class TSRootFolder extends TSFolder implements TSRoot, TimeSliceStore {
         } finally {
             releaseSharedLock();
         }
+
+        if (!readOnly && cache.isStarted() && WriteAheadLog.isSupported(this))
+            openWriteAheadLog();
+
+        if (!readOnly) {
+            dropCleanShutdownMarker();
+            cache.rootOpened(this);
+        }
+    }
+
+    /**
+     * Marks the tree as consistent on disk, so that recovery may skip verifying
+     * it. The marker lives until the root is opened for writing again.
+     */
+    private void writeCleanShutdownMarker() {
+        if (readOnly)
+            return;
+
+        try (OutputStream os = getPath().append(TSNames.CLEAN_SHUTDOWN_NAME).openOutput(0)) {
+            // empty
+        } catch (IOException iox) {
+            LOGGER.warn().append("Error writing clean shutdown marker in [").append(this).append("]: ").append(iox)
+                    .commit();
+        }
+    }
+
+    private void dropCleanShutdownMarker() {
+        try {
+            getPath().append(TSNames.CLEAN_SHUTDOWN_NAME).deleteIfExists();
+        } catch (IOException iox) {
+            throw new UncheckedIOException("Failed to delete clean shutdown marker of [" + path + "]", iox);
+        }
+    }
+
+    private void openWriteAheadLog() {
+        WriteAheadLog log = new WriteAheadLog(this);
+        wal = log;
+
+        try {
+            log.open(cache);
+        } catch (IOException iox) {
+            wal = null;
+            log.abort();
+            throw new UncheckedIOException("Failed to replay write-ahead log of [" + path + "]", iox);
+        }
+    }
+
+    private void closeWriteAheadLog(boolean commit) {
+        WriteAheadLog log = wal;
+        wal = null;
+
+        if (log != null) {
+            if (commit)
+                log.close();
+            else
+                log.abort();
+        }
+    }
+
+    /**
+     * @return write-ahead log of this root, or null if disabled
+     */
+    WriteAheadLog getWriteAheadLog() {
+        return (wal);
     }
 
     @Override
@@ -122,7 +201,10 @@ final class TSRootFolder extends TSFolder implements TSRoot, TimeSliceStore {
         acquireWriteLock();
         try {
             isOpen = false;
+            cache.rootClosed(this);
+            lastMessages.clear();
 
+            closeWriteAheadLog(false);
             super.format();
             FSUtils.removeRecursive(getPath(), true, null);
         } catch (IOException iox) {
@@ -140,6 +222,7 @@ final class TSRootFolder extends TSFolder implements TSRoot, TimeSliceStore {
         acquireWriteLock();
 
         try {
+            closeWriteAheadLog(false);
             super.format();
             FSUtils.removeRecursive(getPath(), false, null);
 
@@ -149,6 +232,7 @@ final class TSRootFolder extends TSFolder implements TSRoot, TimeSliceStore {
             path.makeFolderRecursive();
 
             initNew();
+            lastMessages.clear();
             storeDirtyData();
             symRegistry.format(path);
 
@@ -166,6 +250,11 @@ final class TSRootFolder extends TSFolder implements TSRoot, TimeSliceStore {
             }
             releaseWriteLock();
         }
+
+        if (cache.isStarted() && WriteAheadLog.isSupported(this))
+            openWriteAheadLog();
+
+        cache.rootOpened(this);
     }
 
     @Override
@@ -188,8 +277,11 @@ final class TSRootFolder extends TSFolder implements TSRoot, TimeSliceStore {
                 return;
 
             if (!isActive()) {
+                cache.rootClosed(this);
+                closeWriteAheadLog(true);
                 storeRegistry();
                 symRegistry.close();
+                writeCleanShutdownMarker();
                 isOpen = false;
                 return;
             }
@@ -229,7 +321,7 @@ final class TSRootFolder extends TSFolder implements TSRoot, TimeSliceStore {
 
     private void storeRegistry() {
         try {
-            symRegistry.storeIfDirty(getPath());
+            symRegistry.storeIfDirty(getPath(), true);
         } catch (IOException e) {
             LOGGER.warn().append("Error storing symbols in [").append(this).append("]: ").append(e).commit();
         }
@@ -243,6 +335,8 @@ final class TSRootFolder extends TSFolder implements TSRoot, TimeSliceStore {
         if (isActive())
             LOGGER.warn().append("FORCE-Closing ").append(this).append(" while in active state").commit();
 
+        cache.rootClosed(this);
+        closeWriteAheadLog(false);
         storeRegistry();
         symRegistry.close();
         isOpen = false;
@@ -299,15 +393,101 @@ final class TSRootFolder extends TSFolder implements TSRoot, TimeSliceStore {
         }
     }
 
+    /**
+     * @return adaptive sizing policy of time slices, or null if disabled
+     */
+    SliceSizePolicy getSlicePolicy() {
+        return slicePolicy;
+    }
+
+    /**
+     * @return index of this root in a sharded stream, or -1 if not sharded
+     */
+    synchronized int getShardIndex() {
+        return shardIndex;
+    }
+
+    /**
+     * @return number of shards of a sharded stream, or 0 if not sharded
+     */
+    synchronized int getNumShards() {
+        return numShards;
+    }
+
+    /**
+     * Records position of this root in a sharded stream. Entities are routed by
+     * hash modulo number of shards, so it may not change once data is written.
+     */
+    synchronized void setShard(int index, int count) {
+        if (numShards == count && shardIndex == index)
+            return;
+
+        if (numShards != 0)
+            throw new IllegalStateException(this + " is shard " + shardIndex + "/" + numShards + ", not " + index + "/"
+                    + count);
+
+        shardIndex = index;
+        numShards = count;
+        configIsDirty = true;
+
+        if (isOpen && !readOnly) {
+            try {
+                storePropertiesIfDirty(getPath());
+            } catch (IOException iox) {
+                throw new UncheckedIOException(iox);
+            }
+        }
+    }
+
     public BlockCompressor createCompressor(ByteArrayList buffer) {
         if (compression == null || compression.isEmpty())
             return null;
 
-        return BlockCompressorFactory.createCompressor(compression, buffer);
+        return BlockCompressorFactory.createCompressor(compression, dictionaries.getCurrent(), buffer);
+    }
+
+    /**
+     * Creates compressor for the given compression instead of the root one,
+     * using current dictionary of this root.
+     */
+    BlockCompressor createCompressor(String compression, ByteArrayList buffer) {
+        return BlockCompressorFactory.createCompressor(compression, dictionaries.getCurrent(), buffer);
     }
 
     public BlockDecompressor createDecompressor(byte compressionCode) {
-        return BlockCompressorFactory.createDecompressor(compressionCode);
+        return BlockCompressorFactory.createDecompressor(compressionCode, dictionaries);
+    }
+
+    /**
+     * @return id of compression dictionary used for new files, or 0
+     */
+    int getCompressionDictionaryId() {
+        return dictionaries.getCurrentId();
+    }
+
+    /**
+     * Samples given data blocks to train compression dictionary, if current
+     * compression supports dictionaries.
+     */
+    void sampleForDictionary(ObjectArrayList<DataBlockInfo> blocks) {
+        String compression = getCompression();
+
+        if (compression == null || compression.isEmpty() || !dictionaries.needsSamples())
+            return;
+
+        if (BlockCompressorFactory.getAlgorithm(BlockCompressorFactory.getCode(compression)) != Algorithm.ZSTD)
+            return;
+
+        dictionaries.sample(blocks);
+    }
+
+    /**
+     * Called by dictionary trainer when new current dictionary is stored.
+     */
+    void dictionaryChanged() {
+        synchronized (this) {
+            configIsDirty = true;
+        }
     }
 
     @Override
@@ -513,6 +693,9 @@ final class TSRootFolder extends TSFolder implements TSRoot, TimeSliceStore {
 
         } catch (IOException iox) {
             throw new UncheckedIOException(iox);
+        } finally {
+            // slices may be modified by iterator
+            lastMessages.clear();
         }
     }
 
@@ -578,10 +761,130 @@ final class TSRootFolder extends TSFolder implements TSRoot, TimeSliceStore {
         } catch (IOException iox) {
             throw new UncheckedIOException(iox);
         } finally {
+            lastMessages.clear();
             releaseWriteLock();
         }
     }
 
+    /**
+     * Merges adjacent files of the same folder, when all their data is older
+     * than the given time and they fit into the given size together. Merged
+     * file is stored (and re-compressed) by writer threads, files in use by
+     * readers or writers are skipped.
+     *
+     * @return number of merged files
+     */
+    int compact(long coldBefore, long maxSize, DAPrivate accessor) {
+        if (readOnly)
+            return 0;
+
+        int merged = 0;
+        TSFile tsf = null;
+        TSFile next = null;
+
+        try {
+            boolean locked = false;
+
+            try {
+                locked = acquireSharedLock();
+                tsf = getFirstFile(this, null);
+            } finally {
+                if (locked)
+                    releaseSharedLock();
+            }
+
+            while (tsf != null && isOpen) {
+                long size = -1;
+
+                // load both files out of the write lock
+                locked = false;
+                try {
+                    locked = acquireSharedLock();
+                    next = getNextFile(tsf, null);
+
+                    if (next != null && isCompactionCandidate(tsf, next, coldBefore))
+                        size = (long) tsf.loadFully() + next.loadFully();
+                } finally {
+                    if (locked)
+                        releaseSharedLock();
+                }
+
+                if (next == null)
+                    break;
+
+                boolean success = false;
+
+                if (size >= 0 && size <= maxSize) {
+                    // should be out of structure lock
+                    getCache().checkWriteQueueLimit(getMaxFileSize());
+
+                    locked = false;
+                    try {
+                        locked = acquireWriteLock();
+
+                        if (isCompactionCandidate(tsf, next, coldBefore)) {
+                            tsf.checkOutTo(accessor);
+                            try {
+                                next.checkOutTo(accessor);
+                                try {
+                                    tsf.merge(next, accessor);
+                                    next.dropMergedInto(tsf);
+                                    success = true;
+                                } finally {
+                                    next.checkedInBy(accessor);
+                                }
+                            } finally {
+                                tsf.checkedInBy(accessor);
+                            }
+                        }
+                        if (success) {
+                            unuse(next);
+                            next = null;
+                        }
+                    } finally {
+                        if (locked)
+                            releaseWriteLock();
+                    }
+                }
+
+                if (success) {
+                    merged++;
+
+                    if (LOGGER.isDebugEnabled())
+                        LOGGER.debug().append(this).append(": compacted ").append(tsf).commit();
+
+                    // merged file is queued for write now, it is skipped by the next pass
+                    continue;
+                }
+
+                release(tsf, false);
+                tsf = next;
+                next = null;
+            }
+        } catch (IOException iox) {
+            throw new UncheckedIOException(iox);
+        } finally {
+            if (next != null)
+                release(next, false);
+
+            if (tsf != null)
+                release(tsf, false);
+        }
+
+        return merged;
+    }
+
+    private static boolean isCompactionCandidate(TSFile tsf, TSFile next, long coldBefore) throws IOException {
+        if (tsf.getParent() != next.getParent())
+            return false;
+
+        if (tsf.getState() != TSFState.CLEAN_CACHED || next.getState() != TSFState.CLEAN_CACHED)
+            return false;
+
+        // all data of the next file is before start of the file after it
+        return getLimitTimestamp(next) <= coldBefore;
+    }
+
     @Override
     public TSRef associate(String path) {
         acquireSharedLock();
@@ -613,6 +916,166 @@ final class TSRootFolder extends TSFolder implements TSRoot, TimeSliceStore {
         }
     }
 
+    @Override
+    public synchronized void addRollup(RollupDefinition rollup) {
+        if (rollup.getTarget() == this)
+            throw new IllegalArgumentException("Rollup of " + this + " can't be stored into the same root");
+
+        if (rollup.getTarget().getStore() != cache)
+            throw new IllegalArgumentException(rollup + " belongs to another store");
+
+        RollupDefinition[] copy = Arrays.copyOf(rollups, rollups.length + 1);
+        copy[rollups.length] = rollup;
+        rollups = copy;
+    }
+
+    @Override
+    public synchronized void removeRollup(RollupDefinition rollup) {
+        int count = 0;
+        RollupDefinition[] copy = new RollupDefinition[rollups.length];
+
+        for (RollupDefinition def : rollups) {
+            if (def != rollup)
+                copy[count++] = def;
+        }
+
+        rollups = Arrays.copyOf(copy, count);
+    }
+
+    @Override
+    public RollupDefinition[] getRollups() {
+        return rollups;
+    }
+
+    @Override
+    public boolean getLast(int entity, TSMessageConsumer consumer) {
+        return lastMessages.getLast(entity, consumer);
+    }
+
+    LastMessageCache getLastMessageCache() {
+        return lastMessages;
+    }
+
+    @Override
+    public long countMessages(TimeRange range, EntityFilter filter) {
+        long from = range != null ? range.from : Long.MIN_VALUE;
+        long to = range != null ? range.to : Long.MAX_VALUE;
+
+        if (filter == null)
+            filter = EntityFilter.ALL;
+
+        long count = 0;
+
+        acquireSharedLock();
+
+        try {
+            TSFile tsf = findTSFForRead(this, from);
+
+            for (;;) {
+                if (tsf == null)
+                    break;
+
+                TSFile next;
+
+                try {
+                    if (tsf.getStartTimestamp() > to)
+                        break;
+
+                    count += tsf.countMessages(from, to, filter);
+
+                    next = getNextFile(tsf, null);
+                } finally {
+                    unuse(tsf);
+                }
+
+                tsf = next;
+            }
+        } catch (IOException iox) {
+            throw new UncheckedIOException(iox);
+        } finally {
+            releaseSharedLock();
+        }
+
+        return count;
+    }
+
+    @Override
+    public void activeEntities(TimeRange range, IntegerArrayList out) {
+        long from = range != null ? range.from : Long.MIN_VALUE;
+        long to = range != null ? range.to : Long.MAX_VALUE;
+
+        BitSet active = new BitSet();
+
+        acquireSharedLock();
+
+        try {
+            TSFile tsf = findTSFForRead(this, from);
+
+            for (;;) {
+                if (tsf == null)
+                    break;
+
+                TSFile next;
+
+                try {
+                    if (tsf.getStartTimestamp() > to)
+                        break;
+
+                    tsf.activeEntities(from, to, active);
+
+                    next = getNextFile(tsf, null);
+                } finally {
+                    unuse(tsf);
+                }
+
+                tsf = next;
+            }
+        } catch (IOException iox) {
+            throw new UncheckedIOException(iox);
+        } finally {
+            releaseSharedLock();
+        }
+
+        for (int id = active.nextSetBit(0); id >= 0; id = active.nextSetBit(id + 1))
+            out.add(id);
+    }
+
+    @Override
+    public TSRoot selectRoot(TimeRange range, long resolution) {
+        RollupDefinition[] snapshot = rollups;
+
+        if (snapshot.length == 0)
+            return this;
+
+        TimeRange raw = new TimeRange();
+        getTimeRange(raw);
+
+        long from = range != null ? Math.max(range.from, raw.from) : raw.from;
+        long to = range != null ? Math.min(range.to, raw.to) : raw.to;
+
+        TSRoot result = this;
+        long best = 0;
+        TimeRange tr = new TimeRange();
+
+        for (RollupDefinition def : snapshot) {
+            long bucket = def.getBucketNanos();
+
+            if (bucket > resolution || bucket <= best)
+                continue;
+
+            tr.setNull();
+            def.getTarget().getTimeRange(tr);
+
+            // only the last (open) bucket may be missing in the rollup
+            if (tr.from <= from && tr.to >= to - 2 * bucket) {
+                result = def.getTarget();
+                best = bucket;
+            }
+        }
+
+        return result;
+    }
+
     //
     // TimeSliceStore IMPLEMENTATION
     //
@@ -788,6 +1251,52 @@ final class TSRootFolder extends TSFolder implements TSRoot, TimeSliceStore {
         return file;
     }
 
+    /**
+     * Splits the file containing given timestamp, if its split was deferred by
+     * {@link SliceSizePolicy} and it still exceeds max file size.
+     *
+     * @return true, if file was split
+     */
+    boolean splitOverflow(long timestamp, DataWriterImpl accessor) throws IOException {
+        if (readOnly || !isOpen)
+            return false;
+
+        // should be out of structure lock
+        getCache().checkWriteQueueLimit(getMaxFileSize());
+
+        TSFile tsf = null;
+        boolean locked = false;
+
+        try {
+            locked = acquireWriteLock();
+
+            tsf = findTSFForRead(this, timestamp);
+
+            if (tsf == null || !tsf.takeDeferredSplit(getMaxFileSize()))
+                return false;
+
+            accessor.associate(this);
+            tsf.checkOutTo(accessor);
+
+            try {
+                accessor.associate(tsf);
+                split(Long.MIN_VALUE, tsf, accessor);
+            } finally {
+                accessor.clearLinks();
+                accessor.associate((TimeSlice) null);
+                tsf.checkedInBy(accessor);
+            }
+
+            return true;
+        } finally {
+            if (tsf != null)
+                unuse(tsf);
+
+            if (locked)
+                releaseWriteLock();
+        }
+    }
+
     public final ArrayList<SliceListener> sliceListeners = new ArrayList<SliceListener>(5);
 
     @Override
@@ -831,6 +1340,9 @@ final class TSRootFolder extends TSFolder implements TSRoot, TimeSliceStore {
         next = getNextFile(prevTSF, null);
 
         if (next == null) {
+            if (slicePolicy != null)
+                prevTSF.tailClosed(slicePolicy);
+
             next = prevTSF.getParent().createFileAfter(prevTSF, timestamp);
             use(next); // lock parent before checking in prev. TSF!
             prevTSF.limitTimestamp = timestamp;
@@ -918,7 +1430,7 @@ final class TSRootFolder extends TSFolder implements TSRoot, TimeSliceStore {
     }
 
     boolean tryAcquireSharedLock() {
-        boolean result = (rwl.readLock().tryLock());
+        boolean result = (rwl.tryLockRead());
         if (result)
             logLockInfo(true, "Acquired");
         return result;
@@ -947,7 +1459,7 @@ final class TSRootFolder extends TSFolder implements TSRoot, TimeSliceStore {
             logLockInfo(true, "Acquiring");
 
         try {
-            rwl.readLock().lockInterruptibly();
+            rwl.lockRead();
         } catch (InterruptedException x) {
             throw new UncheckedInterruptedException(x);
         }
@@ -959,7 +1471,7 @@ final class TSRootFolder extends TSFolder implements TSRoot, TimeSliceStore {
     }
 
     void releaseSharedLock() {
-        rwl.readLock().unlock();
+        rwl.unlockRead();
 
         if (LOGGER.isDebugEnabled())
             logLockInfo(true, "Released");
@@ -983,7 +1495,7 @@ final class TSRootFolder extends TSFolder implements TSRoot, TimeSliceStore {
         try {
             symRegistry.clearRange(); // clear ranges - temp fix
 
-            rwl.writeLock().lockInterruptibly();
+            rwl.lockWrite();
         } catch (InterruptedException x) {
             throw new UncheckedInterruptedException(x);
         }
@@ -995,7 +1507,7 @@ final class TSRootFolder extends TSFolder implements TSRoot, TimeSliceStore {
     }
 
     void releaseWriteLock() {
-        rwl.writeLock().unlock();
+        rwl.unlockWrite();
 
         if (LOGGER.isDebugEnabled())
             logLockInfo(false, "Released");
@@ -1072,6 +1584,15 @@ final class TSRootFolder extends TSFolder implements TSRoot, TimeSliceStore {
 
             if (props.containsKey("compression"))
                 setCompression(props.getProperty("compression"));
+
+            if (props.containsKey("compressionDictionary"))
+                dictionaries.setCurrent(Integer.parseUnsignedInt(props.getProperty("compressionDictionary"), 16));
+
+            if (props.containsKey("shard")) {
+                String[] shard = props.getProperty("shard").split("/");
+                shardIndex = Integer.parseInt(shard[0]);
+                numShards = Integer.parseInt(shard[1]);
+            }
         } catch (FileNotFoundException x) {
             // Ignore for compatibility. Will take this out later.
         }
@@ -1095,6 +1616,13 @@ final class TSRootFolder extends TSFolder implements TSRoot, TimeSliceStore {
             props.setProperty("maxFolderSize", String.valueOf(maxFolderSize));
             props.setProperty("compression", compression == null ? "" : compression);
 
+            int dictionaryId = dictionaries.getCurrentId();
+            if (dictionaryId != 0)
+                props.setProperty("compressionDictionary", Integer.toHexString(dictionaryId));
+
+            if (numShards != 0)
+                props.setProperty("shard", shardIndex + "/" + numShards);
+
             props.store(os, null);
         }
 
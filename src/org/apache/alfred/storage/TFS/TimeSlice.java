@@ -72,6 +72,15 @@ public interface TimeSlice {
     public void insertNotify(EntityFilter loadHint, DAPrivate accessor, long timestamp, int addlLength)
             throws SwitchTimeSliceException;
 
+    /**
+     * Reserves space for a batch of messages in the given time range, if the
+     * batch fits into this time slice without any structure changes.
+     *
+     * @return false, if messages should be inserted one by one using
+     *         {@link #insertNotify}
+     */
+    public boolean tryInsertNotify(EntityFilter loadHint, long minTime, long maxTime, int addlLength);
+
     public void blockGoesDirty(DataBlock db);
 
     public void processBlocks(EntityFilter filter, BlockProcessor bp);
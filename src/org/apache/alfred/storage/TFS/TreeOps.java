@@ -209,6 +209,12 @@ abstract class TreeOps {
         for (;;) {
             nextSibling = (TSFolder) currentEntry.getNextSibling();
 
+            // skip folders without selected entities, avoiding their activation
+            if (nextSibling != null && !currentEntry.getParent().isAccepted(nextSibling, filter)) {
+                currentEntry = nextSibling;
+                continue;
+            }
+
             if (nextSibling != null) {
                 nextFile = getFirstFile(nextSibling, filter);
                 if (nextFile != null) {
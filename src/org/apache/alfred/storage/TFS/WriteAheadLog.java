@@ -0,0 +1,810 @@
+/*******************************************************************************
+ *
+ *
+ *  Copyright (c) 2022 Alfred
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.apache.alfred.storage.tfs;
+
+import org.apache.alfred.storage.tfs.codecs.TSNames;
+import org.apache.alfred.storage.tfs.pub.AbstractPath;
+import org.apache.alfred.util.collections.generated.ByteArrayList;
+import org.apache.alfred.util.collections.generated.IntegerToObjectHashMap;
+import org.apache.alfred.util.concurrent.UncheckedInterruptedException;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Optional write-ahead log of a root. Messages inserted by writers are logged
+ * before they reach in-memory time slices, so unstored data survives a crash
+ * and is replayed when the root is opened again.
+ *
+ * <p>
+ * Log consists of generation files ({@link TSNames#buildWalName(long)}) of
+ * records:
+ * </p>
+ *
+ * <pre>
+ *  record:    length (int), CRC32 of type and payload (int), type (byte), payload
+ *  DATA:      group (int), entity (int), timestamp (long), packet
+ *  TRUNCATE:  group (int), entity (int), timestamp (long)
+ *  STORED:    group (int)
+ *  REPLAY:    last replayed generation (long)
+ *  REPLAYED:  -
+ *  FILE:      group (int), start time of the file (long), store sequence (long)
+ * </pre>
+ *
+ * <p>
+ * Dirty time slices sharing data (a slice and slices split from it) form a
+ * group. When all files of a group are stored, STORED record is written and
+ * records of the group logged before are not replayed anymore. Generations
+ * having no records of dirty groups are deleted.
+ * </p>
+ *
+ * <p>
+ * Files may be stored without STORED record reaching the log (crash in
+ * between). FILE record logs store sequence of the file joining a group (see
+ * {@link TSFile#getStoreSequence()}); a record is not replayed, when the file
+ * of the group covering its time has greater store sequence on disk, so replay
+ * does not duplicate stored data.
+ * </p>
+ *
+ * <p>
+ * Records are buffered and written by group commits: one write and one fsync
+ * per batch, either periodically or on demand of a writer waiting for
+ * durability. Guarded by "this".
+ * </p>
+ */
+final class WriteAheadLog {
+
+    // Enables write-ahead log for all roots of local file systems
+    static final boolean ENABLED = Boolean.getBoolean("TimeBase.storage.wal");
+
+    // Writers wait until inserted message is committed to disk
+    static final boolean SYNC_COMMIT = Boolean.getBoolean("TimeBase.storage.wal.sync");
+
+    // Interval of background commits, ms
+    static final int COMMIT_INTERVAL = Integer.getInteger("TimeBase.storage.wal.commitInterval", 20);
+
+    // Size of the generation file triggering switch to the next generation
+    static final long MAX_GENERATION_SIZE = Long.getLong("TimeBase.storage.wal.generationSize", 64L << 20);
+
+    // Size of buffered records triggering commit
+    private static final int MAX_BUFFER_SIZE = 1 << 20;
+
+    private static final byte DATA = 1;
+    private static final byte TRUNCATE = 2;
+    private static final byte STORED = 3;
+    private static final byte REPLAY = 4;
+    private static final byte REPLAYED = 5;
+    private static final byte FILE = 6;
+
+    private static final int RECORD_HEADER_SIZE = 9;
+
+    private static volatile ScheduledExecutorService committer;
+
+    private static ScheduledExecutorService getCommitter() {
+        ScheduledExecutorService c = committer;
+
+        if (c == null) {
+            synchronized (WriteAheadLog.class) {
+                if ((c = committer) == null)
+                    committer = c = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread thread = new Thread(r, "WAL Committer");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            }
+        }
+
+        return (c);
+    }
+
+    /**
+     * Dirty time slices sharing logged data.
+     */
+    static final class Group {
+        final int id;
+        final long generation; // first generation having records of this group
+        int numFiles;
+
+        Group(int id, long generation) {
+            this.id = id;
+            this.generation = generation;
+        }
+    }
+
+    private final TSRootFolder root;
+    private final IdentityHashMap<TSFile, Group> dirty = new IdentityHashMap<>();
+    private final ArrayList<Long> generations = new ArrayList<>();
+    private final CRC32 crc = new CRC32();
+
+    private ByteArrayList buffer = new ByteArrayList();
+    private ByteArrayList spare = new ByteArrayList();
+
+    private FileChannel channel;
+    private long generation;
+    private long generationSize;
+    private int nextGroupId;
+
+    // log position of all appended and of all committed records
+    private long appended;
+    private long committed;
+    private boolean committing;
+
+    // error of a failed commit; records appended after the committed position
+    // are lost, so the log accepts no more records and no waiter is released
+    private IOException failure;
+    private boolean replaying;
+
+    private ScheduledFuture<?> task;
+
+    WriteAheadLog(TSRootFolder root) {
+        this.root = root;
+    }
+
+    static boolean isSupported(TSRootFolder root) {
+        return (ENABLED && root.getFS().isLocal() && root.getFS().isAppendSupported());
+    }
+
+    //
+    // Logging
+    //
+
+    /**
+     * Logs message inserted into the time slice.
+     *
+     * @return log position to wait for, see {@link #await(long)}
+     */
+    synchronized long logData(TSFile tsf, int entity, long nstime, byte[] packet, int offset, int length) {
+        Group group = getGroup(tsf);
+
+        int start = beginRecord(DATA, 16 + length);
+        putInt(group.id);
+        putInt(entity);
+        putLong(nstime);
+        put(packet, offset, length);
+
+        return endRecord(start);
+    }
+
+    synchronized long logTruncate(TSFile tsf, int entity, long nstime) {
+        Group group = getGroup(tsf);
+
+        int offset = beginRecord(TRUNCATE, 16);
+        putInt(group.id);
+        putInt(entity);
+        putLong(nstime);
+
+        return endRecord(offset);
+    }
+
+    /**
+     * Called when data of one time slice was split into a new one.
+     */
+    synchronized void fileSplit(TSFile from, TSFile to) {
+        Group group = dirty.get(from);
+
+        if (group != null && dirty.put(to, group) == null) {
+            group.numFiles++;
+
+            if (channel != null && failure == null)
+                logFile(group, to);
+        }
+    }
+
+    /**
+     * Called when time slice was stored or dropped.
+     */
+    synchronized void fileStored(TSFile tsf) {
+        Group group = dirty.remove(tsf);
+
+        if (group != null && --group.numFiles == 0 && channel != null && failure == null) {
+            int offset = beginRecord(STORED, 4);
+            putInt(group.id);
+            endRecord(offset);
+
+            commitIfNeeded();
+        }
+    }
+
+    private Group getGroup(TSFile tsf) {
+        Group group = dirty.get(tsf);
+
+        if (group == null) {
+            group = new Group(nextGroupId++, generation);
+            group.numFiles = 1;
+            dirty.put(tsf, group);
+
+            logFile(group, tsf);
+        }
+
+        return (group);
+    }
+
+    private void logFile(Group group, TSFile tsf) {
+        int offset = beginRecord(FILE, 20);
+        putInt(group.id);
+        putLong(tsf.getStartTimestamp());
+        putLong(tsf.getStoreSequence());
+        endRecord(offset);
+    }
+
+    private int beginRecord(byte type, int payloadLength) {
+        if (channel == null)
+            throw new IllegalStateException(root + ": write-ahead log is closed");
+
+        if (failure != null)
+            throw new UncheckedIOException(root + ": write-ahead log failed", failure);
+
+        int offset = buffer.size();
+
+        buffer.ensureCapacity(offset + RECORD_HEADER_SIZE + payloadLength);
+        putInt(payloadLength + 1);
+        putInt(0); // CRC placeholder
+        buffer.add(type);
+
+        return (offset);
+    }
+
+    private long endRecord(int offset) {
+        byte[] data = buffer.getInternalBuffer();
+        int start = offset + RECORD_HEADER_SIZE - 1;
+
+        crc.reset();
+        crc.update(data, start, buffer.size() - start);
+        setInt(data, offset + 4, (int) crc.getValue());
+
+        appended += buffer.size() - offset;
+
+        if (buffer.size() >= MAX_BUFFER_SIZE)
+            commitIfNeeded();
+
+        return (appended);
+    }
+
+    private void putInt(int value) {
+        int size = buffer.size();
+        buffer.ensureCapacity(size + 4);
+        buffer.setSize(size + 4);
+        setInt(buffer.getInternalBuffer(), size, value);
+    }
+
+    private void putLong(long value) {
+        putInt((int) (value >>> 32));
+        putInt((int) value);
+    }
+
+    private void put(byte[] src, int offset, int length) {
+        int size = buffer.size();
+        buffer.ensureCapacity(size + length);
+        System.arraycopy(src, offset, buffer.getInternalBuffer(), size, length);
+        buffer.setSize(size + length);
+    }
+
+    private static void setInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    //
+    // Group commit
+    //
+
+    /**
+     * Waits until log is committed up to the given position. The first waiting
+     * thread commits records of all others.
+     */
+    void await(long position) {
+        try {
+            commit(position);
+        } catch (IOException iox) {
+            throw new UncheckedIOException(iox);
+        }
+    }
+
+    private synchronized void commitIfNeeded() {
+        if (!committing)
+            getCommitter().execute(this::commitQuietly);
+    }
+
+    private void commitQuietly() {
+        try {
+            commit(Long.MAX_VALUE);
+        } catch (Throwable x) {
+            PDSImpl.LOGGER.error("%s: failed to commit write-ahead log: %s").with(root).with(x);
+        }
+    }
+
+    private void commit(long position) throws IOException {
+        ByteArrayList batch;
+        FileChannel out;
+        long end;
+
+        synchronized (this) {
+            for (;;) {
+                if (committed >= Math.min(position, appended))
+                    return;
+
+                if (failure != null)
+                    throw new IOException(root + ": write-ahead log failed", failure);
+
+                if (!committing)
+                    break;
+
+                try {
+                    wait();
+                } catch (InterruptedException x) {
+                    throw new UncheckedInterruptedException(x);
+                }
+            }
+
+            committing = true;
+
+            batch = buffer;
+            buffer = spare;
+            spare = batch;
+            buffer.setSize(0);
+
+            out = channel;
+            end = appended;
+        }
+
+        IOException error = null;
+
+        try {
+            if (out != null) {
+                ByteBuffer bb = ByteBuffer.wrap(batch.getInternalBuffer(), 0, batch.size());
+
+                while (bb.hasRemaining())
+                    out.write(bb);
+
+                out.force(false);
+            }
+        } catch (IOException iox) {
+            error = iox;
+            throw iox;
+        } catch (Throwable x) {
+            error = new IOException(x);
+            throw x;
+        } finally {
+            synchronized (this) {
+                committing = false;
+
+                if (error == null) {
+                    committed = end;
+                    generationSize += batch.size();
+
+                    if (generationSize >= MAX_GENERATION_SIZE && !replaying)
+                        nextGeneration();
+                } else {
+                    // batch may be partially written: never commit past it
+                    failure = error;
+                    batch.setSize(0);
+                }
+
+                notifyAll();
+            }
+        }
+    }
+
+    //
+    // Generations
+    //
+
+    private void nextGeneration() {
+        assert Thread.holdsLock(this);
+
+        try {
+            if (channel != null)
+                channel.close();
+
+            generation++;
+            generationSize = 0;
+            channel = openGeneration(generation);
+            generations.add(generation);
+
+            purge();
+        } catch (IOException iox) {
+            PDSImpl.LOGGER.error("%s: failed to switch write-ahead log generation: %s").with(root).with(iox);
+        }
+    }
+
+    private FileChannel openGeneration(long gen) throws IOException {
+        return root.getPath().append(TSNames.buildWalName(gen)).openChannelForAppend();
+    }
+
+    /*
+     * Deletes generations not having records of dirty groups
+     */
+    private void purge() {
+        long first = generation;
+
+        for (Group group : dirty.values())
+            first = Math.min(first, group.generation);
+
+        while (generations.size() > 0 && generations.get(0) < first) {
+            long gen = generations.remove(0);
+
+            try {
+                root.getPath().append(TSNames.buildWalName(gen)).deleteIfExists();
+            } catch (IOException iox) {
+                PDSImpl.LOGGER.warn("%s: failed to delete write-ahead log generation %s: %s").with(root).with(gen)
+                        .with(iox);
+            }
+        }
+    }
+
+    //
+    // Open / Close
+    //
+
+    /**
+     * Opens the log, replaying records of the previous run.
+     */
+    void open(PDSImpl cache) throws IOException {
+        AbstractPath folder = root.getPath();
+        ArrayList<Long> existing = new ArrayList<>();
+
+        for (String name : folder.listFolder()) {
+            if (TSNames.isWalName(name))
+                existing.add(TSNames.getWalGeneration(name));
+        }
+
+        Collections.sort(existing);
+
+        long last = existing.isEmpty() ? 0 : existing.get(existing.size() - 1);
+        long position;
+
+        synchronized (this) {
+            generation = last + 1;
+            generationSize = 0;
+            channel = openGeneration(generation);
+            generations.clear();
+            generations.add(generation);
+            replaying = true;
+
+            task = getCommitter().scheduleWithFixedDelay(this::commitQuietly, COMMIT_INTERVAL, COMMIT_INTERVAL,
+                    TimeUnit.MILLISECONDS);
+
+            int offset = beginRecord(REPLAY, 8);
+            putLong(last);
+            endRecord(offset);
+        }
+
+        try {
+            HashSet<Long> ignored = new HashSet<>();
+            int first = findFirstGeneration(existing, ignored);
+
+            replay(cache, existing, first, ignored);
+
+            synchronized (this) {
+                position = endRecord(beginRecord(REPLAYED, 0));
+            }
+
+            await(position);
+        } finally {
+            synchronized (this) {
+                replaying = false;
+            }
+        }
+
+        // replayed data is logged again - older generations are not needed
+        for (Long gen : existing)
+            folder.append(TSNames.buildWalName(gen)).deleteIfExists();
+    }
+
+    /*
+     * Skips generations replayed by a completed replay; generations of
+     * incomplete replays contain duplicates only and are ignored
+     */
+    private int findFirstGeneration(ArrayList<Long> existing, HashSet<Long> ignored) throws IOException {
+        int first = 0;
+
+        for (int ii = 0; ii < existing.size(); ii++) {
+            long gen = existing.get(ii);
+            long[] replay = readReplayRange(gen);
+
+            if (replay == null)
+                continue;
+
+            if (replay[1] != 0) {
+                while (first < ii && existing.get(first) <= replay[0])
+                    first++;
+            } else {
+                ignored.add(gen);
+            }
+        }
+
+        return (first);
+    }
+
+    /*
+     * Returns [replayed generation, completed] or null if generation does not
+     * start with REPLAY record
+     */
+    private long[] readReplayRange(long gen) throws IOException {
+        long[] result = new long[2];
+        boolean[] started = new boolean[1];
+
+        read(gen, (type, data, offset, length) -> {
+            if (type == REPLAY) {
+                started[0] = true;
+                result[0] = getLong(data, offset);
+            } else if (type == REPLAYED) {
+                result[1] = 1;
+            }
+        });
+
+        return started[0] ? result : null;
+    }
+
+    private void replay(PDSImpl cache, ArrayList<Long> existing, int first, HashSet<Long> ignored)
+            throws IOException {
+        // pass 1: find last STORED record and files of every group
+        IntegerToObjectHashMap<long[]> stored = new IntegerToObjectHashMap<>();
+        IntegerToObjectHashMap<ArrayList<long[]>> files = new IntegerToObjectHashMap<>();
+        ArrayList<long[]> allFiles = new ArrayList<>();
+        long[] index = new long[1];
+
+        for (int ii = first; ii < existing.size(); ii++) {
+            if (ignored.contains(existing.get(ii)))
+                continue;
+
+            read(existing.get(ii), (type, data, offset, length) -> {
+                index[0]++;
+
+                if (type == STORED) {
+                    int group = getInt(data, offset);
+                    long[] last = stored.get(group, null);
+
+                    if (last == null)
+                        stored.put(group, new long[] { index[0] });
+                    else
+                        last[0] = index[0];
+                } else if (type == FILE) {
+                    int group = getInt(data, offset);
+                    ArrayList<long[]> list = files.get(group, null);
+
+                    if (list == null)
+                        files.put(group, list = new ArrayList<>());
+
+                    // start time, logged store sequence, stored since then
+                    long[] file = { getLong(data, offset + 4), getLong(data, offset + 12), 0 };
+                    list.add(file);
+                    allFiles.add(file);
+                }
+            });
+        }
+
+        // check files before replay: replayed data may be stored meanwhile
+        for (long[] file : allFiles)
+            file[2] = isStoredSince(file[0], file[1]) ? 1 : 0;
+
+        // pass 2: replay records not followed by STORED
+        DataWriterImpl[] writer = new DataWriterImpl[1];
+        long[] count = new long[1];
+
+        index[0] = 0;
+
+        try {
+            for (int ii = first; ii < existing.size(); ii++) {
+                if (ignored.contains(existing.get(ii)))
+                    continue;
+
+                read(existing.get(ii), (type, data, offset, length) -> {
+                    index[0]++;
+
+                    if (type != DATA && type != TRUNCATE)
+                        return;
+
+                    int group = getInt(data, offset);
+                    long[] last = stored.get(group, null);
+
+                    if (last != null && last[0] > index[0])
+                        return;
+
+                    int entity = getInt(data, offset + 4);
+                    long nstime = getLong(data, offset + 8);
+
+                    long[] file = findFile(files.get(group, null), nstime);
+
+                    if (file != null && file[2] != 0)
+                        return;
+
+                    if (writer[0] == null) {
+                        writer[0] = (DataWriterImpl) cache.createWriter();
+                        writer[0].associate(root);
+                        writer[0].open(nstime, null);
+                    }
+
+                    if (type == DATA)
+                        writer[0].insertPacket(entity, nstime, data, offset + 16, length - 16);
+                    else
+                        writer[0].truncate(nstime, entity);
+
+                    count[0]++;
+                });
+            }
+        } finally {
+            if (writer[0] != null)
+                writer[0].close();
+        }
+
+        if (count[0] > 0)
+            PDSImpl.LOGGER.warn("%s: replayed %s records of write-ahead log").with(root).with(count[0]);
+    }
+
+    /*
+     * Returns file of the group covering given time
+     */
+    private static long[] findFile(ArrayList<long[]> files, long nstime) {
+        long[] result = null;
+
+        if (files != null) {
+            for (long[] file : files) {
+                if (file[0] <= nstime && (result == null || file[0] > result[0]))
+                    result = file;
+            }
+        }
+
+        return (result);
+    }
+
+    /*
+     * Returns true, if the file starting at the given time has greater store
+     * sequence on disk than the given one, i.e. it was stored after joining the
+     * group. File not found by its start time is considered not stored, so its
+     * records are replayed.
+     */
+    private boolean isStoredSince(long startTime, long sequence) throws IOException {
+        root.acquireSharedLock();
+
+        try {
+            TSFile tsf = TreeOps.findTSFForRead(root, startTime);
+
+            if (tsf == null)
+                return (false);
+
+            try {
+                return (tsf.getStartTimestamp() == startTime && tsf.readStoreSequence() > sequence);
+            } finally {
+                TreeOps.unuse(tsf);
+            }
+        } finally {
+            root.releaseSharedLock();
+        }
+    }
+
+    /**
+     * Closes the log. When all logged data is stored, log files are deleted.
+     */
+    void close() {
+        try {
+            commit(Long.MAX_VALUE);
+        } catch (IOException iox) {
+            PDSImpl.LOGGER.error("%s: failed to commit write-ahead log: %s").with(root).with(iox);
+        }
+
+        synchronized (this) {
+            boolean clean = dirty.isEmpty();
+
+            abort();
+
+            if (clean) {
+                generation++; // delete current generation too
+                purge();
+            }
+        }
+    }
+
+    /**
+     * Closes the log without commit, keeping log files for the next open.
+     */
+    synchronized void abort() {
+        if (task != null)
+            task.cancel(false);
+
+        task = null;
+
+        try {
+            if (channel != null)
+                channel.close();
+        } catch (IOException iox) {
+            PDSImpl.LOGGER.warn("%s: failed to close write-ahead log: %s").with(root).with(iox);
+        }
+
+        channel = null;
+        dirty.clear();
+        buffer.setSize(0);
+    }
+
+    //
+    // Reading
+    //
+
+    private interface RecordConsumer {
+        void process(byte type, byte[] data, int offset, int length) throws IOException;
+    }
+
+    /*
+     * Reads valid records of the generation; stops at the first damaged record
+     */
+    private void read(long gen, RecordConsumer consumer) throws IOException {
+        AbstractPath path = root.getPath().append(TSNames.buildWalName(gen));
+        CRC32 check = new CRC32();
+        byte[] data = new byte[256];
+
+        try (InputStream is = new BufferedInputStream(path.openInput(0))) {
+            DataInputStream dis = new DataInputStream(is);
+
+            for (;;) {
+                int length;
+                int sum;
+
+                try {
+                    length = dis.readInt();
+                    sum = dis.readInt();
+
+                    if (length <= 0 || length > MAX_GENERATION_SIZE + MAX_BUFFER_SIZE)
+                        break;
+
+                    if (data.length < length)
+                        data = new byte[Math.max(length, data.length * 2)];
+
+                    dis.readFully(data, 0, length);
+                } catch (EOFException x) {
+                    break;
+                }
+
+                check.reset();
+                check.update(data, 0, length);
+
+                if ((int) check.getValue() != sum)
+                    break;
+
+                consumer.process(data[0], data, 1, length - 1);
+            }
+        }
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8)
+                | (data[offset + 3] & 0xFF);
+    }
+
+    private static long getLong(byte[] data, int offset) {
+        return ((long) getInt(data, offset) << 32) | (getInt(data, offset + 4) & 0xFFFFFFFFL);
+    }
+}
@@ -17,5 +17,5 @@
 package org.apache.alfred.storage.tfs.codecs;
 
 public enum Algorithm {
-    ZLIB, SNAPPY, LZ4,
+    ZLIB, SNAPPY, LZ4, ZSTD,
 }
@@ -0,0 +1,188 @@
+/*******************************************************************************
+ *
+ *
+ *  Copyright (c) 2022 Alfred
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.apache.alfred.storage.codecs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Append segments which may follow data blocks of a time slice file stored
+ * with {@link TSFFormat#APPENDABLE_FLAG}:
+ *
+ * <pre>
+ *  segment:  MAGIC, body length (int), number of records (int), records, CRC32 of records (long)
+ *  record:   entity (int), block start time (long), block end time (long), length (int), data
+ * </pre>
+ *
+ * A record holds raw messages appended to the tail of the entity block; its
+ * times are times of the whole block after the append. Segments are applied in
+ * the order they were written. A truncated or corrupted segment (e.g. left by a
+ * crash) terminates the sequence.
+ */
+public class AppendSegments {
+    public static final int MAGIC = 0x54534653;
+
+    public static final int HEADER_SIZE = 12;
+    public static final int TRAILER_SIZE = 8;
+    public static final int RECORD_HEADER_SIZE = 24;
+
+    public interface RecordConsumer {
+        void process(int entity, long startTime, long endTime, byte[] data, int offset, int length);
+
+        /**
+         * Called after all records of a segment were processed.
+         */
+        default void segmentProcessed() {
+        }
+    }
+
+    /**
+     * Builds a single segment.
+     */
+    public static class Writer {
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final DataOutputStream dos = new DataOutputStream(body);
+        private int numRecords = 0;
+
+        public void add(int entity, long startTime, long endTime, byte[] data, int offset, int length)
+                throws IOException {
+            dos.writeInt(entity);
+            dos.writeLong(startTime);
+            dos.writeLong(endTime);
+            dos.writeInt(length);
+            dos.write(data, offset, length);
+
+            numRecords++;
+        }
+
+        public boolean isEmpty() {
+            return (numRecords == 0);
+        }
+
+        /**
+         * @return number of bytes written
+         */
+        public int writeTo(OutputStream os) throws IOException {
+            CRC32 crc = new CRC32();
+            byte[] bytes = body.toByteArray();
+
+            crc.update(bytes, 0, bytes.length);
+
+            DataOutputStream out = new DataOutputStream(os);
+
+            out.writeInt(MAGIC);
+            out.writeInt(bytes.length);
+            out.writeInt(numRecords);
+            out.write(bytes);
+            out.writeLong(crc.getValue());
+            out.flush();
+
+            return (HEADER_SIZE + bytes.length + TRAILER_SIZE);
+        }
+    }
+
+    /**
+     * Reads segments and passes their records to the consumer. Records of a
+     * segment are passed only when the whole segment is valid.
+     *
+     * @param is     input positioned at the first segment
+     * @param length number of bytes available
+     * @return total length of valid segments
+     */
+    public static long read(InputStream is, long length, RecordConsumer consumer) throws IOException {
+        DataInputStream dis = new DataInputStream(is);
+        CRC32 crc = new CRC32();
+        long valid = 0;
+        byte[] body = null;
+
+        while (length - valid >= HEADER_SIZE + TRAILER_SIZE) {
+            if (dis.readInt() != MAGIC)
+                break;
+
+            int bodyLength = dis.readInt();
+            int numRecords = dis.readInt();
+
+            if (bodyLength < 0 || numRecords < 0 || bodyLength > length - valid - HEADER_SIZE - TRAILER_SIZE)
+                break;
+
+            if (body == null || body.length < bodyLength)
+                body = new byte[bodyLength];
+
+            dis.readFully(body, 0, bodyLength);
+
+            crc.reset();
+            crc.update(body, 0, bodyLength);
+
+            if (dis.readLong() != crc.getValue() || !isValid(body, bodyLength, numRecords))
+                break;
+
+            for (int ii = 0, offset = 0; ii < numRecords; ii++) {
+                int entity = getInt(body, offset);
+                long startTime = getLong(body, offset + 4);
+                long endTime = getLong(body, offset + 12);
+                int dataLength = getInt(body, offset + 20);
+
+                offset += RECORD_HEADER_SIZE;
+                consumer.process(entity, startTime, endTime, body, offset, dataLength);
+                offset += dataLength;
+            }
+
+            consumer.segmentProcessed();
+
+            valid += HEADER_SIZE + bodyLength + TRAILER_SIZE;
+        }
+
+        return (valid);
+    }
+
+    private static boolean isValid(byte[] body, int bodyLength, int numRecords) {
+        int offset = 0;
+
+        for (int ii = 0; ii < numRecords; ii++) {
+            if (bodyLength - offset < RECORD_HEADER_SIZE)
+                return (false);
+
+            int dataLength = getInt(body, offset + 20);
+
+            offset += RECORD_HEADER_SIZE;
+
+            if (dataLength < 0 || dataLength > bodyLength - offset)
+                return (false);
+
+            offset += dataLength;
+        }
+
+        return (offset == bodyLength);
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8)
+                | (data[offset + 3] & 0xFF);
+    }
+
+    private static long getLong(byte[] data, int offset) {
+        return ((long) getInt(data, offset) << 32) | (getInt(data, offset + 4) & 0xFFFFFFFFL);
+    }
+}
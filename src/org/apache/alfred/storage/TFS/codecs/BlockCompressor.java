@@ -28,15 +28,43 @@ public abstract class BlockCompressor {
 
     private final ByteArrayList buffer;
 
+    // compression string this compressor was created for, see BlockCompressorFactory
+    private String compression;
+
     public BlockCompressor(ByteArrayList buffer) {
         this.buffer = buffer;
     }
 
     public abstract byte code();
 
+    /**
+     * @return compression string (algorithm and level) of this compressor, or
+     *         null if it was not created by {@link BlockCompressorFactory}
+     */
+    public String getCompression() {
+        return compression;
+    }
+
+    void setCompression(String compression) {
+        this.compression = compression;
+    }
+
     public ByteArrayList getReusableBuffer() {
         return buffer;
     }
 
+    /**
+     * @return dictionary used by this compressor or null
+     */
+    public CompressionDictionary getDictionary() {
+        return null;
+    }
+
+    /**
+     * Releases native resources of this compressor, if any. Compressor can't be used afterwards.
+     */
+    public void close() {
+    }
+
     public abstract int deflate(byte[] src, int offset, int length, ByteArrayList appendTo);
 }
\ No newline at end of file
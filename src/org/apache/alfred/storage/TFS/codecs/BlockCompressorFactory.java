@@ -32,6 +32,8 @@ public class BlockCompressorFactory {
 
     public static byte getCode(Algorithm algorithm) {
         switch (algorithm) {
+            case ZSTD:
+                return 3;
             case LZ4:
                 return 2;
             case SNAPPY:
@@ -44,8 +46,21 @@ public class BlockCompressorFactory {
         }
     }
 
+    /**
+     * @return algorithm code for the given compression definition, like "LZ4(5)"
+     */
+    public static byte getCode(String compression) {
+        Algorithm algorithm = getCompressionType(new StringTokenizer(compression, "()"));
+        if (algorithm == null)
+            throw new IllegalArgumentException("Unknown compression algorithm: " + compression);
+
+        return getCode(algorithm);
+    }
+
     public static Algorithm getAlgorithm(byte code) {
         switch (code) {
+            case 3:
+                return Algorithm.ZSTD;
             case 2:
                 return Algorithm.LZ4;
             case 1:
@@ -59,26 +74,51 @@ public class BlockCompressorFactory {
     }
 
     public static BlockCompressor createCompressor(String compression, ByteArrayList buffer) {
+        return createCompressor(compression, null, buffer);
+    }
+
+    /**
+     * @param dictionary compression dictionary, applicable for ZSTD only
+     */
+    public static BlockCompressor createCompressor(String compression, CompressionDictionary dictionary,
+            ByteArrayList buffer) {
         if (compression == null)
             throw new NullPointerException("Compression can't be null.");
 
         StringTokenizer tokenizer = new StringTokenizer(compression, "()");
         Algorithm algorithm = getCompressionType(tokenizer);
+        BlockCompressor compressor;
 
         switch (algorithm) {
             case LZ4:
-                return new LZ4BlockCompressor(getCompressionLevel(tokenizer), buffer);
+                compressor = new LZ4BlockCompressor(getCompressionLevel(tokenizer), buffer);
+                break;
             case ZLIB:
-                return new DeflateCompressor(getCompressionLevel(tokenizer), buffer);
+                compressor = new DeflateCompressor(getCompressionLevel(tokenizer), buffer);
+                break;
             case SNAPPY:
-                return new SnappyCompressor(buffer);
+                compressor = new SnappyCompressor(buffer);
+                break;
+            case ZSTD:
+                compressor = new ZstdCompressor(getCompressionLevel(tokenizer), dictionary, buffer);
+                break;
 
             default:
                 throw new IllegalArgumentException("Unknown compression algorithm: " + algorithm);
         }
+
+        compressor.setCompression(compression);
+        return compressor;
     }
 
     public static BlockDecompressor createDecompressor(byte code) {
+        return createDecompressor(code, null);
+    }
+
+    /**
+     * @param dictionaries resolves dictionaries used for compression (ZSTD only)
+     */
+    public static BlockDecompressor createDecompressor(byte code, DictionaryResolver dictionaries) {
 
         Algorithm algorithm = getAlgorithm(code);
 
@@ -89,6 +129,8 @@ public class BlockCompressorFactory {
                 return new DeflateDecompressor();
             case SNAPPY:
                 return new SnappyDecompressor();
+            case ZSTD:
+                return new ZstdDecompressor(dictionaries);
 
             default:
                 throw new IllegalArgumentException("Unknown decompressor code: " + code);
@@ -50,5 +50,11 @@ public abstract class BlockDecompressor {
         inflate(buffer.getArray(), buffer.getOffset(), inLength, out, outOffset, outLength);
     }
 
+    /**
+     * Releases native resources of this decompressor, if any. Decompressor can't be used afterwards.
+     */
+    public void close() {
+    }
+
     public abstract void inflate(byte[] src, int srcOffset, int srcLength, byte[] out, int outOffset, int outLength);
 }
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ *
+ *
+ *  Copyright (c) 2022 Alfred
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.apache.alfred.storage.codecs;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictTrainer;
+import org.apache.alfred.storage.fs.pub.AbstractPath;
+import org.apache.alfred.util.io.IOUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Compression dictionary trained from a sample of data blocks. Dictionary is
+ * identified by id, stored in every compressed frame.
+ */
+public final class CompressionDictionary {
+    private static final int ZSTD_MAGIC = 0xFD2FB528;
+
+    private final int id;
+    private final byte[] data;
+
+    public CompressionDictionary(byte[] data) {
+        this.id = (int) Zstd.getDictIdFromDict(data);
+        this.data = data;
+
+        if (id == 0)
+            throw new IllegalArgumentException("Dictionary has no id");
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Reads dictionary with given id from the given root folder.
+     *
+     * @return dictionary or null, if folder has no such dictionary
+     */
+    public static CompressionDictionary read(AbstractPath folder, int id) throws IOException {
+        AbstractPath path = folder.append(TSNames.buildDictionaryName(id));
+
+        if (!path.exists())
+            return null;
+
+        try (InputStream is = path.openInput(0)) {
+            byte[] data = new byte[(int) path.length()];
+            IOUtil.readFully(is, data, 0, data.length);
+
+            return new CompressionDictionary(data);
+        }
+    }
+
+    /**
+     * Trains dictionary of the given size.
+     *
+     * @param samples data samples (usually data blocks)
+     * @param size    maximum size of dictionary
+     * @return trained dictionary or null, if samples are not sufficient
+     */
+    public static CompressionDictionary train(List<byte[]> samples, int size) {
+        int total = 0;
+        for (byte[] sample : samples)
+            total += sample.length;
+
+        ZstdDictTrainer trainer = new ZstdDictTrainer(total, size);
+
+        for (byte[] sample : samples)
+            trainer.addSample(sample);
+
+        try {
+            return new CompressionDictionary(trainer.trainSamples());
+        } catch (RuntimeException x) {
+            // not enough samples to train
+            return null;
+        }
+    }
+
+    /**
+     * Reads dictionary id from header of compressed frame.
+     *
+     * @return dictionary id or 0, if frame is compressed without dictionary
+     */
+    public static int getDictionaryId(byte[] src, int offset, int length) {
+        if (length < 6 || readInt(src, offset, 4) != ZSTD_MAGIC)
+            throw new com.epam.deltix.util.io.UncheckedIOException("Illegal ZSTD frame header");
+
+        int descriptor = src[offset + 4] & 0xFF;
+        int pos = offset + 5;
+
+        if ((descriptor & 0x20) == 0) // window descriptor is present
+            pos++;
+
+        switch (descriptor & 0x3) {
+            case 1:
+                return readInt(src, pos, 1);
+            case 2:
+                return readInt(src, pos, 2);
+            case 3:
+                return readInt(src, pos, 4);
+            default:
+                return 0;
+        }
+    }
+
+    private static int readInt(byte[] src, int offset, int size) {
+        int value = 0;
+
+        for (int ii = size - 1; ii >= 0; ii--)
+            value = (value << 8) | (src[offset + ii] & 0xFF);
+
+        return value;
+    }
+}
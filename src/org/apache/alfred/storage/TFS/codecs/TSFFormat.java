@@ -26,10 +26,25 @@ public class TSFFormat {
     public static final int NUM_ENTS_MASK = 0xFFFFFF;
     public static final int COMPRESSED_FLAG = 0x80000000;
     public static final int ALGORITHM_FLAG = 0x70000000;
+    public static final int TIME_ENCODED_FLAG = 0x08000000;
+    public static final int APPENDABLE_FLAG = 0x04000000;
+    public static final int COUNTED_FLAG = 0x02000000;
 
     public final static short INDEX_FORMAT_VERSION = 2;
     public final static short FILE_FORMAT_VERSION = 3;
 
+    // Blocks are stored using TimeDeltaBlockCodec, see TIME_ENCODED_FLAG
+    public final static short TIME_ENCODED_FORMAT_VERSION = 4;
+
+    // Data blocks may be followed by AppendSegments, see APPENDABLE_FLAG
+    public final static short APPENDABLE_FORMAT_VERSION = 5;
+
+    // Index entries contain number of messages in the block, see COUNTED_FLAG
+    public final static short COUNTED_FORMAT_VERSION = 6;
+
+    // Header contains store sequence of the file (long) following the flags
+    public final static short STORE_SEQUENCE_FORMAT_VERSION = 7;
+
     public static byte getAlgorithmCode(int flags) {
         return (byte) ((flags & ALGORITHM_FLAG) >> 28);
     }
@@ -36,14 +36,38 @@ public class TSNames {
     public static final String TMP_ROOT_SUBFOLDER_NAME = TMP_PREFIX + "rsf";
 
     public static final String SYM_REGISTRY_NAME = "symbols.dat";
+    public static final String SYM_JOURNAL_NAME = "symbols.log";
     public static final String ROOT_PROPS_NAME = "config.properties";
 
     public static final String INDEX_NAME = "index.dat";
 
+    public static final String CLEAN_SHUTDOWN_NAME = "clean.shutdown";
+    public static final String VERIFIED_NAME = "verified.properties";
+
+    public static final String DICTIONARY_PREFIX = "dict.";
+
+    public static final String WAL_PREFIX = "wal.";
+
     public static String buildFileName(int id) {
         return (String.format("%s%04x.dat", FILE_NAME_PREFIX, id));
     }
 
+    public static String buildDictionaryName(int id) {
+        return (String.format("%s%08x.dat", DICTIONARY_PREFIX, id));
+    }
+
+    public static String buildWalName(long generation) {
+        return (String.format("%s%016x.log", WAL_PREFIX, generation));
+    }
+
+    public static boolean isWalName(String name) {
+        return (name.startsWith(WAL_PREFIX) && name.endsWith(".log"));
+    }
+
+    public static long getWalGeneration(String name) {
+        return Long.parseUnsignedLong(name.substring(WAL_PREFIX.length(), name.length() - 4), 16);
+    }
+
     public static String buildFolderName(int id) {
         return (String.format("%s%04x", FOLDER_NAME_PREFIX, id));
     }
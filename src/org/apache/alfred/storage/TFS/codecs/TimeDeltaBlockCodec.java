@@ -0,0 +1,153 @@
+/*******************************************************************************
+ *
+ *
+ *  Copyright (c) 2022 Alfred
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.apache.alfred.storage.codecs;
+
+import org.apache.alfred.hf.pub.codec.TimeCodec;
+import org.apache.alfred.util.collections.generated.ByteArrayList;
+import org.apache.alfred.util.memory.MemoryDataInput;
+import org.apache.alfred.util.memory.MemoryDataOutput;
+
+/**
+ * Compact on-disk encoding of data blocks. Each message of a block is stored
+ * as:
+ *
+ * <pre>
+ *  zigzag varint   delta-of-delta of timestamp (block start time is a base)
+ *  byte            type
+ *  varint          body length
+ *  byte[]          body
+ * </pre>
+ *
+ * Trailing symmetric size of a message is omitted, it is restored on decoding,
+ * so decoded block is identical to the original one.
+ */
+public final class TimeDeltaBlockCodec {
+    private final MemoryDataInput mdi = new MemoryDataInput();
+    private final MemoryDataOutput mdo = new MemoryDataOutput();
+
+    private int position;
+
+    /**
+     * Encodes block of messages.
+     *
+     * @param startTime timestamp of the first message of the block
+     * @param appendTo  buffer to append encoded data
+     * @return number of encoded bytes
+     */
+    public int encode(byte[] src, int offset, int length, long startTime, ByteArrayList appendTo) {
+        int start = appendTo.size();
+
+        long prevTime = startTime;
+        long prevDelta = 0;
+
+        mdi.setBytes(src, offset, length);
+
+        while (mdi.hasAvail()) {
+            long time = TimeCodec.readNanoTime(mdi);
+            int type = mdi.readUnsignedByte();
+            int bodyLength = SymmetricSizeCodec.readForward(mdi);
+            int bodyOffset = mdi.getCurrentOffset();
+
+            long delta = time - prevTime;
+
+            writeVarLong((delta - prevDelta) << 1 ^ (delta - prevDelta) >> 63, appendTo);
+            appendTo.add((byte) type);
+            writeVarLong(bodyLength, appendTo);
+
+            int size = appendTo.size();
+            appendTo.ensureCapacity(size + bodyLength);
+            System.arraycopy(src, bodyOffset, appendTo.getInternalBuffer(), size, bodyLength);
+            appendTo.setSize(size + bodyLength);
+
+            mdi.skipBytes(bodyLength);
+            SymmetricSizeCodec.skipForward(mdi);
+
+            prevTime = time;
+            prevDelta = delta;
+        }
+
+        return appendTo.size() - start;
+    }
+
+    /**
+     * Decodes block of messages.
+     *
+     * @param startTime timestamp of the first message of the block
+     * @param outLength expected length of decoded data
+     */
+    public void decode(byte[] src, int srcOffset, int srcLength, long startTime, byte[] out, int outOffset,
+            int outLength) {
+        int end = srcOffset + srcLength;
+
+        long prevTime = startTime;
+        long prevDelta = 0;
+
+        mdo.reset();
+        position = srcOffset;
+
+        while (position < end) {
+            long dod = readVarLong(src);
+            long delta = prevDelta + (dod >>> 1 ^ -(dod & 1));
+            long time = prevTime + delta;
+
+            int type = src[position++] & 0xFF;
+            int bodyLength = (int) readVarLong(src);
+
+            int start = mdo.getPosition();
+
+            TimeCodec.writeNanoTime(time, mdo);
+            mdo.writeUnsignedByte(type);
+            SymmetricSizeCodec.write(bodyLength, mdo);
+            mdo.write(src, position, bodyLength);
+            SymmetricSizeCodec.write(mdo.getPosition() - start, mdo);
+
+            position += bodyLength;
+            prevTime = time;
+            prevDelta = delta;
+        }
+
+        if (position != end || mdo.getPosition() != outLength)
+            throw new com.epam.deltix.util.io.UncheckedIOException(
+                    "Decoded " + mdo.getPosition() + " bytes; expected: " + outLength);
+
+        System.arraycopy(mdo.getBuffer(), 0, out, outOffset, outLength);
+    }
+
+    private static void writeVarLong(long value, ByteArrayList out) {
+        while ((value & ~0x7FL) != 0) {
+            out.add((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+
+        out.add((byte) value);
+    }
+
+    private long readVarLong(byte[] src) {
+        long value = 0;
+
+        for (int shift = 0;; shift += 7) {
+            byte b = src[position++];
+            value |= (long) (b & 0x7F) << shift;
+
+            if (b >= 0)
+                return value;
+        }
+    }
+}
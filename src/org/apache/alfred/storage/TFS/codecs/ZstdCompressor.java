@@ -0,0 +1,69 @@
+/*******************************************************************************
+ *
+ *
+ *  Copyright (c) 2022 Alfred
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.apache.alfred.storage.codecs;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdCompressCtx;
+import org.apache.alfred.util.collections.generated.ByteArrayList;
+
+/**
+ *
+ */
+public class ZstdCompressor extends BlockCompressor {
+    private final ZstdCompressCtx context = new ZstdCompressCtx();
+    private final CompressionDictionary dictionary;
+
+    public ZstdCompressor(int level, CompressionDictionary dictionary, ByteArrayList buffer) {
+        super(buffer);
+
+        this.dictionary = dictionary;
+
+        context.setLevel(level);
+        if (dictionary != null)
+            context.loadDict(dictionary.getData());
+    }
+
+    @Override
+    public byte code() {
+        return BlockCompressorFactory.getCode(Algorithm.ZSTD);
+    }
+
+    @Override
+    public CompressionDictionary getDictionary() {
+        return dictionary;
+    }
+
+    @Override
+    public void close() {
+        context.close();
+    }
+
+    public int deflate(byte[] src, int offset, int length, ByteArrayList appendTo) {
+        int maxCompressedLength = (int) Zstd.compressBound(length);
+
+        int size = appendTo.size();
+        appendTo.ensureCapacity(size + maxCompressedLength);
+        byte[] data = appendTo.getInternalBuffer();
+        int compressedLength = context.compressByteArray(data, size, maxCompressedLength, src, offset, length);
+        appendTo.setSize(size + compressedLength);
+
+        return compressedLength;
+    }
+}
@@ -0,0 +1,65 @@
+/*******************************************************************************
+ *
+ *
+ *  Copyright (c) 2022 Alfred
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.apache.alfred.storage.codecs;
+
+import com.github.luben.zstd.ZstdDecompressCtx;
+
+/**
+ *
+ */
+public class ZstdDecompressor extends BlockDecompressor {
+    private ZstdDecompressCtx context = new ZstdDecompressCtx();
+    private final DictionaryResolver dictionaries;
+
+    // id of dictionary loaded into context
+    private int dictionaryId = 0;
+
+    public ZstdDecompressor(DictionaryResolver dictionaries) {
+        this.dictionaries = dictionaries;
+    }
+
+    @Override
+    public void close() {
+        context.close();
+    }
+
+    public void inflate(byte[] src, int srcOffset, int srcLength, byte[] out, int outOffset, int outLength) {
+        int id = CompressionDictionary.getDictionaryId(src, srcOffset, srcLength);
+
+        if (id == 0 && dictionaryId != 0) {
+            context.close();
+            context = new ZstdDecompressCtx();
+            dictionaryId = 0;
+        } else if (id != dictionaryId) {
+            CompressionDictionary dictionary = dictionaries != null ? dictionaries.getDictionary(id) : null;
+
+            if (dictionary == null)
+                throw new com.epam.deltix.util.io.UncheckedIOException("Unknown compression dictionary: " + id);
+
+            context.loadDict(dictionary.getData());
+            dictionaryId = id;
+        }
+
+        int size = context.decompressByteArray(out, outOffset, outLength, src, srcOffset, srcLength);
+        if (size != outLength)
+            throw new com.epam.deltix.util.io.UncheckedIOException(
+                    "Inflated " + size + " bytes; expected: " + outLength);
+    }
+}
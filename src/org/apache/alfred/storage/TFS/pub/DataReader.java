@@ -25,6 +25,18 @@ import org.apache.alfred.util.concurrent.IntermittentlyAvailableResource;
  * A reusable object for reading TimeBase messages.
  */
 public interface DataReader extends DataAccessor, IntermittentlyAvailableResource {
+    /**
+     * Returned by {@link #readBatch} when there are no more messages.
+     */
+    public static final int END_OF_DATA = -1;
+
+    /**
+     * Returned by {@link #readBatch} of a live reader, which has no messages
+     * and notified the consumer about the end of historical data by
+     * {@link TSMessageConsumer#processRealTime(long)} instead.
+     */
+    public static final int REAL_TIME = -2;
+
     /**
      * 
      * Resets this accessor to focus on the first message in the specified TSF at or
@@ -86,6 +98,30 @@ public interface DataReader extends DataAccessor, IntermittentlyAvailableResourc
      */
     public boolean readNext(TSMessageConsumer processor);
 
+    /**
+     * Reads a batch of messages under a single lock acquisition.
+     *
+     * @param processor    The consumer of messages.
+     * @param maxMessages  Maximum number of messages to read.
+     * @param maxTimestamp Messages beyond this timestamp (in reading direction)
+     *                     are left for the next call.
+     * @param runs         If true, messages of a single entity block are
+     *                     delivered in contiguous runs as long as they do not
+     *                     precede messages of other blocks. Messages of
+     *                     different entities having the same timestamp may be
+     *                     delivered in different order than by
+     *                     {@link #readNext}.
+     *
+     * @return number of messages read, {@link #END_OF_DATA} if there are no
+     *         more messages, or {@link #REAL_TIME} if live reader switched to
+     *         real-time mode.
+     */
+    public int readBatch(TSMessageConsumer processor, int maxMessages, long maxTimestamp, boolean runs);
+
+    public default int readBatch(TSMessageConsumer processor, int maxMessages, long maxTimestamp) {
+        return readBatch(processor, maxMessages, maxTimestamp, false);
+    }
+
     /*
      * Reopens reader to the given timestamp in nanoseconds.
      */
@@ -37,6 +37,14 @@ public interface DataWriter extends DataAccessor {
      */
     public void insertMessage(int entity, long nstime, int typeCode, TSMessageProducer producer);
 
+    /**
+     * Inserts a batch of messages. The result is the same as calling
+     * {@link #insertMessage} for every message in range [offset, offset + count)
+     * of the given arrays, but messages of the same entity are inserted together.
+     */
+    public void insertMessages(int[] entities, long[] nstimes, int[] typeCodes, TSMessageProducer[] producers,
+            int offset, int count);
+
     /**
      * Write a message at the current location.
      */
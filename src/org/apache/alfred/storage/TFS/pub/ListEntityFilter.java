@@ -21,12 +21,25 @@ package org.apache.alfred.storage.pub;
 
 import org.apache.alfred.util.collections.generated.IntegerHashSet;
 
+import java.util.Arrays;
+
 public class ListEntityFilter implements EntityFilter {
 
     final IntegerHashSet entities;
+    private final int[] sorted;
 
     public ListEntityFilter(int[] entities) {
         this.entities = new IntegerHashSet(entities);
+        this.sorted = entities.clone();
+
+        Arrays.sort(sorted);
+    }
+
+    /**
+     * @return accepted entities in ascending order. Must not be modified.
+     */
+    public int[] getEntities() {
+        return sorted;
     }
 
     @Override
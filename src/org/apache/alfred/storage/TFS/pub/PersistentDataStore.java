@@ -49,6 +49,13 @@ public interface PersistentDataStore {
 
     public TSRoot createRoot(@Nullable String space, AbstractPath path);
 
+    /**
+     * Creates stream split by entity into roots at the given paths, which are
+     * usually placed on different devices. Paths must be given in the same
+     * order every time the stream is opened.
+     */
+    public TSRoot createShardedRoot(@Nullable String space, AbstractPath[] paths);
+
     /**
      * Factory method for creating a reusable object for writing messages.
      * 
@@ -63,5 +70,17 @@ public interface PersistentDataStore {
      */
     public DataReader createReader(boolean live);
 
+    /**
+     * Factory method for creating a historical reader that reads partitions of
+     * entities in parallel threads.
+     *
+     * @param numPartitions number of partitions (and reading threads)
+     * @param ordered       true to merge partitions into a single time-ordered
+     *                      stream, false to deliver messages as soon as they are
+     *                      read (ordered only within an entity)
+     * @return An instance of the DataReader interface.
+     */
+    public DataReader createParallelReader(int numPartitions, boolean ordered);
+
     void setEmergencyShutdownControl(EmergencyShutdownControl shutdownControl);
 }
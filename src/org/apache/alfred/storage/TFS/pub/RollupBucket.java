@@ -0,0 +1,102 @@
+/*******************************************************************************
+ *
+ *
+ *  Copyright (c) 2022 Alfred
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.apache.alfred.storage.pub;
+
+import org.apache.alfred.util.memory.MemoryDataInput;
+import org.apache.alfred.util.memory.MemoryDataOutput;
+
+/**
+ * Aggregated values of a single bucket of the rollup stream. Bucket is closed
+ * when the first message of the next bucket is written, or when the writer is
+ * closed; in the latter case the rest of the bucket may be written later by
+ * another record having the same timestamp, so readers should
+ * {@link #combine(RollupBucket) combine} records of equal time.
+ */
+public final class RollupBucket implements TSMessageProducer {
+
+    public long count;
+    public double min;
+    public double max;
+    public double sum;
+    public double last;
+
+    public void reset() {
+        count = 0;
+        min = Double.NaN;
+        max = Double.NaN;
+        sum = 0;
+        last = Double.NaN;
+    }
+
+    public void add(double value) {
+        if (count == 0) {
+            min = value;
+            max = value;
+        } else {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+
+        sum += value;
+        last = value;
+        count++;
+    }
+
+    /**
+     * Merges values of the later record of the same bucket.
+     */
+    public void combine(RollupBucket that) {
+        if (that.count == 0)
+            return;
+
+        if (count == 0) {
+            min = that.min;
+            max = that.max;
+        } else {
+            min = Math.min(min, that.min);
+            max = Math.max(max, that.max);
+        }
+
+        sum += that.sum;
+        last = that.last;
+        count += that.count;
+    }
+
+    public double getAverage() {
+        return count > 0 ? sum / count : Double.NaN;
+    }
+
+    public void read(MemoryDataInput mdi) {
+        count = mdi.readLong();
+        min = mdi.readDouble();
+        max = mdi.readDouble();
+        sum = mdi.readDouble();
+        last = mdi.readDouble();
+    }
+
+    @Override
+    public void writeBody(MemoryDataOutput out) {
+        out.writeLong(count);
+        out.writeDouble(min);
+        out.writeDouble(max);
+        out.writeDouble(sum);
+        out.writeDouble(last);
+    }
+}
@@ -0,0 +1,91 @@
+/*******************************************************************************
+ *
+ *
+ *  Copyright (c) 2022 Alfred
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.apache.alfred.storage.pub;
+
+import org.apache.alfred.util.memory.MemoryDataInput;
+
+/**
+ * Describes a rollup stream: messages written into the source root are
+ * aggregated per entity into buckets of fixed size, and closed buckets are
+ * written into the target root as {@link RollupBucket} messages, timestamped
+ * by the start of the bucket.
+ */
+public final class RollupDefinition {
+
+    /**
+     * Extracts aggregated value from the message body.
+     */
+    public interface ValueExtractor {
+        /**
+         * @param typeCode message type
+         * @param body     input configured to the message body
+         * @return value of the message, or NaN if message is not aggregated
+         */
+        double getValue(int typeCode, MemoryDataInput body);
+    }
+
+    private final long bucketNanos;
+    private final TSRoot target;
+    private final int typeCode;
+    private final ValueExtractor extractor;
+
+    /**
+     * @param bucketNanos bucket size, in nanoseconds
+     * @param target      root to store closed buckets
+     * @param typeCode    type of written bucket messages
+     * @param extractor   extracts aggregated values from the source messages
+     */
+    public RollupDefinition(long bucketNanos, TSRoot target, int typeCode, ValueExtractor extractor) {
+        if (bucketNanos <= 0)
+            throw new IllegalArgumentException("Illegal bucket size: " + bucketNanos);
+
+        if (typeCode < 0 || typeCode > 0xFF)
+            throw new IllegalArgumentException("Illegal type code: " + typeCode);
+
+        if (target == null || extractor == null)
+            throw new NullPointerException();
+
+        this.bucketNanos = bucketNanos;
+        this.target = target;
+        this.typeCode = typeCode;
+        this.extractor = extractor;
+    }
+
+    public long getBucketNanos() {
+        return bucketNanos;
+    }
+
+    public TSRoot getTarget() {
+        return target;
+    }
+
+    public int getTypeCode() {
+        return typeCode;
+    }
+
+    public ValueExtractor getExtractor() {
+        return extractor;
+    }
+
+    @Override
+    public String toString() {
+        return "Rollup[" + bucketNanos + "ns -> " + target.getPathString() + "]";
+    }
+}
@@ -24,6 +24,8 @@ import org.apache.alfred.storage.pub.AbstractPath;
 
 import org.apache.alfred.hf.pub.TimeInterval;
 
+import org.apache.alfred.util.collections.generated.IntegerArrayList;
+
 import javax.annotation.Nullable;
 import java.util.Collection;
 
@@ -85,6 +87,50 @@ public interface TSRoot {
 
     public TSRef associate(String path);
 
+    /**
+     * Attaches rollup stream, maintained by writers of this root.
+     */
+    public void addRollup(RollupDefinition rollup);
+
+    public void removeRollup(RollupDefinition rollup);
+
+    public RollupDefinition[] getRollups();
+
+    /**
+     * Selects the coarsest rollup root, having buckets not larger than the given
+     * resolution and covering the given time range.
+     *
+     * @param resolution required resolution, in nanoseconds
+     * @return rollup root, or this root if no rollup satisfies the range
+     */
+    public TSRoot selectRoot(TimeRange range, long resolution);
+
+    /**
+     * Delivers the latest message of the given entity to the consumer, without
+     * reading the data in most cases.
+     *
+     * @return false, if entity has no data
+     */
+    public boolean getLast(int entity, TSMessageConsumer consumer);
+
+    /**
+     * Counts messages in the time range (inclusive). Answers from the time slice
+     * index when it contains message counts, reading only blocks partially
+     * covered by the range.
+     *
+     * @param range  time range, or null for all data
+     * @param filter entity filter, or null for all entities
+     */
+    public long countMessages(TimeRange range, EntityFilter filter);
+
+    /**
+     * Adds ids of entities having messages in the time range (inclusive), in
+     * ascending order.
+     *
+     * @param range time range, or null for all data
+     */
+    public void activeEntities(TimeRange range, IntegerArrayList out);
+
     int MAX_FILE_SIZE_DEF = 1 << 23;
     int MAX_FILE_SIZE_LOW = 100;
     int MAX_FILE_SIZE_HIGH = 100 << 20;
@@ -23,6 +23,12 @@ package org.apache.alfred.storage.raw;
  *
  */
 public class DiagListener {
+    /**
+     * Called by the verifying thread after every verified file or folder.
+     */
+    public void flush() {
+    }
+
     public void unknownFormat(RawNode node, int formatVersion) {
     }
 
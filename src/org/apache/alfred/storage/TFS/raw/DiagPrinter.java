@@ -26,6 +26,10 @@ public class DiagPrinter extends DiagListener {
     private final Appendable out;
     private boolean printProgress = true;
 
+    // Output is accumulated per thread up to the end of line, so diagnostics
+    // reported concurrently by parallel verification are not interleaved.
+    private final ThreadLocal<StringBuilder> line = ThreadLocal.withInitial(StringBuilder::new);
+
     public DiagPrinter() {
         this.out = System.out;
     }
@@ -47,10 +51,42 @@ public class DiagPrinter extends DiagListener {
     }
 
     public void append(CharSequence s) {
+        StringBuilder sb = line.get();
+        sb.append(s);
+
+        int end = sb.lastIndexOf("\n");
+        if (end < 0)
+            return;
+
+        try {
+            synchronized (out) {
+                out.append(sb, 0, end + 1);
+            }
+        } catch (Exception iox) {
+            iox.printStackTrace();
+        } finally {
+            sb.delete(0, end + 1);
+        }
+    }
+
+    /**
+     * Writes out incomplete line accumulated by the calling thread.
+     */
+    @Override
+    public void flush() {
+        StringBuilder sb = line.get();
+
+        if (sb.length() == 0)
+            return;
+
         try {
-            out.append(s);
+            synchronized (out) {
+                out.append(sb);
+            }
         } catch (Exception iox) {
             iox.printStackTrace();
+        } finally {
+            sb.setLength(0);
         }
     }
 
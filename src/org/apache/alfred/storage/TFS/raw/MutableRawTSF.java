@@ -41,6 +41,11 @@ public class MutableRawTSF extends RawTSF {
         this.propertyFile = properties;
     }
 
+    @Override
+    protected AbstractPath getRootFolder() {
+        return propertyFile.getParentPath();
+    }
+
     public long resetStartTS() throws IOException {
         readIndex(new DiagListener());
         read(Long.MIN_VALUE, Long.MAX_VALUE, true);
@@ -81,6 +86,8 @@ public class MutableRawTSF extends RawTSF {
                     compLengths[ii] = compressor.deflate(db.getData(), 0, db.getDataLength(), compressedData);
             }
 
+            compressor.close();
+
             sizeOnDisk = indexSize + compressedData.size();
         } else {
             int blockOffset = numEntities * (compressed ? 28 : 24) + formatVersion > 3 ? 14 : 10;
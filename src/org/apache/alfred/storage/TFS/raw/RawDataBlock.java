@@ -21,6 +21,7 @@ package org.apache.alfred.storage.raw;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
 
 import org.apache.alfred.util.lang.Util;
 
@@ -39,6 +40,11 @@ public class RawDataBlock implements Comparable<RawDataBlock> {
     private byte[] bytes;
     private int length;
     private int compressedLength;
+    private int encodedLength = -1;
+
+    // data appended by append segments
+    private byte[] appended;
+    private int appendedLength;
 
     public RawDataBlock(int idxInFile, int entity, int offset, int dataLength, int lengthOnDisk, long firstTimestamp,
             long lastTimestamp) {
@@ -71,6 +77,35 @@ public class RawDataBlock implements Comparable<RawDataBlock> {
         return lengthOnDisk;
     }
 
+    /**
+     * @return length of time-encoded data on disk (before compression), or -1 if
+     *         block is not encoded
+     */
+    public int getEncodedLength() {
+        return encodedLength;
+    }
+
+    public void setEncodedLength(int encodedLength) {
+        this.encodedLength = encodedLength;
+    }
+
+    public byte[] getAppended() {
+        return appended;
+    }
+
+    public int getAppendedLength() {
+        return appendedLength;
+    }
+
+    public void addAppended(byte[] src, int offset, int length) {
+        if (appended == null || appended.length < appendedLength + length)
+            appended = Arrays.copyOf(appended == null ? new byte[0] : appended,
+                    Util.doubleUntilAtLeast(MIN_BUFFER_SIZE, appendedLength + length));
+
+        System.arraycopy(src, offset, appended, appendedLength, length);
+        appendedLength += length;
+    }
+
     public long getFirstTimestamp() {
         return firstTimestamp;
     }
@@ -27,6 +27,7 @@ import org.apache.alfred.util.lang.*;
 import org.apache.alfred.util.memory.*;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  *
@@ -38,10 +39,14 @@ public class RawTSF extends RawNode {
     protected long maxTimestamp;
     protected long physicalLength;
     protected byte algorithm;
+    protected boolean timeEncoded;
+    protected boolean appendable;
+    protected long storeSequence;
 
     protected long actualStartTimestamp = Long.MAX_VALUE;
 
     private DiagListener dlnr;
+    private DictionaryResolver dictionaries;
 
     public static boolean isTSFile(AbstractPath path) {
         return (TSNames.isTSFileName(path.getName()) && path.isFile());
@@ -78,7 +83,7 @@ public class RawTSF extends RawNode {
         DataInputStream dis = new DataInputStream(is);
         formatVersion = dis.readShort();
 
-        if (formatVersion < 0 || formatVersion > 3) {
+        if (formatVersion < 0 || formatVersion > TSFFormat.STORE_SEQUENCE_FORMAT_VERSION) {
             dlnr.unknownFormat(this, formatVersion);
             return;
         }
@@ -93,12 +98,26 @@ public class RawTSF extends RawNode {
         int flags = dis.readInt();
 
         numEntities = flags & TSFFormat.NUM_ENTS_MASK;
+
+        storeSequence = formatVersion >= TSFFormat.STORE_SEQUENCE_FORMAT_VERSION ? dis.readLong() : 0;
         compressed = (flags & TSFFormat.COMPRESSED_FLAG) != 0;
         algorithm = TSFFormat.getAlgorithmCode(flags);
+        timeEncoded = formatVersion >= TSFFormat.TIME_ENCODED_FORMAT_VERSION
+                && (flags & TSFFormat.TIME_ENCODED_FLAG) != 0;
+        appendable = formatVersion >= TSFFormat.APPENDABLE_FORMAT_VERSION
+                && (flags & TSFFormat.APPENDABLE_FLAG) != 0;
+        boolean counted = formatVersion >= TSFFormat.COUNTED_FORMAT_VERSION
+                && (flags & TSFFormat.COUNTED_FLAG) != 0;
 
         ArrayList<RawDataBlock> blocks = new ArrayList<RawDataBlock>();
 
-        blockOffset = numEntities * (compressed ? 28 : 24) + (formatVersion >= 3 ? 14 : 10);
+        int headerSize = formatVersion >= 3 ? 14 : 10;
+
+        if (formatVersion >= TSFFormat.STORE_SEQUENCE_FORMAT_VERSION)
+            headerSize += 8;
+
+        blockOffset = numEntities * (24 + (compressed ? 4 : 0) + (timeEncoded ? 4 : 0) + (counted ? 4 : 0))
+                + headerSize;
 
         if (blockOffset > physicalLength) {
             dlnr.fileTooShortForIndex(this, blockOffset, physicalLength);
@@ -116,7 +135,12 @@ public class RawTSF extends RawNode {
             prevEntity = entity;
 
             int dataLength = dis.readInt();
-            int lengthOnDisk = compressed ? dis.readInt() : dataLength;
+            int encodedLength = timeEncoded ? dis.readInt() : -1;
+            int lengthOnDisk = compressed ? dis.readInt() : (timeEncoded ? encodedLength : dataLength);
+
+            if (counted)
+                dis.readInt(); // number of messages
+
             long firstTimestamp = dis.readLong();
             long lastTimestamp = dis.readLong();
 
@@ -127,6 +151,7 @@ public class RawTSF extends RawNode {
 
             RawDataBlock rdb = new RawDataBlock(ii, entity, blockOffset, dataLength, lengthOnDisk, firstTimestamp,
                     lastTimestamp);
+            rdb.setEncodedLength(encodedLength);
 
             if (firstTimestamp > lastTimestamp)
                 dlnr.badFileIndexRange(this, rdb);
@@ -151,13 +176,56 @@ public class RawTSF extends RawNode {
                 dlnr.blockOutOfTimeRange(this, rdb, startTimestamp, limitTimestamp);
         }
 
+        long fileLength = blockOffset;
+
+        if (appendable && physicalLength > blockOffset)
+            fileLength += readSegments(blockOffset, blocks);
+
         index = blocks.toArray(new RawDataBlock[blocks.size()]);
         numEntities = index.length;
 
-        if (blockOffset != physicalLength)
+        if (fileLength != physicalLength)
             dlnr.fileLengthDiscrepancy(this, blockOffset, physicalLength);
     }
 
+    /*
+     * Reads append segments and attaches appended data to blocks
+     */
+    private long readSegments(int baseLength, ArrayList<RawDataBlock> blocks) throws IOException {
+        try (InputStream is = new BufferedInputStream(path.openInput(baseLength))) {
+            return AppendSegments.read(is, physicalLength - baseLength, (entity, first, last, data, offset, length) -> {
+                RawDataBlock rdb = null;
+                int pos = 0;
+
+                for (; pos < blocks.size(); pos++) {
+                    RawDataBlock test = blocks.get(pos);
+
+                    if (test.getEntity() >= entity) {
+                        if (test.getEntity() == entity)
+                            rdb = test;
+                        break;
+                    }
+                }
+
+                if (rdb == null) {
+                    rdb = new RawDataBlock(-1, entity, baseLength, 0, 0, first, last);
+                    rdb.setEncodedLength(timeEncoded ? 0 : -1);
+                    blocks.add(pos, rdb);
+                }
+
+                rdb.addAppended(data, offset, length);
+                rdb.setFirstTimestamp(first);
+                rdb.setLastTimestamp(last);
+
+                if (first < minTimestamp)
+                    minTimestamp = first;
+
+                if (last > maxTimestamp)
+                    maxTimestamp = last;
+            });
+        }
+    }
+
     public RawDataBlock getBlock(int idx) {
         return index[idx];
     }
@@ -188,33 +256,99 @@ public class RawTSF extends RawNode {
 
     protected void read(long startTimestamp, long limitTimestamp, boolean isVerify) throws IOException {
         byte[] buffer = new byte[1 << 20];
+        byte[] encoded = null;
+        TimeDeltaBlockCodec codec = null;
         MemoryDataInput mdi = new MemoryDataInput();
 
         try (BufferedInputStream is = open()) {
             readIndex(is, startTimestamp, limitTimestamp);
 
-            BlockDecompressor decomp = isCompressed() ? BlockCompressorFactory.createDecompressor(algorithm) : null;
+            BlockDecompressor decomp = isCompressed()
+                    ? BlockCompressorFactory.createDecompressor(algorithm, getDictionaries())
+                    : null;
 
-            for (int ient = 0; ient < numEntities; ient++) {
-                RawDataBlock db = getBlock(ient);
-                int length = db.getDataLength();
-                int readLength = 0;
+            try {
+                for (int ient = 0; ient < numEntities; ient++) {
+                    RawDataBlock db = getBlock(ient);
+                    int length = db.getDataLength();
+                    int appendedLength = db.getAppendedLength();
+                    int readLength = 0;
+
+                    if (buffer.length < length + appendedLength)
+                        buffer = new byte[Util.doubleUntilAtLeast(buffer.length, length + appendedLength)];
+
+                    if (length == 0) {
+                        // block exists in append segments only
+                    } else if (timeEncoded) {
+                        int encodedLength = db.getEncodedLength();
+
+                        if (encoded == null || encoded.length < encodedLength)
+                            encoded = new byte[Util.doubleUntilAtLeast(1 << 16, encodedLength)];
+
+                        if (decomp == null)
+                            readLength = IOUtil.readFully(is, encoded, 0, encodedLength);
+                        else
+                            decomp.inflate(is, db.getLengthOnDisk(), encoded, 0, encodedLength);
+
+                        if (codec == null)
+                            codec = new TimeDeltaBlockCodec();
+
+                        codec.decode(encoded, 0, encodedLength, db.getFirstTimestamp(), buffer, 0, length);
+                    } else if (decomp == null)
+                        readLength = IOUtil.readFully(is, buffer, 0, length);
+                    else
+                        decomp.inflate(is, db.getLengthOnDisk(), buffer, 0, length);
+
+                    if (appendedLength > 0) {
+                        System.arraycopy(db.getAppended(), 0, buffer, length, appendedLength);
+                        length += appendedLength;
+                    }
+
+                    mdi.setBytes(buffer, 0, length);
+                    if (isVerify)
+                        verifyBlock(mdi, db);
+
+                    db.setData(buffer, 0, length);
+                }
+            } finally {
+                if (decomp != null)
+                    decomp.close();
+            }
+        }
+    }
 
-                if (buffer.length < length)
-                    buffer = new byte[Util.doubleUntilAtLeast(buffer.length, length)];
+    /**
+     * @return root folder, where compression dictionaries of this file are stored
+     */
+    protected AbstractPath getRootFolder() {
+        AbstractPath folder = path.getParentPath();
 
-                if (decomp == null)
-                    readLength = IOUtil.readFully(is, buffer, 0, length);
-                else
-                    decomp.inflate(is, db.getLengthOnDisk(), buffer, 0, length);
+        while (folder != null && !folder.append(TSNames.ROOT_PROPS_NAME).exists())
+            folder = folder.getParentPath();
 
-                mdi.setBytes(buffer, 0, length);
-                if (isVerify)
-                    verifyBlock(mdi, db);
+        return folder;
+    }
 
-                db.setData(buffer, 0, length);
-            }
+    private DictionaryResolver getDictionaries() {
+        if (dictionaries == null) {
+            final AbstractPath root = getRootFolder();
+            final HashMap<Integer, CompressionDictionary> loaded = new HashMap<>();
+
+            dictionaries = id -> {
+                if (root == null)
+                    return null;
+
+                return loaded.computeIfAbsent(id, key -> {
+                    try {
+                        return CompressionDictionary.read(root, key);
+                    } catch (IOException iox) {
+                        throw new com.epam.deltix.util.io.UncheckedIOException(iox);
+                    }
+                });
+            };
         }
+
+        return dictionaries;
     }
 
     /**
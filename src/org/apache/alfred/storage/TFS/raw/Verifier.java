@@ -21,7 +21,12 @@ package org.apache.alfred.storage.raw;
 
 import org.apache.alfred.pub.*;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Stack;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 /**
  *
@@ -46,14 +51,24 @@ public class Verifier {
     private final DiagListener dlnr;
     private final Stack<VerificationTask> stack;
     private final VerificationMode mode;
+    private final int parallelism;
 
     public Verifier(DiagListener dlnr) {
         this(dlnr, VerificationMode.SINGLE_LEVEL);
     }
 
     public Verifier(DiagListener dlnr, VerificationMode mode) {
+        this(dlnr, mode, 1);
+    }
+
+    /**
+     * @param parallelism number of threads verifying subtrees concurrently; when
+     *                    greater than one, listener must be thread-safe
+     */
+    public Verifier(DiagListener dlnr, VerificationMode mode, int parallelism) {
         this.dlnr = dlnr;
         this.mode = mode;
+        this.parallelism = mode == VerificationMode.SINGLE_LEVEL ? 1 : Math.max(1, parallelism);
 
         stack = mode == VerificationMode.SINGLE_LEVEL ? null : new Stack<VerificationTask>();
     }
@@ -66,6 +81,11 @@ public class Verifier {
     }
 
     public void verifyFolder(AbstractPath path, long startTimestamp, long limitTimestamp) throws IOException {
+        if (parallelism > 1) {
+            verifyInParallel(new VerificationTask(false, path, startTimestamp, limitTimestamp));
+            return;
+        }
+
         verifyOneFolder(path, startTimestamp, limitTimestamp);
 
         if (stack != null)
@@ -85,7 +105,11 @@ public class Verifier {
 
         f.setPath(path);
 
-        f.verify(dlnr, startTimestamp, limitTimestamp);
+        try {
+            f.verify(dlnr, startTimestamp, limitTimestamp);
+        } finally {
+            dlnr.flush();
+        }
     }
 
     private void verifyOneFolder(AbstractPath path, long startTimestamp, long limitTimestamp) throws IOException {
@@ -93,18 +117,80 @@ public class Verifier {
 
         f.setPath(path);
 
-        f.verify(dlnr, startTimestamp, limitTimestamp);
+        try {
+            f.verify(dlnr, startTimestamp, limitTimestamp);
+        } finally {
+            dlnr.flush();
+        }
+
+        if (stack != null)
+            addChildren(f, limitTimestamp, stack);
+    }
+
+    private void addChildren(RawFolder f, long limitTimestamp, List<VerificationTask> out) {
+        int numChildren = f.getNumChildren();
+
+        for (int ii = 0; ii < numChildren; ii++) {
+            RawFolderEntry child = f.getChild(ii);
+            int nextIdx = ii + 1;
+
+            if (!child.isFile() || mode == VerificationMode.COMPLETE)
+                out.add(new VerificationTask(child.isFile(), f.getChildPath(ii), child.getStartTimestamp(),
+                        nextIdx == numChildren ? limitTimestamp : f.getChild(nextIdx).getStartTimestamp()));
+        }
+    }
+
+    /**
+     * Verifies the tree on a work-stealing pool: every folder forks tasks for
+     * its children, so idle threads pick up subtrees of busy ones.
+     */
+    private void verifyInParallel(VerificationTask root) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+        try {
+            pool.invoke(new ParallelTask(root));
+        } catch (UncheckedIOException x) {
+            throw x.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private final class ParallelTask extends RecursiveAction {
+        private final VerificationTask task;
+
+        ParallelTask(VerificationTask task) {
+            this.task = task;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                if (task.isFile) {
+                    verifyFile(task.path, task.startTimestamp, task.limitTimestamp);
+                    return;
+                }
+
+                RawFolder f = new RawFolder();
+
+                f.setPath(task.path);
+
+                try {
+                    f.verify(dlnr, task.startTimestamp, task.limitTimestamp);
+                } finally {
+                    dlnr.flush();
+                }
 
-        if (stack != null) {
-            int numChildren = f.getNumChildren();
+                ArrayList<VerificationTask> children = new ArrayList<>();
+                addChildren(f, task.limitTimestamp, children);
 
-            for (int ii = 0; ii < numChildren; ii++) {
-                RawFolderEntry child = f.getChild(ii);
-                int nextIdx = ii + 1;
+                ArrayList<ParallelTask> subtasks = new ArrayList<>(children.size());
+                for (VerificationTask child : children)
+                    subtasks.add(new ParallelTask(child));
 
-                if (!child.isFile() || mode == VerificationMode.COMPLETE)
-                    stack.add(new VerificationTask(child.isFile(), f.getChildPath(ii), child.getStartTimestamp(),
-                            nextIdx == numChildren ? limitTimestamp : f.getChild(nextIdx).getStartTimestamp()));
+                ForkJoinTask.invokeAll(subtasks);
+            } catch (IOException x) {
+                throw new UncheckedIOException(x);
             }
         }
     }
@@ -29,7 +29,17 @@ import java.io.File;
  */
 public class LocalFS implements AbstractFileSystem {
 
+    // Use memory mapped files to read data
+    private static final boolean USE_MAPPING = Boolean.getBoolean("TimeBase.fs.local.mmap");
+
+    private final boolean mapping;
+
     public LocalFS() {
+        this(USE_MAPPING);
+    }
+
+    public LocalFS(boolean mapping) {
+        this.mapping = mapping;
     }
 
     @Override
@@ -52,6 +62,16 @@ public class LocalFS implements AbstractFileSystem {
         return Long.MAX_VALUE;
     }
 
+    @Override
+    public boolean isMappingPreferable() {
+        return mapping;
+    }
+
+    @Override
+    public boolean isAppendSupported() {
+        return true;
+    }
+
     @Override
     public String getSeparator() {
         return File.separator;
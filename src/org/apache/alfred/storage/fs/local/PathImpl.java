@@ -24,6 +24,7 @@ import org.apache.alfred.util.io.*;
 import org.apache.alfred.util.lang.Util;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.util.Arrays;
@@ -121,6 +122,14 @@ class PathImpl extends File implements AbstractPath {
         return (fis);
     }
 
+    @Override
+    public ByteBuffer map(long offset, int length) throws IOException {
+        try (FileChannel channel = FileChannel.open(toPath(), StandardOpenOption.READ)) {
+            // mapping remains valid after channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        }
+    }
+
     @Override
     public OutputStream openOutput(long size) throws IOException {
         if (size < 0)
@@ -133,6 +142,20 @@ class PathImpl extends File implements AbstractPath {
         }
     }
 
+    @Override
+    public OutputStream openOutputForAppend() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(this, "rw");
+        raf.seek(raf.length());
+
+        return new RAFAdapter(raf, this);
+    }
+
+    @Override
+    public FileChannel openChannelForAppend() throws IOException {
+        return FileChannel.open(toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
     @Override
     public void makeFolder() throws IOException {
         if (!mkdir())
@@ -66,6 +66,23 @@ public interface AbstractFileSystem {
         return false;
     }
 
+    /**
+     * FS should return true if reading files using
+     * {@link AbstractPath#map(long, int)} is more preferable than streams. Mapped reads avoid intermediate buffering
+     * and system calls per read request.
+     */
+    default boolean isMappingPreferable() {
+        return false;
+    }
+
+    /**
+     * FS should return true if it implements
+     * {@link AbstractPath#openOutputForAppend()}.
+     */
+    default boolean isAppendSupported() {
+        return false;
+    }
+
     default boolean isLocal() {
         return true;
     }
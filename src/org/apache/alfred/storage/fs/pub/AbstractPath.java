@@ -23,6 +23,8 @@ import org.apache.commons.lang3.NotImplementedException;
 
 import javax.annotation.CheckReturnValue;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  *
@@ -61,6 +63,18 @@ public interface AbstractPath {
         return openInput(offset);
     }
 
+    /**
+     * Maps given region of the file into memory for reading. Mapping should be
+     * released by {@link FSUtils#unmap(ByteBuffer)}.
+     *
+     * @return read-only view of the file region or null, if mapping is not
+     *         supported for this path
+     * @see AbstractFileSystem#isMappingPreferable()
+     */
+    default ByteBuffer map(long offset, int length) throws IOException {
+        return null;
+    }
+
     /**
      * @param size when greater than zero specifies output file size (strict), when
      *             zero - size is unknown (usually small)
@@ -76,6 +90,15 @@ public interface AbstractPath {
         throw new NotImplementedException("openOutputForAppend is not implemented for this FS");
     }
 
+    /**
+     * Opens channel to append data to the file, creating it if necessary.
+     * Written data is made durable by {@link FileChannel#force(boolean)}.
+     */
+    @CheckReturnValue
+    default FileChannel openChannelForAppend() throws IOException {
+        throw new NotImplementedException("openChannelForAppend is not implemented for this FS");
+    }
+
     long length();
 
     boolean isFile();
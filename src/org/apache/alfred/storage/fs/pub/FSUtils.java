@@ -24,11 +24,53 @@ import org.apache.alfred.util.collections.Visitor;
 import org.apache.alfred.util.lang.Wrapper;
 
 import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 
 /**
  *
  */
 public class FSUtils {
+
+    // Unsafe.invokeCleaner (Java 9+), if accessible
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+
+        try {
+            Class<?> cls = Class.forName("sun.misc.Unsafe");
+            Field field = cls.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+
+            invokeCleaner = cls.getMethod("invokeCleaner", ByteBuffer.class);
+            unsafe = field.get(null);
+        } catch (ReflectiveOperationException | RuntimeException x) {
+            invokeCleaner = null; // mappings are released by GC
+        }
+
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    /**
+     * Releases mapping of the given buffer immediately, instead of waiting for
+     * GC. Buffer and its duplicates must not be accessed afterwards.
+     */
+    public static void unmap(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || INVOKE_CLEANER == null)
+            return;
+
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException | RuntimeException x) {
+            // leave it to GC
+        }
+    }
+
     public static boolean removeRecursive(AbstractPath path, boolean inclusive, Visitor<? super AbstractPath> preDelete)
             throws IOException {
         if (path.isFolder()) {
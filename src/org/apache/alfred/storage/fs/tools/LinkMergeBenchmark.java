@@ -0,0 +1,186 @@
+/*******************************************************************************
+ *
+ *
+ *  Copyright (c) 2022 Alfred
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.apache.alfred.storage.fs.tools;
+
+import org.apache.alfred.storage.fs.pub.*;
+import org.apache.alfred.storage.tfs.PDSFactory;
+import org.apache.alfred.storage.tfs.pub.*;
+import org.apache.alfred.util.lang.Disposable;
+import org.apache.alfred.util.memory.*;
+
+import java.util.Arrays;
+
+/**
+ * Measures merging of many entities by readers: writes the same number of
+ * messages spread over 10, 1k and 100k entities, then reads them back forward
+ * and in reverse. Compare runs of different reader merge structures
+ * (e.g. before and after a change of DataReaderImpl).
+ *
+ * <pre>
+ * LinkMergeBenchmark [-d folder] [-n totalMessages] [-i iterations]
+ * </pre>
+ */
+public class LinkMergeBenchmark implements Disposable {
+    private static final int[] NUM_ENTITIES = { 10, 1000, 100000 };
+    private static final long BASE_TIME = PerfTest.BASE_TIME;
+
+    private static final class Counter implements TSMessageConsumer {
+        long count;
+        long sum;
+
+        @Override
+        public void process(int entity, long timestampNanos, int type, int bodyLength, MemoryDataInput mdi) {
+            count++;
+            sum += timestampNanos;
+        }
+
+        @Override
+        public boolean processRealTime(long timestampNanos) {
+            return false;
+        }
+
+        @Override
+        public boolean isRealTime() {
+            return false;
+        }
+
+        @Override
+        public boolean realTimeAvailable() {
+            return false;
+        }
+    }
+
+    private final AbstractFileSystem fs;
+    private final PersistentDataStore cache = PDSFactory.create();
+
+    public LinkMergeBenchmark(AbstractFileSystem fs) {
+        this.fs = fs;
+        cache.start();
+    }
+
+    @Override
+    public void close() {
+        cache.shutdown();
+        cache.waitForShutdown(0);
+    }
+
+    private TSRoot generate(String path, int numEntities, long numMessages) throws Exception {
+        FSUtils.removeRecursive(fs.createPath(path), false, null);
+
+        TSRoot root = cache.createRoot(null, fs, path);
+        root.format();
+
+        int[] ids = new int[numEntities];
+
+        for (int ii = 0; ii < numEntities; ii++)
+            ids[ii] = root.getSymbolRegistry().registerSymbol("E" + ii, null);
+
+        final byte[] body = new byte[8];
+        Arrays.fill(body, (byte) 0xFF);
+
+        TSMessageProducer producer = new TSMessageProducer() {
+            @Override
+            public void writeBody(MemoryDataOutput out) {
+                out.write(body);
+            }
+        };
+
+        try (DataWriter writer = cache.createWriter()) {
+            writer.associate(root);
+            writer.open(BASE_TIME, null);
+
+            // every entity has a message at every timestamp, merge decides by entity
+            for (long count = 0; count < numMessages; count++)
+                writer.insertMessage(ids[(int) (count % numEntities)], BASE_TIME + count / numEntities, 0, producer);
+        }
+
+        cache.waitUntilDataStored(0);
+        return (root);
+    }
+
+    private static long read(TSRoot root, PersistentDataStore cache, boolean forward, Counter counter) {
+        try (DataReader reader = cache.createReader(false)) {
+            reader.associate(root);
+
+            long start = System.nanoTime();
+
+            reader.open(forward ? Long.MIN_VALUE : Long.MAX_VALUE, forward, EntityFilter.ALL);
+
+            while (reader.readNext(counter)) {
+                // count
+            }
+
+            return (System.nanoTime() - start);
+        }
+    }
+
+    public void run(String path, long totalMessages, int iterations) throws Exception {
+        for (int numEntities : NUM_ENTITIES) {
+            TSRoot root = generate(path, numEntities, totalMessages);
+
+            for (boolean forward : new boolean[] { true, false }) {
+                Counter counter = new Counter();
+                long time = Long.MAX_VALUE;
+
+                // first run warms up and loads data into cache
+                read(root, cache, forward, counter);
+
+                for (int ii = 0; ii < iterations; ii++)
+                    time = Math.min(time, read(root, cache, forward, counter));
+
+                long perRun = counter.count / (iterations + 1);
+
+                System.out.printf("%7d entities %-8s %6.1f ns/msg (%d msgs)%n", numEntities,
+                        forward ? "forward" : "reverse", (double) time / perRun, perRun);
+            }
+
+            root.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String path = System.getProperty("java.io.tmpdir") + "/link-merge";
+        long totalMessages = 2000000;
+        int iterations = 10;
+
+        for (int ii = 0; ii < args.length;) {
+            String arg = args[ii++];
+
+            switch (arg) {
+                case "-d":
+                    path = args[ii++];
+                    break;
+                case "-n":
+                    totalMessages = Long.parseLong(args[ii++]);
+                    break;
+                case "-i":
+                    iterations = Integer.parseInt(args[ii++]);
+                    break;
+
+                default:
+                    throw new IllegalArgumentException(arg);
+            }
+        }
+
+        try (LinkMergeBenchmark test = new LinkMergeBenchmark(FSFactory.getLocalFS())) {
+            test.run(path, totalMessages, iterations);
+        }
+    }
+}
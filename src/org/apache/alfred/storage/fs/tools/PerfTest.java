@@ -268,6 +268,81 @@ public class PerfTest implements Disposable {
         System.out.println("Data Rate:  " + mb / s + " MB/s");
     }
 
+    /*
+     * Measures structure lock contention: every thread repeatedly checks out
+     * a time slice for read at a random time and queries the time range.
+     * Compare runs with and without -DTimeBase.storage.structureLock.striped=true
+     * at the same thread counts, e.g. "ck -nr 8 -rt 20" after "wr -e 1000".
+     */
+    public void checkoutContention(int numThreads, int runTime, int numEntities) throws InterruptedException {
+        root.open(true);
+
+        TimeRange range = new TimeRange();
+        root.getTimeRange(range);
+
+        final long from = range.from;
+        final long to = range.to;
+        final long limit = System.currentTimeMillis() + runTime;
+        final long[] counts = new long[numThreads];
+
+        Thread[] threads = new Thread[numThreads];
+
+        for (int ii = 0; ii < numThreads; ii++) {
+            final int idx = ii;
+
+            threads[ii] = new Thread("Checkout Thread #" + ii) {
+                @Override
+                public void run() {
+                    Random rnd = new Random(idx);
+                    TimeRange tr = new TimeRange();
+                    TSMessageConsumerImpl consumer = new TSMessageConsumerImpl();
+
+                    try (DataReader reader = cache.createReader(false)) {
+                        reader.associate(root);
+
+                        long count = 0;
+
+                        while ((count & 0xFF) != 0 || System.currentTimeMillis() < limit) {
+                            long time = from + (long) (rnd.nextDouble() * (to - from));
+
+                            reader.open(time, true, null);
+                            reader.readNext(consumer);
+
+                            root.getTimeRange(rnd.nextInt(numEntities), tr);
+                            count++;
+                        }
+
+                        counts[idx] = count;
+                    }
+                }
+            };
+        }
+
+        long start = System.currentTimeMillis();
+
+        for (Thread thread : threads)
+            thread.start();
+
+        for (Thread thread : threads)
+            thread.join();
+
+        long end = System.currentTimeMillis();
+
+        root.close();
+
+        long total = 0;
+        for (long count : counts)
+            total += count;
+
+        double s = (end - start) * 0.001;
+
+        System.out.println("Lock:       "
+                + (Boolean.getBoolean("TimeBase.storage.structureLock.striped") ? "striped" : "standard"));
+        System.out.println("Checkouts:  " + total + " in " + s + " seconds by " + numThreads + " threads");
+        System.out.println("Rate:       " + (total * 1E-6) / s + " M ops/s");
+        System.out.println("Per thread: " + (total * 1E-6) / s / numThreads + " M ops/s");
+    }
+
     public static void main(String[] args) throws Exception {
         try (InputStream is = ClassLoader.getSystemClassLoader().getResourceAsStream("config/conslogger.properties")) {
             LogManager.getLogManager().readConfiguration(is);
@@ -278,6 +353,7 @@ public class PerfTest implements Disposable {
         boolean list = false;
         boolean read = false;
         boolean mapTest = false;
+        boolean checkout = false;
         String compression = "";
         int numEntities = 100;
         int msgSize = 30;
@@ -304,6 +380,9 @@ public class PerfTest implements Disposable {
                 case "mt":
                     mapTest = true;
                     break;
+                case "ck":
+                    checkout = true;
+                    break;
                 case "-tb":
                     tsbs = Long.parseLong(args[ii++]);
                     break;
@@ -338,7 +417,7 @@ public class PerfTest implements Disposable {
             }
         }
 
-        if (!write && !read && !list && !mapTest)
+        if (!write && !read && !list && !mapTest && !checkout)
             write = read = list = mapTest = true;
 
         if (write)
@@ -359,6 +438,9 @@ public class PerfTest implements Disposable {
 
             if (read)
                 dbc.readMessages(numReaders, readTime, filters);
+
+            if (checkout)
+                dbc.checkoutContention(numReaders, readTime, numEntities);
         }
     }
 